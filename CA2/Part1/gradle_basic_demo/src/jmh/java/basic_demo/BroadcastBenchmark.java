@@ -0,0 +1,72 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * The cost of broadcasting one chat message to the lobby, as a function of the number
+ * of clients in it. The clients are {@link InMemorySession}s, so the numbers cover the
+ * protocol, the encoding and the queueing but no socket.
+ *
+ * The baseline is the original Handler: one auto-flushing PrintWriter per client and
+ * the line formatted again for each of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int connections;
+
+    private InMemorySession sender;
+    private LineDecoder.Line message;
+    private String text;
+    private PrintWriter[] writers;
+
+    @Setup
+    public void setUp() throws IOException {
+        ChatServer server = new ChatServer(0);
+        InMemorySession[] sessions = new InMemorySession[connections];
+        writers = new PrintWriter[connections];
+        for (int i = 0; i < connections; i++) {
+            sessions[i] = new InMemorySession(server);
+            sessions[i].start();
+            sessions[i].type("user" + i);
+            writers[i] = new PrintWriter(OutputStream.nullOutputStream(), true);
+        }
+        sender = sessions[0];
+        text = "hello everybody, this is what a typical chat message looks like";
+        message = InMemorySession.line(text);
+    }
+
+    @Benchmark
+    public void encodedOnce() {
+        sender.onLine(message);
+    }
+
+    @Benchmark
+    public void printWriterPerClient() {
+        for (PrintWriter writer : writers) {
+            writer.println("MESSAGE " + "user0" + ": " + text);
+        }
+    }
+}
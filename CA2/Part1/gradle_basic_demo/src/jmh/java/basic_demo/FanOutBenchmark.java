@@ -0,0 +1,66 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * The time until one chat message has been queued for every member of a very large
+ * room, fanned out by the sender's thread alone (0 fan-out threads) or by the threads
+ * of a {@link FanOutPool}. The members are {@link InMemorySession}s, as in
+ * {@link BroadcastBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+
+    @Param({"5000", "20000"})
+    int connections;
+
+    @Param({"0", "2", "4"})
+    int fanOutThreads;
+
+    private ChatServer server;
+    private InMemorySession sender;
+    private LineDecoder.Line message;
+
+    @Setup
+    public void setUp() throws IOException {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setFanOutThreads(fanOutThreads);
+        config.setParallelFanOutThreshold(1000);
+        server = new ChatServer(0, config);
+        InMemorySession[] sessions = new InMemorySession[connections];
+        for (int i = 0; i < connections; i++) {
+            sessions[i] = new InMemorySession(server);
+            sessions[i].start();
+            sessions[i].type("user" + i);
+        }
+        sender = sessions[0];
+        message = InMemorySession.line("hello everybody, this is what a typical chat message looks like");
+    }
+
+    @Benchmark
+    public void broadcast() throws InterruptedException {
+        sender.onLine(message);
+        if (server.getFanOutPool() != null) {
+            server.getFanOutPool().awaitIdle();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package basic_demo;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+
+/**
+ * A chat session without a socket, for benchmarking the protocol and the broadcast
+ * path on their own. What the server queues for the client is written out at once, on
+ * the calling thread, to nowhere; only the number of bytes is kept.
+ */
+class InMemorySession extends ChatSession {
+
+    private long bytesWritten;
+
+    InMemorySession(ChatServer server) {
+        super(server);
+    }
+
+    /**
+     * Feeds text to the session as if the client had typed it, one line per line.
+     */
+    void type(String text) throws IOException {
+        LineDecoder decoder = new LineDecoder(LineDecoder.DEFAULT_MAX_LINE_LENGTH);
+        ByteArrayInputStream in = new ByteArrayInputStream((text + "\n").getBytes(StandardCharsets.UTF_8));
+        LineDecoder.Line line;
+        while ((line = decoder.readLine(in)) != null) {
+            onLine(line);
+        }
+    }
+
+    /**
+     * Decodes a single line, which stays valid as long as nothing else is decoded.
+     */
+    static LineDecoder.Line line(String text) throws IOException {
+        LineDecoder decoder = new LineDecoder(LineDecoder.DEFAULT_MAX_LINE_LENGTH);
+        return decoder.readLine(new ByteArrayInputStream((text + "\n").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    long bytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    void flushLater(long delayNanos) {
+        flushStarted();
+        EncodedMessage message;
+        while ((message = outbound.poll()) != null) {
+            bytesWritten += message.view(isBinary()).remaining();
+            message.release();
+        }
+    }
+
+    @Override
+    <T> void await(CompletableFuture<T> future, Consumer<T> then) {
+        then.accept(future.join());
+    }
+
+    @Override
+    void disconnect() {
+    }
+}
@@ -0,0 +1,97 @@
+package basic_demo;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * The cost of splitting what a client sends into lines and checking each line for a
+ * command, per batch of 1000 lines: the Scanner the server used to read with, a
+ * BufferedReader, and the {@link LineDecoder}, with and without turning its lines into
+ * Strings.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineDecodingBenchmark {
+
+    private static final int LINES = 1000;
+
+    @Param({"32", "256"})
+    int lineLength;
+
+    private byte[] input;
+
+    @Setup
+    public void setUp() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            for (int j = 0; j < lineLength; j++) {
+                text.append((char) ('a' + (i + j) % 26));
+            }
+            text.append('\n');
+        }
+        input = text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void scanner(Blackhole blackhole) {
+        Scanner in = new Scanner(new ByteArrayInputStream(input), "UTF-8");
+        while (in.hasNextLine()) {
+            String line = in.nextLine();
+            blackhole.consume(line.toLowerCase().startsWith("/quit"));
+        }
+    }
+
+    @Benchmark
+    public void bufferedReader(Blackhole blackhole) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(input), StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null) {
+            blackhole.consume(line.toLowerCase().startsWith("/quit"));
+        }
+    }
+
+    @Benchmark
+    public void lineDecoder(Blackhole blackhole) throws IOException {
+        LineDecoder decoder = new LineDecoder(LineDecoder.DEFAULT_MAX_LINE_LENGTH);
+        InputStream in = new ByteArrayInputStream(input);
+        LineDecoder.Line line;
+        while ((line = decoder.readLine(in)) != null) {
+            blackhole.consume(line.startsWithIgnoreCase("/quit"));
+        }
+    }
+
+    @Benchmark
+    public void lineDecoderToString(Blackhole blackhole) throws IOException {
+        LineDecoder decoder = new LineDecoder(LineDecoder.DEFAULT_MAX_LINE_LENGTH);
+        InputStream in = new ByteArrayInputStream(input);
+        LineDecoder.Line line;
+        while ((line = decoder.readLine(in)) != null) {
+            blackhole.consume(line.startsWithIgnoreCase("/quit"));
+            blackhole.consume(line.toString());
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package basic_demo;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Claiming and releasing screen names from several threads at once on a server that
+ * already has 10000 clients: the {@link SessionRegistry} against the synchronized
+ * HashSet of names the server started out with.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class NameRegistrationBenchmark {
+
+    private static final int POPULATION = 10000;
+
+    private final SessionRegistry registry = new SessionRegistry();
+    private final Set<String> names = new HashSet<String>();
+    private ChatSession session;
+
+    @Setup
+    public void setUp() {
+        session = new InMemorySession(new ChatServer(0));
+        for (int i = 0; i < POPULATION; i++) {
+            registry.register("resident" + i, session);
+            names.add("resident" + i);
+        }
+    }
+
+    /**
+     * A thread's own supply of names, cycled so that no name is held twice.
+     */
+    @State(Scope.Thread)
+    public static class Names {
+        private static final AtomicInteger THREADS = new AtomicInteger();
+
+        private final String[] names = new String[1024];
+        private int next;
+
+        public Names() {
+            int thread = THREADS.incrementAndGet();
+            for (int i = 0; i < names.length; i++) {
+                names[i] = "user" + thread + "-" + i;
+            }
+        }
+
+        String next() {
+            next = (next + 1) & (names.length - 1);
+            return names[next];
+        }
+    }
+
+    @Benchmark
+    public boolean sessionRegistry(Names supply) {
+        String name = supply.next();
+        boolean claimed = registry.register(name, session);
+        registry.unregister(name, session);
+        return claimed;
+    }
+
+    @Benchmark
+    public boolean synchronizedHashSet(Names supply) {
+        String name = supply.next();
+        boolean claimed;
+        synchronized (names) {
+            claimed = names.add(name);
+        }
+        synchronized (names) {
+            names.remove(name);
+        }
+        return claimed;
+    }
+}
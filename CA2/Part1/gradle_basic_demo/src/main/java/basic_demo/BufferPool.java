@@ -0,0 +1,86 @@
+package basic_demo;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A small pool of byte buffers grouped in power-of-four size classes, from 128 bytes
+ * to 32 KB. Requests larger than the biggest class are served by fresh, unpooled
+ * buffers. Each class keeps at most a fixed number of idle buffers, so the memory the
+ * pool can hold on to is bounded no matter how bursty the traffic is.
+ */
+class BufferPool {
+
+    private static final int SMALLEST_CLASS = 128;
+    private static final int CLASSES = 5;
+
+    private final boolean direct;
+    private final int maxIdlePerClass;
+    private final Queue<ByteBuffer>[] idle;
+    private final AtomicInteger[] idleCounts;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    BufferPool(boolean direct, int maxIdlePerClass) {
+        this.direct = direct;
+        this.maxIdlePerClass = maxIdlePerClass;
+        this.idle = new Queue[CLASSES];
+        this.idleCounts = new AtomicInteger[CLASSES];
+        for (int i = 0; i < CLASSES; i++) {
+            idle[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            idleCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Returns a cleared buffer that can hold at least the given number of bytes.
+     */
+    ByteBuffer acquire(int capacity) {
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass < 0) {
+            return allocate(capacity);
+        }
+        ByteBuffer buffer = idle[sizeClass].poll();
+        if (buffer == null) {
+            return allocate(classCapacity(sizeClass));
+        }
+        idleCounts[sizeClass].decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Hands a buffer obtained from {@link #acquire(int)} back to the pool. The caller
+     * must not touch the buffer, or any view of it, afterwards.
+     */
+    void release(ByteBuffer buffer) {
+        int sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass < 0 || buffer.isDirect() != direct || classCapacity(sizeClass) != buffer.capacity()) {
+            return;
+        }
+        if (idleCounts[sizeClass].incrementAndGet() > maxIdlePerClass) {
+            idleCounts[sizeClass].decrementAndGet();
+            return;
+        }
+        idle[sizeClass].add(buffer);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static int sizeClass(int capacity) {
+        for (int i = 0; i < CLASSES; i++) {
+            if (capacity <= classCapacity(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int classCapacity(int sizeClass) {
+        return SMALLEST_CLASS << (2 * sizeClass);
+    }
+}
@@ -2,17 +2,22 @@ package basic_demo;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.util.Scanner;
 
 import java.awt.BorderLayout;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
 
 /**
  * A simple Swing-based client for the chat server. Graphically it is a frame with a text
@@ -25,16 +30,44 @@ import javax.swing.JTextField;
  * sending the server arbitrary strings to be broadcast to all chatters connected to the
  * server. When the server sends a line beginning with "MESSAGE" then all characters
  * following this string should be displayed in its message area.
+ *
+ * The client can also speak the binary version of the protocol, see {@link Frame}, in
+ * which case it asks for it when first asked for a name. The protocol itself is handled
+ * by a {@link ChatConnection}.
+ *
+ * The lines received are not shown one by one: the connection's thread only queues
+ * them, and the event thread moves whatever has arrived into the message area at most
+ * {@link #FRAMES_PER_SECOND} times a second, in one go. The message area keeps the
+ * latest lines only, {@link #DEFAULT_SCROLLBACK} unless told otherwise, so a busy room
+ * neither freezes the window nor fills the memory however long the client runs.
+ *
+ * Should the connection be lost, the client reconnects and resumes its session, getting
+ * its name back and, with the binary protocol, the messages it missed.
+ *
+ * Typing "/send <name> <file>" sends a file to another client, and a file offered by
+ * another client is saved wherever the user chooses. The progress of a transfer is
+ * shown in the title bar.
  */
-public class ChatClient implements Runnable{
+public class ChatClient implements Runnable, ChatConnection.Listener {
+
+    /** The number of lines the message area keeps unless told otherwise. */
+    public static final int DEFAULT_SCROLLBACK = 5000;
 
-    private String serverAddress;
-    private int serverPort;
-    private Scanner in;
-    private PrintWriter out;
+    /** How often a second, at most, the message area is updated. */
+    static final int FRAMES_PER_SECOND = 30;
+
+    // How often to try to get a lost connection back before giving up.
+    private static final int RECONNECT_ATTEMPTS = 5;
+
+    private ChatConnection connection;
     private JFrame frame = new JFrame("Chatter");
     private JTextField textField = new JTextField(50);
     private JTextArea messageArea = new JTextArea(16, 50);
+    private String title = "Chatter";
+    private final int scrollback;
+    // The lines waiting for the next update of the message area.
+    private final ConcurrentLinkedQueue<String> incoming = new ConcurrentLinkedQueue<String>();
+    private final Timer updates = new Timer(1000 / FRAMES_PER_SECOND, e -> showIncoming());
 
     /**
      * Constructs the client by laying out the GUI and registering a listener with the
@@ -44,8 +77,24 @@ public class ChatClient implements Runnable{
      * the server.
      */
     public ChatClient(String serverAddress, int serverPort) {
-        this.serverAddress = serverAddress;
-        this.serverPort = serverPort;
+        this(serverAddress, serverPort, false);
+    }
+
+    /**
+     * Constructs the client, choosing whether it talks to the server in lines or in
+     * binary frames.
+     */
+    public ChatClient(String serverAddress, int serverPort, boolean binary) {
+        this(serverAddress, serverPort, binary, DEFAULT_SCROLLBACK);
+    }
+
+    /**
+     * Constructs the client, also choosing how many lines the message area keeps.
+     */
+    public ChatClient(String serverAddress, int serverPort, boolean binary, int scrollback) {
+        this.scrollback = Math.max(1, scrollback);
+        this.connection = new ChatConnection(serverAddress, serverPort, binary, this);
+        this.connection.setReconnectAttempts(RECONNECT_ATTEMPTS);
 
         textField.setEditable(false);
         messageArea.setEditable(false);
@@ -55,17 +104,23 @@ public class ChatClient implements Runnable{
 
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.setVisible(true);
+        updates.start();
 
         // Send on enter then clear to prepare for next message
         textField.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                out.println(textField.getText());
+                String text = textField.getText();
+                if (text.startsWith("/send ")) {
+                    sendFile(text.substring("/send ".length()).trim());
+                } else {
+                    connection.send(text);
+                }
                 textField.setText("");
             }
         });
     }
 
-    private String getName() {
+    public String nameRequested() {
         return JOptionPane.showInputDialog(
             frame,
             "Choose a screen name:",
@@ -74,33 +129,107 @@ public class ChatClient implements Runnable{
         );
     }
 
-    public void run() {
-        try {
-            Socket socket = new Socket(serverAddress, serverPort);
-            in = new Scanner(socket.getInputStream());
-            out = new PrintWriter(socket.getOutputStream(), true);
-
-            while (in.hasNextLine()) {
-                String line = in.nextLine();
-                if (line.startsWith("SUBMITNAME")) {
-                    out.println(getName());
-                } else if (line.startsWith("NAMEACCEPTED")) {
-                    this.frame.setTitle("Chatter - " + line.substring(13));
-                    textField.setEditable(true);
-                } else if (line.startsWith("MESSAGE")) {
-                    messageArea.append(line.substring(8) + "\n");
-                }
+    public void nameAccepted(String name) {
+        SwingUtilities.invokeLater(() -> {
+            title = "Chatter - " + name;
+            frame.setTitle(title);
+            textField.setEditable(true);
+        });
+    }
+
+    public void messageReceived(String text) {
+        incoming.add(text);
+    }
+
+    /**
+     * Moves the lines received since the last update into the message area, and drops
+     * the oldest ones beyond the scrollback. Runs on the event thread.
+     */
+    private void showIncoming() {
+        // Lines that would be dropped again at once are not even shown.
+        ArrayDeque<String> lines = new ArrayDeque<String>();
+        String line;
+        while ((line = incoming.poll()) != null) {
+            lines.add(line);
+            if (lines.size() > scrollback) {
+                lines.removeFirst();
             }
+        }
+        if (lines.isEmpty()) {
+            return;
+        }
+        StringBuilder text = new StringBuilder();
+        for (String each : lines) {
+            text.append(each).append('\n');
+        }
+        messageArea.append(text.toString());
+
+        // The text ends with a newline, which starts an empty last line.
+        int excess = messageArea.getLineCount() - 1 - scrollback;
+        if (excess > 0) {
+            try {
+                messageArea.replaceRange("", 0, messageArea.getLineEndOffset(excess - 1));
+            } catch (BadLocationException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-            socket.close();
+    private void sendFile(String argument) {
+        int space = argument.indexOf(' ');
+        if (space < 0) {
+            messageReceived("Usage: /send <name> <file>");
+            return;
         }
-        catch(IOException e){
-            e.printStackTrace();
-        } finally {
+        try {
+            connection.sendFile(argument.substring(0, space), Paths.get(argument.substring(space + 1).trim()));
+        } catch (IOException e) {
+            messageReceived("Cannot send " + argument.substring(space + 1) + ": " + e.getMessage());
+        }
+    }
+
+    public void fileOffered(ChatConnection.FileOffer offer) {
+        // Asked on the event thread, so that chatting goes on while the user decides.
+        SwingUtilities.invokeLater(() -> {
+            JFileChooser chooser = new JFileChooser();
+            chooser.setDialogTitle(offer.getFrom() + " sends you " + offer.getFileName()
+                    + " (" + offer.getSize() + " bytes)");
+            chooser.setSelectedFile(new File(offer.getFileName()));
+            if (chooser.showSaveDialog(frame) == JFileChooser.APPROVE_OPTION) {
+                connection.receiveFile(offer, chooser.getSelectedFile().toPath());
+            } else {
+                messageReceived("Declined " + offer.getFileName() + " from " + offer.getFrom());
+            }
+        });
+    }
+
+    public void transferProgress(String fileName, long done, long size) {
+        long percent = size == 0 ? 100 : done * 100 / size;
+        SwingUtilities.invokeLater(() -> frame.setTitle(title + " - " + fileName + " " + percent + "%"));
+    }
+
+    public void transferFinished(String fileName, IOException failure) {
+        messageReceived(failure == null ? "Transferred " + fileName
+                : "Could not transfer " + fileName + ": " + failure.getMessage());
+        SwingUtilities.invokeLater(() -> frame.setTitle(title));
+    }
+
+    public void reconnecting(int attempt) {
+        SwingUtilities.invokeLater(() -> textField.setEditable(false));
+        messageReceived("Lost the connection, reconnecting (attempt " + attempt + " of " + RECONNECT_ATTEMPTS + ")");
+    }
+
+    public void disconnected() {
+        SwingUtilities.invokeLater(() -> {
+            updates.stop();
             frame.setVisible(false);
             frame.dispose();
-        }
+        });
+    }
+
+    public void run() {
+        connection.run();
     }
 
-    
+
 }
\ No newline at end of file
@@ -3,19 +3,37 @@ package basic_demo;
 
 /**
  * A simple app that launches a chat client that connects to a chat room server. 
+ * The server IP and port may be followed by these options:
+ *
+ *   --binary         use the binary protocol
+ *   --scrollback=N   number of lines the message area keeps
  */
 public class ChatClientApp {
 
     
     public static void main(String[] args) {
         
-        if (args.length != 2) {
-            System.err.println("Pass the server IP and Port as command line arguments");
+        boolean valid = args.length >= 2;
+        boolean binary = false;
+        int scrollback = ChatClient.DEFAULT_SCROLLBACK;
+        for (int i = 2; i < args.length && valid; i++) {
+            if (args[i].equals("--binary")) {
+                binary = true;
+            } else if (args[i].startsWith("--scrollback=")) {
+                scrollback = Integer.parseInt(args[i].substring("--scrollback=".length()));
+            } else {
+                valid = false;
+            }
+        }
+        if (!valid) {
+            System.err.println("Pass the server IP and Port as command line arguments,"
+                    + " optionally followed by --binary to use the binary protocol"
+                    + " and --scrollback=N for the number of lines to keep");
             return;
         }
 
         int serverPort = Integer.parseInt(args[1]);
-        ChatClient client = new ChatClient(args[0], serverPort);
+        ChatClient client = new ChatClient(args[0], serverPort, binary, scrollback);
 
         Thread t = new Thread(client,"Chat client thread");
         t.start();
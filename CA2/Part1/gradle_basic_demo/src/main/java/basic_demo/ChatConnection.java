@@ -0,0 +1,538 @@
+package basic_demo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * The client side of the chat protocol, without any user interface. A connection reads
+ * what the server sends on the thread that runs it and reports it to a
+ * {@link Listener}; lines can be sent from any thread.
+ *
+ * When the server asks for a screen name the listener is asked for one, and asked
+ * again for as long as the server rejects them. A connection created for the binary
+ * protocol, see {@link Frame}, first asks the server to switch to it. The server's
+ * pings are answered without bothering the listener. Should the server be too busy to
+ * take the connection, its reason is passed on as a message before disconnecting.
+ *
+ * A connection may be told to reconnect when it loses its socket, see
+ * {@link #setReconnectAttempts(int)}. It then resumes its session, see
+ * {@link Frame#RESUME}, rather than joining afresh, showing the resume token the server
+ * gave it last: the other clients are not told it left, and a binary connection is sent
+ * whatever it missed meanwhile. Since broadcasts may arrive slightly out of the order of
+ * their sequence numbers, it remembers the numbers of the latest few hundred, resumes
+ * from the lowest of them and drops the replayed messages it has already seen. A text
+ * connection never sees the numbers, and gets nothing replayed.
+ *
+ * Files are sent and received over connections of their own, see {@link FileTransfers},
+ * each on a thread of its own, so that chatting goes on while they are under way.
+ */
+public class ChatConnection implements Runnable {
+
+    /**
+     * Receives what happens on a connection, on the thread running the connection.
+     */
+    public interface Listener {
+
+        /**
+         * Returns the screen name to submit, or null to give up and disconnect.
+         */
+        String nameRequested();
+
+        void nameAccepted(String name);
+
+        /**
+         * A chat message or notice, i.e. whatever follows "MESSAGE".
+         */
+        void messageReceived(String text);
+
+        default void disconnected() {
+        }
+
+        /**
+         * The connection was lost and is about to be opened again, for the given time.
+         */
+        default void reconnecting(int attempt) {
+        }
+
+        /**
+         * Another client offers a file, which is fetched if passed on to
+         * {@link ChatConnection#receiveFile(FileOffer, Path)}.
+         */
+        default void fileOffered(FileOffer offer) {
+        }
+
+        /**
+         * How much of a file has been sent or received so far, reported after every
+         * chunk on the thread doing the transfer.
+         */
+        default void transferProgress(String fileName, long done, long size) {
+        }
+
+        /**
+         * A file has been sent or received, or failed to be if the failure is not null.
+         */
+        default void transferFinished(String fileName, IOException failure) {
+        }
+    }
+
+    /**
+     * A file another client offers to send.
+     */
+    public static final class FileOffer {
+        private final int port;
+        private final String token;
+        private final long size;
+        private final String from;
+        private final String fileName;
+
+        FileOffer(int port, String token, long size, String from, String fileName) {
+            this.port = port;
+            this.token = token;
+            this.size = size;
+            this.from = from;
+            this.fileName = fileName;
+        }
+
+        /**
+         * Reads the rest of a "FILE <port> <token> <size> <from> <file name>" line,
+         * returning null if it is malformed.
+         */
+        static FileOffer parse(String offer) {
+            String[] words = offer.split(" ", 5);
+            if (words.length < 5) {
+                return null;
+            }
+            try {
+                return new FileOffer(Integer.parseInt(words[0]), words[1], Long.parseLong(words[2]), words[3], words[4]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        public String getFrom() {
+            return from;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    private interface Transfer {
+        void run() throws IOException;
+    }
+
+    // Lines from the server carry a prefix on top of what the other clients sent.
+    private static final int MAX_LINE_LENGTH = 4 * LineDecoder.DEFAULT_MAX_LINE_LENGTH;
+
+    // The pause before reconnecting, which grows by as much with every attempt.
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+
+    private final String serverAddress;
+    private final int serverPort;
+    private final boolean binary;
+    private final Listener listener;
+    private Socket socket;
+    private InputStream in;
+    private PrintWriter out;
+    private DataOutputStream frameOut;
+    private LineDecoder decoder;
+    private long sequence;
+    private volatile boolean frames;
+    private volatile boolean closed;
+    private volatile boolean quitting;
+    private volatile String name;
+    // The sequence numbers of the latest broadcasts received, to resume from.
+    private final RecentSequences received = new RecentSequences(256);
+    private volatile String resumeToken;
+    private boolean resuming;
+    private int reconnectAttempts;
+    // The files offered to other clients that wait for the server's go-ahead, by the
+    // transfer id tagged onto the offer.
+    private final ConcurrentMap<String, Path> uploads = new ConcurrentHashMap<String, Path>();
+    private final AtomicInteger transferIds = new AtomicInteger();
+
+    public ChatConnection(String serverAddress, int serverPort, boolean binary, Listener listener) {
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+        this.binary = binary;
+        this.listener = listener;
+    }
+
+    /**
+     * How many times to try to reconnect and resume the session when the connection is
+     * lost, 0, the default, for none.
+     */
+    public void setReconnectAttempts(int reconnectAttempts) {
+        this.reconnectAttempts = reconnectAttempts;
+    }
+
+    /**
+     * Opens the socket. Done by {@link #run()} if it has not been done before.
+     */
+    public synchronized void connect() throws IOException {
+        if (socket != null) {
+            try { socket.close(); } catch (IOException e) {}
+        }
+        frames = false;
+        socket = new Socket(serverAddress, serverPort);
+        socket.setTcpNoDelay(true);
+        in = socket.getInputStream();
+        out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+        frameOut = new DataOutputStream(socket.getOutputStream());
+        decoder = new LineDecoder(MAX_LINE_LENGTH);
+    }
+
+    /**
+     * Sends a line to the server, as a frame once the binary protocol is in use.
+     */
+    public synchronized void send(String text) {
+        if (text.regionMatches(true, 0, "/quit", 0, 5)) {
+            quitting = true;
+        }
+        if (!frames) {
+            out.println(text);
+            return;
+        }
+        try {
+            Frame.write(frameOut, Frame.LINE, ++sequence, text.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            // The reading thread notices the broken connection.
+        }
+    }
+
+    /**
+     * Offers a file to another client. Once the server agrees the file is uploaded in
+     * the background, reporting to the listener; the recipient only sees the offer once
+     * the server has the whole file.
+     */
+    public void sendFile(String to, Path file) throws IOException {
+        long size = Files.size(file);
+        String id = Integer.toString(transferIds.incrementAndGet());
+        uploads.put(id, file);
+        send("/send " + to + " " + size + ":" + id + " " + file.getFileName());
+    }
+
+    /**
+     * Fetches an offered file into the given file in the background, reporting to the
+     * listener.
+     */
+    public void receiveFile(FileOffer offer, Path target) {
+        transfer(offer.fileName, () -> {
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(serverAddress, offer.port));
+                 FileChannel file = FileChannel.open(target, StandardOpenOption.CREATE,
+                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                request(channel, FileTransfers.GET, offer.token);
+                long position = 0;
+                while (position < offer.size) {
+                    long moved = file.transferFrom(channel, position,
+                            Math.min(FileTransfers.CHUNK_BYTES, offer.size - position));
+                    if (moved == 0) {
+                        throw new EOFException("The server sent " + position + " of " + offer.size + " bytes");
+                    }
+                    position += moved;
+                    listener.transferProgress(offer.fileName, position, offer.size);
+                }
+            }
+        });
+    }
+
+    /**
+     * Uploads the file of an offer the server has agreed to, given the rest of its
+     * "UPLOAD <port> <token> <size>:<id> <file name>" answer. An answer that is malformed
+     * or does not match an offer is ignored.
+     */
+    private void upload(String answer) {
+        String[] words = answer.split(" ", 4);
+        int colon = words.length == 4 ? words[2].indexOf(':') : -1;
+        if (colon < 0) {
+            return;
+        }
+        int port;
+        long size;
+        try {
+            port = Integer.parseInt(words[0]);
+            size = Long.parseLong(words[2].substring(0, colon));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        String token = words[1];
+        String fileName = words[3];
+        Path path = uploads.remove(words[2].substring(colon + 1));
+        if (path == null) {
+            return;
+        }
+        transfer(fileName, () -> {
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(serverAddress, port));
+                 FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+                writeLine(channel, FileTransfers.PUT + " " + token);
+                long position = 0;
+                while (position < size) {
+                    long moved = file.transferTo(position, Math.min(FileTransfers.CHUNK_BYTES, size - position), channel);
+                    if (moved == 0) {
+                        throw new EOFException(fileName + " got shorter while being sent");
+                    }
+                    position += moved;
+                    listener.transferProgress(fileName, position, size);
+                }
+                checkReply(channel);
+            }
+        });
+    }
+
+    private void transfer(String fileName, Transfer transfer) {
+        Thread t = new Thread(() -> {
+            try {
+                transfer.run();
+                listener.transferFinished(fileName, null);
+            } catch (IOException e) {
+                listener.transferFinished(fileName, e);
+            }
+        }, "File Transfer " + fileName);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Sends a request to the file transfer port and waits for the server to agree.
+     */
+    private static void request(SocketChannel channel, String verb, String token) throws IOException {
+        writeLine(channel, verb + " " + token);
+        checkReply(channel);
+    }
+
+    private static void writeLine(SocketChannel channel, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reads the server's reply byte by byte, so that nothing of a file following it is
+     * consumed, and throws the reason if it is not "OK".
+     */
+    private static void checkReply(SocketChannel channel) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        while (true) {
+            one.clear();
+            if (channel.read(one) < 0) {
+                throw new EOFException("The server closed the file transfer");
+            }
+            if (one.get(0) == '\n') {
+                break;
+            }
+            bytes.write(one.get(0));
+        }
+        String reply = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        if (!reply.equals(FileTransfers.OK)) {
+            throw new IOException(reply.startsWith(FileTransfers.ERROR + " ")
+                    ? reply.substring(FileTransfers.ERROR.length() + 1) : "Unexpected reply " + reply);
+        }
+    }
+
+    /**
+     * Whether a line or frame received from the server is of the given type.
+     */
+    private boolean is(LineDecoder.Line line, byte type) {
+        return frames ? line.frameType() == type : line.startsWith(Frame.keyword(type));
+    }
+
+    /**
+     * The text following the type of a line or frame received from the server.
+     */
+    private String payload(LineDecoder.Line line, byte type) {
+        // A bare keyword has an empty payload.
+        return frames ? line.toString() : line.substring(Math.min(Frame.keyword(type).length() + 1, line.length()));
+    }
+
+    /**
+     * Reads from the server until either side closes the connection, reconnecting if
+     * it was lost and the connection is meant to.
+     */
+    public void run() {
+        try {
+            if (socket == null) {
+                connect();
+            }
+            while (read() && reconnect()) {
+                resuming = true;
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                e.printStackTrace();
+            }
+        } finally {
+            close();
+            listener.disconnected();
+        }
+    }
+
+    /**
+     * Whether a connection that went away was lost, rather than closed on purpose, and
+     * is to be resumed.
+     */
+    private boolean mayResume() {
+        return !closed && !quitting && name != null && reconnectAttempts > 0;
+    }
+
+    /**
+     * Opens the connection again after a pause, returning false once all the attempts
+     * have failed.
+     */
+    private boolean reconnect() {
+        for (int attempt = 1; attempt <= reconnectAttempts && !closed; attempt++) {
+            listener.reconnecting(attempt);
+            try {
+                Thread.sleep(RECONNECT_DELAY_MILLIS * attempt);
+                connect();
+                return !closed;
+            } catch (IOException e) {
+                // Tried again after a longer pause.
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads from the socket until either side closes it, returning true if the
+     * connection was lost and is to be resumed.
+     */
+    private boolean read() throws IOException {
+        try {
+            LineDecoder.Line line;
+            while ((line = decoder.readLine(in)) != null) {
+                if (!frames && line.startsWith(Frame.ACCEPTED)) {
+                    decoder.switchToFrames();
+                    frames = true;
+                } else if (!frames && line.startsWith(Frame.BUSY)) {
+                    listener.messageReceived("The server turned us away: " + line.substring(Frame.BUSY.length() + 1));
+                    return false;
+                } else if (is(line, Frame.SUBMITNAME)) {
+                    if (binary && !frames) {
+                        out.println(Frame.REQUEST);
+                    } else if (resuming && resumeToken != null) {
+                        resuming = false;
+                        send(Frame.RESUME + " " + name + " " + resumeToken + (frames ? " " + received.resumeFrom() : ""));
+                    } else if (resuming) {
+                        // The server does not let sessions be resumed; joins afresh.
+                        resuming = false;
+                        send(name);
+                    } else {
+                        String requested = listener.nameRequested();
+                        if (requested == null) {
+                            return false;
+                        }
+                        send(requested);
+                    }
+                } else if (is(line, Frame.NAMEACCEPTED)) {
+                    name = payload(line, Frame.NAMEACCEPTED);
+                    listener.nameAccepted(name);
+                } else if (is(line, Frame.RESUMETOKEN)) {
+                    resumeToken = payload(line, Frame.RESUMETOKEN);
+                } else if (is(line, Frame.MESSAGE)) {
+                    if (line.sequence() == 0 || received.add(line.sequence())) {
+                        listener.messageReceived(payload(line, Frame.MESSAGE));
+                    }
+                } else if (is(line, Frame.PING)) {
+                    send(Frame.PONG);
+                } else if (is(line, Frame.UPLOAD)) {
+                    upload(payload(line, Frame.UPLOAD));
+                } else if (is(line, Frame.FILE)) {
+                    // A malformed offer is skipped rather than ending the connection.
+                    FileOffer offer = FileOffer.parse(payload(line, Frame.FILE));
+                    if (offer != null) {
+                        listener.fileOffered(offer);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (!mayResume()) {
+                throw e;
+            }
+        }
+        return mayResume();
+    }
+
+    /**
+     * Closes the connection from any thread.
+     */
+    public void close() {
+        closed = true;
+        if (socket != null) {
+            try { socket.close(); } catch (IOException e) {}
+        }
+    }
+
+    /**
+     * The sequence numbers of the latest broadcasts received, in a ring, and looked up
+     * in a set to tell the ones seen before. Only touched by the reading thread.
+     */
+    static final class RecentSequences {
+        private final long[] ring;
+        private final Set<Long> seen = new HashSet<Long>();
+        private int next;
+        private int count;
+
+        RecentSequences(int capacity) {
+            this.ring = new long[capacity];
+        }
+
+        /**
+         * Records a number, returning false if it is among the latest ones already.
+         */
+        boolean add(long sequence) {
+            if (!seen.add(sequence)) {
+                return false;
+            }
+            if (count == ring.length) {
+                seen.remove(ring[next]);
+            } else {
+                count++;
+            }
+            ring[next] = sequence;
+            next = (next + 1) % ring.length;
+            return true;
+        }
+
+        /**
+         * The number to resume after: the lowest of the latest ones, since anything
+         * missed before the latest arrived is likely numbered above it.
+         */
+        long resumeFrom() {
+            long lowest = Long.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                lowest = Math.min(lowest, ring[i]);
+            }
+            return count == 0 ? 0 : lowest;
+        }
+    }
+}
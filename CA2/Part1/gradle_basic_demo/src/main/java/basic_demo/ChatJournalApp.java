@@ -0,0 +1,30 @@
+package basic_demo;
+
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+
+/**
+ * A simple app that prints the transcript kept in a chat server's journal directory,
+ * optionally restricted to one room.
+ */
+public class ChatJournalApp {
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Pass the journal directory as the first command line argument,"
+                    + " optionally followed by a room name");
+            return;
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        JournalReader reader = new JournalReader(Paths.get(args[0]));
+        while (reader.next()) {
+            if (args.length == 1 || args[1].equals(reader.room())) {
+                System.out.println(format.format(new Date(reader.time())) + " [" + reader.room() + "] " + reader.text());
+            }
+        }
+    }
+}
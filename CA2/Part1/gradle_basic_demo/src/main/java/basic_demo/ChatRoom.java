@@ -0,0 +1,242 @@
+package basic_demo;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A chat room: a set of members and the messages they exchange. Every room is its own
+ * broadcast domain, so a message posted to a room is encoded once and queued for the
+ * room's members only; the clients of other rooms never see it and cost nothing.
+ *
+ * Every client joins the lobby when its name is accepted. Lines broadcast in the lobby
+ * look exactly like they did before rooms existed, lines of any other room carry the
+ * room's name in brackets, e.g. "MESSAGE [devops] bob: hi".
+ *
+ * When the server is part of a {@link Cluster} a room spans the nodes: every broadcast
+ * is also relayed to the other nodes, which hand it to their own members of the room
+ * through {@link #deliver(EncodedMessage, boolean)}. The members and message rate of a
+ * room are those of the local node.
+ *
+ * A room remembers its latest chat messages, notices aside, in a {@link MessageHistory}
+ * that is replayed to every client that joins it, and hands them to the server's
+ * {@link SearchIndex}, if it keeps one. The history goes away with the room,
+ * except for the lobby which is never removed. Everything broadcast to the members is
+ * also appended to the server's {@link Journal}, if it keeps one, and to its
+ * {@link ResumeBuffer}, for clients that resume.
+ *
+ * A broadcast is queued for the members on the thread of the sender, unless the room
+ * has grown to the server's parallel fan-out threshold. From then on the members are
+ * split into shards that the threads of the server's {@link FanOutPool} queue the
+ * message for at the same time, while the sender goes on with its next line. A room
+ * that shrinks below the threshold goes on fanning out in parallel for as long as any
+ * of its broadcasts are still waiting for the fan-out threads, so that a message
+ * queued directly can never overtake an earlier one of the same sender.
+ */
+class ChatRoom {
+
+    static final String LOBBY = "lobby";
+
+    private final String name;
+    private final ChatServer server;
+    private final BufferPool pool;
+    private final Cluster cluster;
+    private final Journal journal;
+    private final FanOutPool fanOut;
+    private final ResumeBuffer resumeBuffer;
+    private final SearchIndex searchIndex;
+    private final int parallelFanOutThreshold;
+    private final SessionRegistry members = new SessionRegistry();
+    private final RateMeter messages = new RateMeter();
+    private final MessageHistory history;
+    // Broadcasts handed to the fan-out threads that have not reached every shard yet.
+    private final AtomicInteger fanningOut = new AtomicInteger();
+
+    /**
+     * Creates a room of the given server, whose messages are numbered from the
+     * server-wide sequence.
+     */
+    ChatRoom(String name, ChatServer server) {
+        this.name = name;
+        this.server = server;
+        this.pool = server.getBufferPool();
+        this.cluster = server.getCluster();
+        this.journal = server.getJournal();
+        this.fanOut = server.getFanOutPool();
+        this.resumeBuffer = server.getResumeBuffer();
+        this.searchIndex = server.getSearchIndex();
+        this.parallelFanOutThreshold = server.getParallelFanOutThreshold();
+        this.history = new MessageHistory(server.getHistorySize());
+    }
+
+    String getName() {
+        return name;
+    }
+
+    boolean isLobby() {
+        return LOBBY.equals(name);
+    }
+
+    /**
+     * Adds a named session to the room, returning false if it already is a member.
+     */
+    boolean join(ChatSession session) {
+        return members.register(session.getName(), session);
+    }
+
+    void leave(ChatSession session) {
+        members.unregister(session.getName(), session);
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    /**
+     * The average number of messages posted per second over the last few seconds.
+     */
+    double messagesPerSecond() {
+        return messages.perSecond();
+    }
+
+    long messageCount() {
+        return messages.total();
+    }
+
+    /**
+     * The latest messages of the room, oldest first, each retained for the caller.
+     */
+    EncodedMessage[] recentMessages() {
+        return history.snapshot();
+    }
+
+    /**
+     * Lets go of the room's history once the room has been removed.
+     */
+    void close() {
+        history.clear();
+    }
+
+    /**
+     * Broadcasts a chat message from one of the members.
+     */
+    void post(ChatSession from, LineDecoder.Line text) {
+        messages.mark();
+        EncodedMessage message = EncodedMessage.encode(Frame.MESSAGE, prefix() + from.getName() + ": ", text,
+                server.nextSequence(), pool);
+        broadcast(message, null, true);
+        message.release();
+    }
+
+    /**
+     * Broadcasts a notice, e.g. about someone joining, to every member except one.
+     */
+    void announce(String text, ChatSession except) {
+        broadcast("MESSAGE " + prefix() + text, except);
+    }
+
+    /**
+     * Hands a message broadcast in this room on another node to the local members. Chat
+     * messages, as opposed to notices, are recorded in the history.
+     */
+    void deliver(EncodedMessage message, boolean chat) {
+        if (chat) {
+            record(message);
+        }
+        if (resumeBuffer != null) {
+            resumeBuffer.add(name, message);
+        }
+        send(message, null);
+    }
+
+    private String prefix() {
+        return isLobby() ? "" : "[" + name + "] ";
+    }
+
+    /**
+     * Sends a line to the members. The line is encoded only once and all of them are
+     * handed the very same bytes.
+     */
+    private void broadcast(String line, ChatSession except) {
+        EncodedMessage message = EncodedMessage.encode(line, server.nextSequence(), pool);
+        broadcast(message, except, false);
+        message.release();
+    }
+
+    /**
+     * Sends a message to the members and the other nodes of the cluster, recording it
+     * in the history if it is a chat message.
+     */
+    private void broadcast(EncodedMessage message, ChatSession except, boolean chat) {
+        if (chat) {
+            record(message);
+        }
+        if (resumeBuffer != null) {
+            resumeBuffer.add(name, message);
+        }
+        send(message, except);
+        if (cluster != null) {
+            cluster.relay(name, message, chat);
+        }
+    }
+
+    private void record(EncodedMessage message) {
+        history.add(message);
+        if (searchIndex != null) {
+            searchIndex.add(message);
+        }
+    }
+
+    private void send(EncodedMessage message, ChatSession except) {
+        if (journal != null) {
+            journal.append(name, message);
+        }
+        long start = System.nanoTime();
+        if (fanOut != null && (members.size() >= parallelFanOutThreshold || fanningOut.get() > 0)) {
+            sendInShards(message, except, start);
+            return;
+        }
+        for (ChatSession session : members.snapshot()) {
+            if (session != except) {
+                session.send(message);
+            }
+        }
+        server.recordFanOut(System.nanoTime() - start);
+    }
+
+    /**
+     * Hands every shard of the members to its fan-out thread. The fan-out time recorded
+     * is that of the last shard to finish.
+     */
+    private void sendInShards(EncodedMessage message, ChatSession except, long start) {
+        ChatSession[][] shards = members.shards(fanOut.size());
+        AtomicInteger remaining = new AtomicInteger(shards.length);
+        fanningOut.incrementAndGet();
+        for (int i = 0; i < shards.length; i++) {
+            ChatSession[] shard = shards[i];
+            message.retain();
+            try {
+                fanOut.execute(i, () -> {
+                    try {
+                        for (ChatSession session : shard) {
+                            if (session != except) {
+                                session.send(message);
+                            }
+                        }
+                    } finally {
+                        message.release();
+                        if (remaining.decrementAndGet() == 0) {
+                            fanningOut.decrementAndGet();
+                            server.recordFanOut(System.nanoTime() - start);
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                // Neither this shard nor the ones after it are handed over.
+                message.release();
+                if (remaining.addAndGet(i - shards.length) == 0) {
+                    fanningOut.decrementAndGet();
+                }
+                throw e;
+            }
+        }
+    }
+}
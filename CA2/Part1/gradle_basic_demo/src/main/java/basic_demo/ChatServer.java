@@ -1,18 +1,37 @@
 package basic_demo;
 
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Collection;
 import java.util.Set;
-import java.util.HashSet;
-import java.util.NoSuchElementException;
-import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
-import org.apache.logging.log4j.Logger;
-import org.apache.logging.log4j.LogManager;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 
 /**
@@ -20,131 +39,973 @@ import org.apache.logging.log4j.LogManager;
  * a screen name by sending the client the text "SUBMITNAME", and keeps
  * requesting a name until a unique one is received. After a client submits a
  * unique name, the server acknowledges with "NAMEACCEPTED". Then all messages
- * from that client will be broadcast to all other clients that have submitted a
- * unique screen name. The broadcast messages are prefixed with "MESSAGE".
+ * from that client will be broadcast to all other clients in the same room, see
+ * {@link ChatRoom}. Everybody starts in the lobby and can move between rooms with
+ * the /join and /leave commands. The broadcast messages are prefixed with "MESSAGE".
+ *
+ * The clients can be serviced in three ways, see {@link Mode}: by a pool of threads
+ * each blocked on the socket of one client, by one virtual thread per client running
+ * the very same blocking code, or by a few non-blocking event loops (see
+ * {@link NioEngine}) that can hold many thousands of mostly idle clients.
+ *
+ * Connections beyond the configured limits, overall or per IP address, are turned
+ * away as soon as they are accepted: they are sent "BUSY" and a reason, and closed.
+ * This keeps what the server holds for its clients bounded however many try to
+ * connect at once.
+ *
+ * A client that loses its connection may get it back within a grace period without
+ * rejoining: its name is held for it meanwhile, and when it resumes it is sent the
+ * broadcasts it missed, see {@link Frame#RESUME}.
+ *
+ * The broadcasts of very large rooms are fanned out by a few threads in parallel, see
+ * {@link FanOutPool}, so that their cost does not grow with the room on one thread.
+ *
+ * Clients can send each other files, which travel over connections of their own to a
+ * separate port rather than through the chat, see {@link FileTransfers}.
+ *
+ * The server's metrics are published over JMX, see {@link ChatServerMXBean}.
+ *
+ * A server created for port 0 listens on a free port picked by the operating system,
+ * which {@link #listening()} tells once it is bound. A server is stopped with
+ * {@link #close()}.
  *
  * This is just a teaching example so it can be enhanced in many ways, e.g.,
  * better logging. Another is to accept a lot of fun commands, like Slack.
  */
-public class ChatServer implements Runnable{
+public class ChatServer implements Runnable, AutoCloseable, ChatServerMXBean {
 
-    // All client names, so we can check for duplicates upon registration.
-    private static Set<String> names;
+    /**
+     * The ways the server can service its clients.
+     */
+    public enum Mode {
+        /** Each client is served by a pooled thread blocked on its socket. */
+        THREADS,
+        /** Each client is served by its own virtual thread (needs Java 21 or newer). */
+        VIRTUAL,
+        /** All clients are multiplexed over a few selector event loops. */
+        NIO
+    }
 
-    // The set of all the print writers for all the clients, used for broadcast.
-    private static Set<PrintWriter> writers;
+    /**
+     * What to do with a client whose outbound queue is full because it does not read
+     * its messages as fast as they are sent.
+     */
+    public enum SlowConsumerPolicy {
+        /** Throw away the oldest queued message to make room for the new one. */
+        DROP_OLDEST,
+        /** Replace the whole backlog by a note saying how many messages were skipped. */
+        CONFLATE,
+        /** Close the connection. */
+        DISCONNECT
+    }
+
+    /**
+     * What to do with the lines of a client that sends more than its rate limit allows.
+     */
+    public enum RateLimitPolicy {
+        /** Stop reading from the client until it is within its limit again. */
+        THROTTLE,
+        /** Throw the excess lines away, telling the client so. */
+        DROP
+    }
+
+    // How long the accept loops back off after a failed accept.
+    private static final long ACCEPT_RETRY_MILLIS = 100;
 
-    private int serverPort;
+    // All the named clients, used to check for duplicate names.
+    private final SessionRegistry registry = new SessionRegistry();
+
+    // The rooms that have members, by name. The lobby is never removed.
+    private final ConcurrentMap<String, ChatRoom> rooms = new ConcurrentHashMap<String, ChatRoom>();
+
+    // Numbers every message broadcast in any room.
+    private final AtomicLong sequence = new AtomicLong();
+
+    private volatile int serverPort;
+    private ChatServerConfig config;
+    // Completed with the port the server listens on once it has bound it.
+    private final CompletableFuture<Integer> listening = new CompletableFuture<Integer>();
+    private volatile boolean stopped;
+    private volatile ServerSocket listener;
+    private volatile NioEngine nioEngine;
+    private ObjectName mBeanName;
+    // The clients of the blocking engines, to be disconnected when the server stops.
+    private final Set<Handler> handlers = ConcurrentHashMap.newKeySet();
+    private BufferPool bufferPool;
+    private ExecutorService handlerPool;
+    private ExecutorService writerPool;
+    private ScheduledExecutorService flushTimer;
+    private final FlushScheduler flushScheduler;
+    private final Cluster cluster;
+    private final Journal journal;
+    private final FileTransfers fileTransfers;
+    private final FanOutPool fanOutPool;
+    private final Mailboxes mailboxes;
+    private final ResumeBuffer resumeBuffer;
+    private final SearchIndex searchIndex;
+    private final LongAdder droppedMessages = new LongAdder();
+    private final LongAdder slowConsumerDisconnects = new LongAdder();
+    private final LongAdder nameCollisions = new LongAdder();
+    private final LongAdder reapedConnections = new LongAdder();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final ConcurrentMap<InetAddress, Integer> connectionsPerAddress = new ConcurrentHashMap<InetAddress, Integer>();
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder rateLimitedMessages = new LongAdder();
+    private final LongAdder directMessages = new LongAdder();
+    private final LongAdder resumedSessions = new LongAdder();
+    private final LongAdder filesTransferred = new LongAdder();
+    private final LongAdder fileBytesTransferred = new LongAdder();
+    private final RateMeter messagesReceived = new RateMeter();
+    private final LatencyHistogram fanOutNanos = new LatencyHistogram();
 
     public ChatServer(int serverPort){
-        names = new HashSet<String>();
-        writers = new HashSet<PrintWriter>();
+        this(serverPort, new ChatServerConfig());
+    }
+
+    public ChatServer(int serverPort, ChatServerConfig config){
         this.serverPort = serverPort;
+        this.config = config;
+        this.bufferPool = new BufferPool(config.isDirectBuffers(), config.getPooledBuffersPerSize());
+        this.flushScheduler = new FlushScheduler(config.getFlushDelayMicros(), config.getFlushThresholdBytes());
+        this.cluster = config.getClusterNodes().isEmpty() ? null
+                : new Cluster(this, config.getClusterNodes(), config.getClusterNode(),
+                        config.getClusterSecret());
+        this.journal = config.getJournalDirectory() == null ? null
+                : new Journal(Paths.get(config.getJournalDirectory()), config.getJournalSegmentBytes(),
+                        config.getJournalRetainedSegments());
+        this.mailboxes = config.getMailboxDirectory() == null ? null
+                : new Mailboxes(this, Paths.get(config.getMailboxDirectory()), config.getMailboxBytes(),
+                        config.getOutboundQueueCapacity(), config.getMailboxExpiryMillis(), config.getMaxMailboxes());
+        this.resumeBuffer = config.getResumeGraceMillis() == 0 ? null
+                : new ResumeBuffer(config.getResumeBufferSize());
+        this.searchIndex = config.getSearchIndexSize() == 0 ? null
+                : new SearchIndex(config.getSearchIndexSize());
+        this.fanOutPool = config.getFanOutThreads() == 0 || config.getParallelFanOutThreshold() == 0 ? null
+                : new FanOutPool(config.getFanOutThreads());
+        this.fileTransfers = config.getFileTransferPort() == 0 ? null
+                : new FileTransfers(this, config.getFileTransferPort(), config.getMaxFileBytes(),
+                        config.getFileTransferTimeoutMillis(), config.getMaxSpoolBytes());
+        rooms.put(ChatRoom.LOBBY, new ChatRoom(ChatRoom.LOBBY, this));
     }
 
     public void run() {
-        ExecutorService pool = Executors.newFixedThreadPool(500);
-        ServerSocket listener;
         try {
-            listener = new ServerSocket(serverPort);
+            if (journal != null) {
+                journal.start();
+            }
+            if (mailboxes != null) {
+                mailboxes.start();
+            }
+            if (cluster != null) {
+                cluster.start();
+            }
+            if (fileTransfers != null) {
+                fileTransfers.start();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            listening.completeExceptionally(e);
+            return;
+        }
+
+        if (config.getMode() == Mode.NIO) {
+            nioEngine = new NioEngine(this, serverPort, config.getEventLoops(), config.getAcceptBacklog());
+            nioEngine.run();
+            return;
+        }
+
+        // The handlers only read; writing to the clients is left to a separate pool so
+        // that a client that stops reading cannot hold up anybody else.
+        if (config.getMode() == Mode.VIRTUAL) {
+            handlerPool = newVirtualThreadPerTaskExecutor();
+            writerPool = newVirtualThreadPerTaskExecutor();
+        } else {
+            handlerPool = Executors.newFixedThreadPool(config.getThreadPoolSize());
+            writerPool = Executors.newCachedThreadPool();
+        }
+        if (config.getFlushDelayMicros() > 0) {
+            flushTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "Chat Server Flush Timer");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        try {
+            listener = new ServerSocket(serverPort, config.getAcceptBacklog());
+            listening(listener.getLocalPort());
             while (true) {
-                pool.execute(new Handler(listener.accept()));
+                Socket socket;
+                try {
+                    socket = listener.accept();
+                } catch (IOException e) {
+                    if (stopped) {
+                        return;
+                    }
+                    acceptFailed(e);
+                    continue;
+                }
+                String refusal = admit(socket.getInetAddress());
+                if (refusal != null) {
+                    try {
+                        socket.getOutputStream().write(busyLine(refusal));
+                    } catch (IOException e) {
+                        // Gone already.
+                    }
+                    try { socket.close(); } catch (IOException e) {}
+                    continue;
+                }
+                Handler handler = new Handler(this, socket);
+                handlers.add(handler);
+                if (stopped) {
+                    // Missed by close().
+                    handler.disconnect();
+                }
+                handlerPool.execute(handler);
             }
         } catch (IOException e) {
             e.printStackTrace();
-        }        
+            listening.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Called by the engine once it listens on the given port. A server stopped while
+     * it was starting up is stopped again now.
+     */
+    void listening(int port) {
+        serverPort = port;
+        registerMBean();
+        listening.complete(port);
+        if (stopped) {
+            close();
+        }
+    }
+
+    /**
+     * Completes with the port the server listens on once it has bound it, or fails if
+     * the server could not start.
+     */
+    public CompletableFuture<Integer> listening() {
+        return listening;
+    }
+
+    /**
+     * The port the server listens on, or was created for until it has bound it.
+     */
+    public int getPort() {
+        return serverPort;
+    }
+
+    /**
+     * Stops the server: it stops accepting chat connections, file transfers and the
+     * links of other cluster nodes, disconnects its clients and withdraws its metrics.
+     * Calling it again does no harm.
+     */
+    @Override
+    public void close() {
+        stopped = true;
+        if (listener != null) {
+            try { listener.close(); } catch (IOException e) {}
+        }
+        if (nioEngine != null) {
+            nioEngine.close();
+        }
+        for (Handler handler : handlers) {
+            handler.disconnect();
+        }
+        if (handlerPool != null) {
+            // The handlers finish as their sockets have been closed.
+            handlerPool.shutdown();
+        }
+        if (fileTransfers != null) {
+            fileTransfers.stop();
+        }
+        if (cluster != null) {
+            cluster.stop();
+        }
+        unregisterMBean();
+    }
+
+    private synchronized void registerMBean() {
+        try {
+            ObjectName name = new ObjectName("basic_demo:type=ChatServer,port=" + serverPort);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            mBeanName = name;
+        } catch (JMException e) {
+            System.out.println("Could not publish the server metrics: " + e);
+        }
+    }
+
+    private synchronized void unregisterMBean() {
+        if (mBeanName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mBeanName);
+        } catch (JMException e) {
+            System.out.println("Could not withdraw the server metrics: " + e);
+        }
+        mBeanName = null;
+    }
+
+    /**
+     * Looks up Executors.newVirtualThreadPerTaskExecutor() reflectively, so that the
+     * server keeps building and running on JDKs older than 21.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("The virtual engine needs Java 21 or newer", e);
+        }
+    }
+
+    /**
+     * Claims a screen name for a session. The result is false if the name is already in
+     * use, on this server or, in a cluster, on any other node. Only a clustered claim
+     * may take a while to complete.
+     */
+    CompletableFuture<Boolean> claim(String name, ChatSession session) {
+        if (cluster == null || registry.get(name) != null) {
+            return CompletableFuture.completedFuture(registry.register(name, session));
+        }
+        return cluster.claim(name).thenApply(granted -> {
+            if (!granted) {
+                return false;
+            }
+            if (!registry.register(name, session)) {
+                cluster.release(name);
+                return false;
+            }
+            return true;
+        });
+    }
+
+    /**
+     * The session of this server holding a screen name, or null if there is none or it
+     * is waiting to be resumed.
+     */
+    ChatSession getSession(String name) {
+        ChatSession session = registry.get(name);
+        return session == null || session.isParked() ? null : session;
+    }
+
+    /**
+     * The screen names held by the sessions of this server, including those waiting to
+     * be resumed.
+     */
+    Collection<String> getNames() {
+        return registry.names();
+    }
+
+    /**
+     * The session holding a screen name while waiting to be resumed, or null if there
+     * is none.
+     */
+    ChatSession getParkedSession(String name) {
+        ChatSession session = registry.get(name);
+        return session != null && session.isParked() ? session : null;
+    }
+
+    /**
+     * Hands the screen name of a session that lost its connection to the session that
+     * resumes it. The name stays claimed throughout, also in a cluster.
+     */
+    boolean takeOver(String name, ChatSession previous, ChatSession session) {
+        if (!registry.replace(name, previous, session)) {
+            return false;
+        }
+        resumedSessions.increment();
+        return true;
+    }
+
+    void unregister(String name, ChatSession session) {
+        if (registry.unregister(name, session) && cluster != null) {
+            cluster.release(name);
+        }
+    }
+
+    /**
+     * Hands a message relayed by another node of the cluster to the local members of
+     * its room, if there are any.
+     */
+    void deliver(String roomName, EncodedMessage message, boolean chat) {
+        ChatRoom room = rooms.get(roomName);
+        if (room != null) {
+            room.deliver(message, chat);
+        }
+    }
+
+    ChatRoom lobby() {
+        return rooms.get(ChatRoom.LOBBY);
+    }
+
+    /**
+     * Adds a named session to a room, creating the room if needed, and returns the
+     * room. Joining and leaving are atomic with respect to the room's creation and
+     * removal, so nobody can join a room that is just going away.
+     */
+    ChatRoom join(String roomName, ChatSession session) {
+        return rooms.compute(roomName, (name, room) -> {
+            if (room == null) {
+                room = new ChatRoom(name, this);
+            }
+            room.join(session);
+            return room;
+        });
+    }
+
+    /**
+     * Removes a session from a room, dropping the room once it is empty.
+     */
+    void leave(ChatRoom room, ChatSession session) {
+        rooms.computeIfPresent(room.getName(), (name, current) -> {
+            current.leave(session);
+            if (current.size() == 0 && !current.isLobby()) {
+                current.close();
+                return null;
+            }
+            return current;
+        });
+    }
+
+    /**
+     * The room of the given name, or null if it does not exist.
+     */
+    ChatRoom getRoom(String roomName) {
+        return rooms.get(roomName);
+    }
+
+    /**
+     * The rooms that currently exist.
+     */
+    Collection<ChatRoom> getRooms() {
+        return rooms.values();
+    }
+
+    LineDecoder newLineDecoder() {
+        return new LineDecoder(config.getMaxLineLength());
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Numbers a message broadcast in any room.
+     */
+    long nextSequence() {
+        return sequence.incrementAndGet();
+    }
+
+    int getHistorySize() {
+        return config.getHistorySize();
+    }
+
+    /**
+     * The mailboxes of the clients that are offline, or null if the server keeps none.
+     */
+    Mailboxes getMailboxes() {
+        return mailboxes;
+    }
+
+    /**
+     * How long a session that lost its connection waits to be resumed, 0 if it never
+     * does.
+     */
+    long getResumeGraceMillis() {
+        return config.getResumeGraceMillis();
+    }
+
+    /**
+     * The latest broadcasts kept for the sessions that resume, or null if sessions
+     * cannot be resumed.
+     */
+    ResumeBuffer getResumeBuffer() {
+        return resumeBuffer;
+    }
+
+    /**
+     * The index of the latest chat messages, or null if searching is disabled.
+     */
+    SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    /**
+     * The threads that fan out the broadcasts of large rooms, or null if every room
+     * fans out on the thread of the sender.
+     */
+    FanOutPool getFanOutPool() {
+        return fanOutPool;
+    }
+
+    int getParallelFanOutThreshold() {
+        return config.getParallelFanOutThreshold();
+    }
+
+    /**
+     * The file transfers between clients, or null if they are disabled.
+     */
+    FileTransfers getFileTransfers() {
+        return fileTransfers;
+    }
+
+    /**
+     * The cluster the server belongs to, or null for a standalone server.
+     */
+    Cluster getCluster() {
+        return cluster;
+    }
+
+    /**
+     * The journal of the broadcast messages, or null if none is kept.
+     */
+    Journal getJournal() {
+        return journal;
+    }
+
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(config.getOutboundQueueCapacity(), config.getSlowConsumerPolicy(),
+                bufferPool, droppedMessages);
+    }
+
+    /**
+     * A bucket of the lines a client may send, or null if there is no limit.
+     */
+    TokenBucket newMessageBucket() {
+        double rate = config.getMaxMessagesPerSecond();
+        return rate > 0 ? new TokenBucket(rate, Math.max(1, rate)) : null;
+    }
+
+    /**
+     * A bucket of the bytes a client may send, or null if there is no limit.
+     */
+    TokenBucket newByteBucket() {
+        double rate = config.getMaxBytesPerSecond();
+        return rate > 0 ? new TokenBucket(rate, Math.max(config.getMaxLineLength(), rate)) : null;
+    }
+
+    RateLimitPolicy getRateLimitPolicy() {
+        return config.getRateLimitPolicy();
+    }
+
+    void fileTransferred(long bytes) {
+        filesTransferred.increment();
+        fileBytesTransferred.add(bytes);
+    }
+
+    void directMessageSent() {
+        directMessages.increment();
+    }
+
+    void messageRateLimited() {
+        rateLimitedMessages.increment();
+    }
+
+    FlushScheduler getFlushScheduler() {
+        return flushScheduler;
+    }
+
+    void slowConsumerDisconnected() {
+        slowConsumerDisconnects.increment();
+    }
+
+    void nameCollided() {
+        nameCollisions.increment();
+    }
+
+    void connectionReaped() {
+        reapedConnections.increment();
+    }
+
+    long getIdleTimeoutNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(config.getIdleTimeoutMillis());
+    }
+
+    long getReadTimeoutNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(config.getReadTimeoutMillis());
+    }
+
+    /**
+     * How often the engines check their clients for silence: a quarter of the shorter
+     * timeout, so that a timeout is overrun by at most a quarter, or 0 for never.
+     */
+    long getHeartbeatCheckMillis() {
+        long idle = config.getIdleTimeoutMillis();
+        long read = config.getReadTimeoutMillis();
+        long shortest = idle == 0 ? read : read == 0 ? idle : Math.min(idle, read);
+        return shortest == 0 ? 0 : Math.max(1, shortest / 4);
+    }
+
+    /**
+     * Counts a freshly accepted connection from the given address against the limits.
+     * Returns null if the connection may go ahead, or else the reason it is refused,
+     * in which case it is not counted. Only called by the accepting thread, so the
+     * checks cannot race each other.
+     */
+    String admit(InetAddress address) {
+        if (connections.get() >= config.getMaxConnections()) {
+            rejectedConnections.increment();
+            return "Too many connections, try again later";
+        }
+        int perAddress = config.getMaxConnectionsPerAddress();
+        if (perAddress > 0 && connectionsPerAddress.getOrDefault(address, 0) >= perAddress) {
+            rejectedConnections.increment();
+            return "Too many connections from your address";
+        }
+        connections.incrementAndGet();
+        connectionsPerAddress.merge(address, 1, Integer::sum);
+        return null;
+    }
+
+    /**
+     * Releases what {@link #admit(InetAddress)} counted for a connection that has closed.
+     */
+    void connectionClosed(InetAddress address) {
+        connectionsPerAddress.computeIfPresent(address, (a, count) -> count == 1 ? null : count - 1);
+        connections.decrementAndGet();
+    }
+
+    /**
+     * Reports a connection that could not be accepted, e.g. because the process ran out
+     * of file descriptors, and waits a moment before the accept loop tries again, so that
+     * it neither gives up for good nor spins while the condition lasts.
+     */
+    static void acceptFailed(IOException e) {
+        System.out.println("Could not accept a connection: " + e);
+        try {
+            Thread.sleep(ACCEPT_RETRY_MILLIS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The line that turns a client away, encoded for its socket.
+     */
+    static byte[] busyLine(String reason) {
+        return (Frame.BUSY + " " + reason + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    void messageReceived() {
+        messagesReceived.mark();
+    }
+
+    /**
+     * Records how long it took to queue a broadcast for the members of a room.
+     */
+    void recordFanOut(long nanos) {
+        fanOutNanos.record(nanos);
+    }
+
+    Mode getMode() {
+        return config.getMode();
+    }
+
+    public int getActiveConnections() {
+        return connections.get();
+    }
+
+    public int getHandlerThreadsBusy() {
+        return handlerPool instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) handlerPool).getActiveCount() : 0;
+    }
+
+    public int getHandlerThreadPoolSize() {
+        return config.getMode() == Mode.THREADS ? config.getThreadPoolSize() : 0;
+    }
+
+    public int getQueuedConnections() {
+        return handlerPool instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) handlerPool).getQueue().size() : 0;
+    }
+
+    public int getWriterThreadsBusy() {
+        return writerPool instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) writerPool).getActiveCount() : 0;
+    }
+
+    public double getMessagesReceivedPerSecond() {
+        return messagesReceived.perSecond();
+    }
+
+    public double getMessagesWrittenPerSecond() {
+        return flushScheduler.getMessagesWrittenPerSecond();
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived.total();
+    }
+
+    public long getMessagesWritten() {
+        return flushScheduler.getMessagesWritten();
+    }
+
+    public long getBytesWritten() {
+        return flushScheduler.getBytesWritten();
+    }
+
+    public long getNameCollisions() {
+        return nameCollisions.sum();
+    }
+
+    public long getReapedConnections() {
+        return reapedConnections.sum();
+    }
+
+    public long getRejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    public long getDirectMessages() {
+        return directMessages.sum();
+    }
+
+    public long getResumedSessions() {
+        return resumedSessions.sum();
+    }
+
+    public long getIndexedMessages() {
+        return searchIndex == null ? 0 : searchIndex.indexed();
+    }
+
+    public long getSearchIndexDroppedMessages() {
+        return searchIndex == null ? 0 : searchIndex.dropped();
+    }
+
+    public long getMailboxMessagesKept() {
+        return mailboxes == null ? 0 : mailboxes.kept();
+    }
+
+    public long getMailboxMessagesDelivered() {
+        return mailboxes == null ? 0 : mailboxes.delivered();
+    }
+
+    public long getFilesTransferred() {
+        return filesTransferred.sum();
+    }
+
+    public long getFileBytesTransferred() {
+        return fileBytesTransferred.sum();
+    }
+
+    public long getRateLimitedMessages() {
+        return rateLimitedMessages.sum();
+    }
+
+    public double getFanOutMicrosP50() {
+        return fanOutNanos.percentile(0.5) / 1000.0;
+    }
+
+    public double getFanOutMicrosP99() {
+        return fanOutNanos.percentile(0.99) / 1000.0;
+    }
+
+    public double getFanOutMicrosMax() {
+        return fanOutNanos.max() / 1000.0;
+    }
+
+    /**
+     * The number of messages thrown away so far because their recipients could not
+     * keep up.
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.sum();
+    }
+
+    /**
+     * The number of clients that have a screen name.
+     */
+    public int getClientCount() {
+        return registry.size();
+    }
+
+    /**
+     * The number of clients disconnected so far because they could not keep up.
+     */
+    public long getSlowConsumerDisconnects() {
+        return slowConsumerDisconnects.sum();
+    }
+
+    /**
+     * The number of socket writes saved so far by writing queued messages together
+     * rather than one by one.
+     */
+    public long getWriteCallsSaved() {
+        return flushScheduler.getWriteCallsSaved();
+    }
+
+    /**
+     * The average time, in microseconds, queued messages waited for their flush to
+     * start. This is what batching the writes costs in latency.
+     */
+    public double getAverageFlushDelayMicros() {
+        return flushScheduler.getAverageFlushDelayMicros();
+    }
+
+    /**
+     * The number of other cluster nodes this server is currently linked to, or 0 for
+     * a standalone server.
+     */
+    public int getConnectedPeers() {
+        return cluster == null ? 0 : cluster.connectedPeers();
+    }
+
+    /**
+     * The number of broadcast messages written to the journal so far.
+     */
+    public long getJournaledMessages() {
+        return journal == null ? 0 : journal.written();
+    }
+
+    /**
+     * The number of broadcast messages left out of the journal so far because it could
+     * not keep up.
+     */
+    public long getJournalDroppedMessages() {
+        return journal == null ? 0 : journal.dropped();
+    }
+
+    /**
+     * The number of messages currently waiting to be written, over all clients.
+     */
+    public long getOutboundQueueDepth() {
+        long depth = 0;
+        for (ChatSession session : registry.snapshot()) {
+            depth += session.outbound.depth();
+        }
+        return depth;
     }
 
     /**
      * The client handler task.
      */
-    private static class Handler implements Runnable {
-        private String name;
+    private static class Handler extends ChatSession implements Runnable {
+        private static final int FLUSH_BUFFER_SIZE = 8192;
         private Socket socket;
-        private Scanner in;
-        private PrintWriter out;
-
-        private final static Logger LOGGER = LogManager.getLogger(Handler.class);
+        private InputStream in;
+        private OutputStream out;
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private int writeCalls;
+        private long writtenBytes;
 
         /**
          * Constructs a handler thread, squirreling away the socket. All the interesting
          * work is done in the run method. Remember the constructor is called from the
          * server's main method, so this has to be as short as possible.
          */
-        public Handler(Socket socket) {
+        public Handler(ChatServer server, Socket socket) {
+            super(server, socket.getInetAddress());
             this.socket = socket;
         }
 
+        @Override
+        void flushLater(long delayNanos) {
+            if (delayNanos > 0) {
+                server.flushTimer.schedule(() -> server.writerPool.execute(this::drain),
+                        delayNanos, TimeUnit.NANOSECONDS);
+            } else {
+                server.writerPool.execute(this::drain);
+            }
+        }
+
         /**
-         * Services this thread's client by repeatedly requesting a screen name until a
-         * unique one has been submitted, then acknowledges the name and registers the
-         * output stream for the client in a global set, then repeatedly gets inputs and
-         * broadcasts them.
+         * Writes out the queued messages through the buffered stream, so that messages
+         * queued together leave in as few socket writes as fit the buffer. Only one
+         * drain per client runs at a time; a drain requested meanwhile leaves its
+         * messages to the running one, which checks for more before it stops.
+         */
+        private void drain() {
+            long requestedAt = flushStarted();
+            if (!draining.compareAndSet(false, true)) {
+                return;
+            }
+            do {
+                int messages = 0;
+                writeCalls = 0;
+                writtenBytes = 0;
+                EncodedMessage message;
+                try {
+                    while ((message = outbound.poll()) != null) {
+                        try {
+                            message.writeTo(out, isBinary());
+                            messages++;
+                        } finally {
+                            message.release();
+                        }
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    // The read loop notices the broken connection and cleans up.
+                    outbound.clear();
+                }
+                server.flushScheduler.recordFlush(requestedAt, messages, writeCalls, writtenBytes);
+                requestedAt = 0;
+                draining.set(false);
+            } while (!outbound.isEmpty() && draining.compareAndSet(false, true));
+        }
+
+        /**
+         * Simply blocks this client's thread until the result is in.
+         */
+        @Override
+        <T> void await(CompletableFuture<T> future, Consumer<T> then) {
+            T result = null;
+            try {
+                result = future.get();
+            } catch (InterruptedException | ExecutionException e) {
+                System.out.println(e);
+            }
+            then.accept(result);
+        }
+
+        @Override
+        void disconnect() {
+            try { socket.close(); } catch (IOException e) {}
+        }
+
+        /**
+         * Services this thread's client by feeding every line it sends to the chat
+         * protocol until the client quits or disconnects.
          */
         public void run() {
             try {
-                in = new Scanner(socket.getInputStream());
-                out = new PrintWriter(socket.getOutputStream(), true);
+                in = socket.getInputStream();
+                // Counts the writes that actually reach the socket.
+                out = new BufferedOutputStream(new FilterOutputStream(socket.getOutputStream()) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        writeCalls++;
+                        writtenBytes += len;
+                        out.write(b, off, len);
+                    }
+                }, FLUSH_BUFFER_SIZE);
 
-                // Keep requesting a name until we get a unique one.
+                // The read times out now and then to check whether the client has gone quiet.
+                socket.setSoTimeout((int) server.getHeartbeatCheckMillis());
+                start();
                 while (true) {
-                    out.println("SUBMITNAME");
-                    name = in.nextLine();
-                    if (name == null) {
-                        return;
-                    }
-                    synchronized (names) {
-                        if (!name.isEmpty() && !names.contains(name)) {
-                            names.add(name);
-                            LOGGER.info("A new user has joined: " + name);
-                            break;
+                    LineDecoder.Line line;
+                    try {
+                        line = decoder.readLine(in);
+                    } catch (SocketTimeoutException e) {
+                        if (!checkIdle(System.nanoTime())) {
+                            return;
                         }
+                        continue;
                     }
-                }
-
-                // Now that a successful name has been chosen, add the socket's print writer
-                // to the set of all writers so this client can receive broadcast messages.
-                // But BEFORE THAT, let everyone else know that the new person has joined!
-                out.println("NAMEACCEPTED " + name);
-                for (PrintWriter writer : writers) {
-                    writer.println("MESSAGE " + name + " has joined");
-                }
-                synchronized(writers){
-                    writers.add(out);
-                }
- 
-                // Accept messages from this client and broadcast them.
-                while (true) {
-                    String input = in.nextLine();
-                    if (input.toLowerCase().startsWith("/quit")) {
+                    if (line == null || !onLine(line)) {
                         return;
                     }
-                    for (PrintWriter writer : writers) {
-                        writer.println("MESSAGE " + name + ": " + input);
-                    }
                 }
-            } catch (NoSuchElementException e){
-                return;
-            }
-            catch (Exception e) {
-                System.out.println(e);
-            } finally {
-                if (out != null) {
-                    synchronized(writers){
-                       writers.remove(out);
-                    }
-                }
-                if (name != null) {
-                    LOGGER.info(name + " has left the chat");
-                    synchronized(names){
-                        names.remove(name);
-                    }
-                    for (PrintWriter writer : writers) {
-                        writer.println("MESSAGE " + name + " has left");
-                    }
+            } catch (Exception e) {
+                if (!server.stopped) {
+                    System.out.println(e);
                 }
+            } finally {
+                end();
                 try { socket.close(); } catch (IOException e) {}
+                server.handlers.remove(this);
             }
         }
     }
-}
\ No newline at end of file
+}
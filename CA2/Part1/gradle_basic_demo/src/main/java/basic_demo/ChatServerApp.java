@@ -1,24 +1,156 @@
 package basic_demo;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
 /**
- * A simple app that launches a multithreaded chat room server. 
+ * A simple app that launches a multithreaded chat room server.
+ *
+ * Besides the port, the following options are understood:
+ *
+ *   --engine=threads|virtual|nio   how clients are serviced (default: threads)
+ *   --event-loops=N                number of selector threads for the nio engine
+ *   --direct-buffers               encode outgoing messages into direct buffers
+ *   --queue-capacity=N             messages that may wait for a single client
+ *   --slow-consumer=drop-oldest|conflate|disconnect
+ *                                  what to do when a client's queue is full
+ *   --max-line-length=N            longest line in bytes a client may send
+ *   --flush-delay-us=N             how long queued messages may wait for more
+ *   --flush-threshold=N            bytes queued for a client that force a flush
+ *   --history=N                    recent messages each room replays to newcomers
+ *   --journal=DIR                  journal the broadcast messages into a directory
+ *   --journal-segment-size=N       bytes per journal segment file
+ *   --journal-segments=N           journal segments kept, 0 for all
+ *   --cluster=host:port,...        peer addresses of all the nodes of a cluster
+ *   --node=N                       index of this server's own address in --cluster
+ *   --cluster-secret-file=PATH     file holding the secret shared by the nodes of a cluster
+ *   --idle-timeout-ms=N            quiet time after which a client is pinged, 0 never
+ *   --read-timeout-ms=N            quiet time after which a client is disconnected, 0 never
+ *   --max-connections=N            open connections beyond which clients are turned away
+ *   --max-connections-per-address=N
+ *                                  open connections allowed from a single IP address
+ *   --accept-backlog=N             connections the OS may queue before they are accepted
+ *   --max-messages-per-second=N    lines a client may send per second
+ *   --max-bytes-per-second=N       bytes a client may send per second
+ *   --rate-limit=throttle|drop     what to do with the lines of a client over its limit
+ *   --mailboxes=DIR                keep private messages for offline clients in a directory
+ *   --mailbox-size=N               bytes of messages each mailbox holds
+ *   --mailbox-expiry-ms=N          time a mailbox waits for its client to come back, 0 forever
+ *   --max-mailboxes=N              mailboxes kept at once
+ *   --resume-grace-ms=N            time a client that lost its connection may resume in, 0 never
+ *   --resume-buffer=N              latest broadcasts kept for the clients that resume
+ *   --search-index=N               latest chat messages clients can search, 0 for none
+ *   --fan-out-threads=N            threads sharing the fan-out of large rooms, 0 for none
+ *   --parallel-fan-out=N           room size from which broadcasts fan out in parallel
+ *   --file-port=N                  port for file transfers between clients, 0 for none
+ *   --max-file-size=N              largest file in bytes a client may send
+ *   --file-timeout-ms=N            time a file transfer may go without progress
+ *   --max-spool-size=N             bytes all the files on offer may take up together
  */
 public class ChatServerApp{
 
     public static void main(String[] args) throws Exception {
 
-        if (args.length != 1) {
-            System.err.println("Pass the server port as the sole command line argument");
+        if (args.length < 1) {
+            System.err.println("Pass the server port as the first command line argument,"
+                    + " optionally followed by --engine=threads|virtual|nio and --event-loops=N");
             return;
         }
 
         int serverPort = Integer.parseInt(args[0]);
+        ChatServerConfig config = new ChatServerConfig();
+        for (int i = 1; i < args.length; i++) {
+            String option = args[i];
+            if (option.startsWith("--engine=")) {
+                config.setMode(ChatServer.Mode.valueOf(value(option).toUpperCase()));
+            } else if (option.startsWith("--event-loops=")) {
+                config.setEventLoops(Integer.parseInt(value(option)));
+            } else if (option.equals("--direct-buffers")) {
+                config.setDirectBuffers(true);
+            } else if (option.startsWith("--queue-capacity=")) {
+                config.setOutboundQueueCapacity(Integer.parseInt(value(option)));
+            } else if (option.startsWith("--max-line-length=")) {
+                config.setMaxLineLength(Integer.parseInt(value(option)));
+            } else if (option.startsWith("--flush-delay-us=")) {
+                config.setFlushDelayMicros(Long.parseLong(value(option)));
+            } else if (option.startsWith("--flush-threshold=")) {
+                config.setFlushThresholdBytes(Integer.parseInt(value(option)));
+            } else if (option.startsWith("--history=")) {
+                config.setHistorySize(Integer.parseInt(value(option)));
+            } else if (option.startsWith("--journal=")) {
+                config.setJournalDirectory(value(option));
+            } else if (option.startsWith("--journal-segment-size=")) {
+                config.setJournalSegmentBytes(Integer.parseInt(value(option)));
+            } else if (option.startsWith("--journal-segments=")) {
+                config.setJournalRetainedSegments(Integer.parseInt(value(option)));
+            } else if (option.startsWith("--cluster=")) {
+                config.setClusterNodes(Arrays.asList(value(option).split(",")));
+            } else if (option.startsWith("--node=")) {
+                config.setClusterNode(Integer.parseInt(value(option)));
+            } else if (option.startsWith("--cluster-secret-file=")) {
+                config.setClusterSecret(new String(Files.readAllBytes(Paths.get(value(option))),
+                        StandardCharsets.UTF_8).trim());
+            } else if (option.startsWith("--idle-timeout-ms=")) {
+                config.setIdleTimeoutMillis(Long.parseLong(value(option)));
+            } else if (option.startsWith("--read-timeout-ms=")) {
+                config.setReadTimeoutMillis(Long.parseLong(value(option)));
+            } else if (option.startsWith("--max-connections=")) {
+                config.setMaxConnections(Integer.parseInt(value(option)));
+            } else if (option.startsWith("--max-connections-per-address=")) {
+                config.setMaxConnectionsPerAddress(Integer.parseInt(value(option)));
+            } else if (option.startsWith("--accept-backlog=")) {
+                config.setAcceptBacklog(Integer.parseInt(value(option)));
+            } else if (option.startsWith("--max-messages-per-second=")) {
+                config.setMaxMessagesPerSecond(Double.parseDouble(value(option)));
+            } else if (option.startsWith("--max-bytes-per-second=")) {
+                config.setMaxBytesPerSecond(Double.parseDouble(value(option)));
+            } else if (option.startsWith("--rate-limit=")) {
+                config.setRateLimitPolicy(ChatServer.RateLimitPolicy.valueOf(value(option).toUpperCase()));
+            } else if (option.startsWith("--mailboxes=")) {
+                config.setMailboxDirectory(value(option));
+            } else if (option.startsWith("--mailbox-size=")) {
+                config.setMailboxBytes(Integer.parseInt(value(option)));
+            } else if (option.startsWith("--mailbox-expiry-ms=")) {
+                config.setMailboxExpiryMillis(Long.parseLong(value(option)));
+            } else if (option.startsWith("--max-mailboxes=")) {
+                config.setMaxMailboxes(Integer.parseInt(value(option)));
+            } else if (option.startsWith("--resume-grace-ms=")) {
+                config.setResumeGraceMillis(Long.parseLong(value(option)));
+            } else if (option.startsWith("--resume-buffer=")) {
+                config.setResumeBufferSize(Integer.parseInt(value(option)));
+            } else if (option.startsWith("--search-index=")) {
+                config.setSearchIndexSize(Integer.parseInt(value(option)));
+            } else if (option.startsWith("--fan-out-threads=")) {
+                config.setFanOutThreads(Integer.parseInt(value(option)));
+            } else if (option.startsWith("--parallel-fan-out=")) {
+                config.setParallelFanOutThreshold(Integer.parseInt(value(option)));
+            } else if (option.startsWith("--file-port=")) {
+                config.setFileTransferPort(Integer.parseInt(value(option)));
+            } else if (option.startsWith("--max-file-size=")) {
+                config.setMaxFileBytes(Long.parseLong(value(option)));
+            } else if (option.startsWith("--file-timeout-ms=")) {
+                config.setFileTransferTimeoutMillis(Long.parseLong(value(option)));
+            } else if (option.startsWith("--max-spool-size=")) {
+                config.setMaxSpoolBytes(Long.parseLong(value(option)));
+            } else if (option.startsWith("--slow-consumer=")) {
+                config.setSlowConsumerPolicy(ChatServer.SlowConsumerPolicy.valueOf(value(option).toUpperCase().replace('-', '_')));
+            } else {
+                System.err.println("Unknown option: " + option);
+                return;
+            }
+        }
 
-        ChatServer chatServer = new ChatServer(serverPort);
-        Thread t = new Thread(chatServer,"Chat Server Main Thread");        
+        ChatServer chatServer = new ChatServer(serverPort, config);
+        Thread t = new Thread(chatServer,"Chat Server Main Thread");
         t.start();
 
-        System.out.println("The chat server is running...");
+        System.out.println("The chat server is running (" + config.getMode().name().toLowerCase() + " engine)...");
+    }
+
+    private static String value(String option) {
+        return option.substring(option.indexOf('=') + 1);
     }
 
-}
\ No newline at end of file
+}
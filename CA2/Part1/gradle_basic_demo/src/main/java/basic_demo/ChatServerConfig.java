@@ -0,0 +1,511 @@
+package basic_demo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The tunable settings of a {@link ChatServer}. A freshly constructed configuration
+ * keeps the original model of the server, a pool of 500 threads, each one blocked on
+ * the socket of a single client, but not all of its original behaviour: by default
+ * quiet clients are pinged after 30 seconds and disconnected after 90, clients beyond
+ * the 500 threads are turned away instead of waiting for one, and newcomers to a room
+ * are shown its latest 50 messages. Setting the idle and read timeouts, and the
+ * history size, to zero turns the first and the last off.
+ */
+public class ChatServerConfig {
+
+    /** The connection limit of the engines that do not pool threads. */
+    public static final int DEFAULT_MAX_CONNECTIONS = 65536;
+
+    private ChatServer.Mode mode = ChatServer.Mode.THREADS;
+    private int threadPoolSize = 500;
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+    private boolean directBuffers = false;
+    private int pooledBuffersPerSize = 256;
+    private int outboundQueueCapacity = 1024;
+    private ChatServer.SlowConsumerPolicy slowConsumerPolicy = ChatServer.SlowConsumerPolicy.DROP_OLDEST;
+    private int maxLineLength = LineDecoder.DEFAULT_MAX_LINE_LENGTH;
+    private long flushDelayMicros = 0;
+    private int flushThresholdBytes = 16384;
+    private int historySize = 50;
+    private List<String> clusterNodes = new ArrayList<String>();
+    private int clusterNode = 0;
+    private String clusterSecret = null;
+    private String journalDirectory = null;
+    private int journalSegmentBytes = 64 * 1024 * 1024;
+    private int journalRetainedSegments = 16;
+    private long idleTimeoutMillis = 30000;
+    private long readTimeoutMillis = 90000;
+    private int maxConnections = 0;
+    private int maxConnectionsPerAddress = 0;
+    private int acceptBacklog = 50;
+    private double maxMessagesPerSecond = 0;
+    private double maxBytesPerSecond = 0;
+    private ChatServer.RateLimitPolicy rateLimitPolicy = ChatServer.RateLimitPolicy.THROTTLE;
+    private String mailboxDirectory = null;
+    private int mailboxBytes = 64 * 1024;
+    private long mailboxExpiryMillis = 7L * 24 * 60 * 60 * 1000;
+    private int maxMailboxes = 10000;
+    private long resumeGraceMillis = 0;
+    private int resumeBufferSize = 4096;
+    private int searchIndexSize = 0;
+    private int fileTransferPort = 0;
+    private int fanOutThreads = Runtime.getRuntime().availableProcessors();
+    private int parallelFanOutThreshold = 2048;
+    private long maxFileBytes = 64 * 1024 * 1024;
+    private long fileTransferTimeoutMillis = 30000;
+    private long maxSpoolBytes = 1024L * 1024 * 1024;
+
+    public ChatServer.Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(ChatServer.Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * The number of pooled handler threads, and so of clients served at once, in
+     * {@link ChatServer.Mode#THREADS} mode. Virtual threads are not pooled.
+     */
+    public int getThreadPoolSize() {
+        return threadPoolSize;
+    }
+
+    public void setThreadPoolSize(int threadPoolSize) {
+        this.threadPoolSize = threadPoolSize;
+    }
+
+    /**
+     * The number of selector threads sharing the clients in {@link ChatServer.Mode#NIO}
+     * mode. Defaults to the number of available processors.
+     */
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public void setEventLoops(int eventLoops) {
+        this.eventLoops = eventLoops;
+    }
+
+    /**
+     * Whether outgoing messages are encoded into direct buffers, which the nio engine
+     * can hand to the socket without an extra copy. Heap buffers suit the blocking
+     * engines better.
+     */
+    public boolean isDirectBuffers() {
+        return directBuffers;
+    }
+
+    public void setDirectBuffers(boolean directBuffers) {
+        this.directBuffers = directBuffers;
+    }
+
+    /**
+     * How many idle message buffers of each size are kept for reuse. Zero disables
+     * pooling altogether.
+     */
+    public int getPooledBuffersPerSize() {
+        return pooledBuffersPerSize;
+    }
+
+    public void setPooledBuffersPerSize(int pooledBuffersPerSize) {
+        this.pooledBuffersPerSize = pooledBuffersPerSize;
+    }
+
+    /**
+     * How many messages may wait to be written to a single client before the
+     * slow-consumer policy kicks in.
+     */
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    public void setOutboundQueueCapacity(int outboundQueueCapacity) {
+        this.outboundQueueCapacity = outboundQueueCapacity;
+    }
+
+    public ChatServer.SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    public void setSlowConsumerPolicy(ChatServer.SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    /**
+     * The longest line, in bytes, a client may send. Longer lines are ignored.
+     */
+    public int getMaxLineLength() {
+        return maxLineLength;
+    }
+
+    public void setMaxLineLength(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * How long, in microseconds, a client's queued messages may wait for more to be
+     * written with them. Zero, the default, flushes at the end of the current event
+     * loop iteration or as soon as a writer thread is free. The nio engine rounds
+     * delays up to whole milliseconds.
+     */
+    public long getFlushDelayMicros() {
+        return flushDelayMicros;
+    }
+
+    public void setFlushDelayMicros(long flushDelayMicros) {
+        this.flushDelayMicros = flushDelayMicros;
+    }
+
+    /**
+     * How many bytes may be queued for a client before a delayed flush is brought
+     * forward.
+     */
+    public int getFlushThresholdBytes() {
+        return flushThresholdBytes;
+    }
+
+    public void setFlushThresholdBytes(int flushThresholdBytes) {
+        this.flushThresholdBytes = flushThresholdBytes;
+    }
+
+    /**
+     * How many of its latest messages each room keeps to replay to the clients that
+     * join it. Zero disables the history.
+     */
+    public int getHistorySize() {
+        return historySize;
+    }
+
+    public void setHistorySize(int historySize) {
+        this.historySize = historySize;
+    }
+
+    /**
+     * The peer addresses, as "host:port", of all the nodes of the cluster this server
+     * belongs to, in the same order on every node. Empty, the default, for a standalone
+     * server.
+     */
+    public List<String> getClusterNodes() {
+        return clusterNodes;
+    }
+
+    public void setClusterNodes(List<String> clusterNodes) {
+        this.clusterNodes = clusterNodes;
+    }
+
+    /**
+     * The index of this server's own peer address among the cluster nodes.
+     */
+    public int getClusterNode() {
+        return clusterNode;
+    }
+
+    public void setClusterNode(int clusterNode) {
+        this.clusterNode = clusterNode;
+    }
+
+    /**
+     * The secret shared by the nodes of the cluster, which a node has to prove it knows
+     * before its link is believed. A cluster cannot be started without one.
+     */
+    public String getClusterSecret() {
+        return clusterSecret;
+    }
+
+    public void setClusterSecret(String clusterSecret) {
+        this.clusterSecret = clusterSecret;
+    }
+
+    /**
+     * The directory of the journal of broadcast messages, or null, the default, to keep
+     * no journal.
+     */
+    public String getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    public void setJournalDirectory(String journalDirectory) {
+        this.journalDirectory = journalDirectory;
+    }
+
+    /**
+     * The size in bytes of each journal segment file.
+     */
+    public int getJournalSegmentBytes() {
+        return journalSegmentBytes;
+    }
+
+    public void setJournalSegmentBytes(int journalSegmentBytes) {
+        this.journalSegmentBytes = journalSegmentBytes;
+    }
+
+    /**
+     * How many journal segments are kept before the oldest are deleted. Zero keeps them
+     * all.
+     */
+    public int getJournalRetainedSegments() {
+        return journalRetainedSegments;
+    }
+
+    public void setJournalRetainedSegments(int journalRetainedSegments) {
+        this.journalRetainedSegments = journalRetainedSegments;
+    }
+
+    /**
+     * How long, in milliseconds, a client may stay quiet before the server pings it to
+     * check that it is still there. Zero never pings.
+     */
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * How long, in milliseconds, a client may stay quiet, pings unanswered, before its
+     * connection is closed. Zero keeps quiet clients forever.
+     */
+    public long getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    public void setReadTimeoutMillis(long readTimeoutMillis) {
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * The most client connections the server keeps open at once; any more are told
+     * "BUSY" and closed. Zero, the default, means the thread pool size in
+     * {@link ChatServer.Mode#THREADS} mode, so that no client is kept waiting for a
+     * thread, and {@link #DEFAULT_MAX_CONNECTIONS} in the other modes.
+     */
+    public int getMaxConnections() {
+        if (maxConnections > 0) {
+            return maxConnections;
+        }
+        return mode == ChatServer.Mode.THREADS ? threadPoolSize : DEFAULT_MAX_CONNECTIONS;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * The most client connections the server keeps open from a single IP address. Zero,
+     * the default, sets no limit besides {@link #getMaxConnections()}.
+     */
+    public int getMaxConnectionsPerAddress() {
+        return maxConnectionsPerAddress;
+    }
+
+    public void setMaxConnectionsPerAddress(int maxConnectionsPerAddress) {
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+    }
+
+    /**
+     * How many connections the operating system may hold for the server before they are
+     * accepted.
+     */
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    public void setAcceptBacklog(int acceptBacklog) {
+        this.acceptBacklog = acceptBacklog;
+    }
+
+    /**
+     * How many lines per second a named client may send, with bursts of up to a
+     * second's worth. Zero, the default, sets no limit.
+     */
+    public double getMaxMessagesPerSecond() {
+        return maxMessagesPerSecond;
+    }
+
+    public void setMaxMessagesPerSecond(double maxMessagesPerSecond) {
+        this.maxMessagesPerSecond = maxMessagesPerSecond;
+    }
+
+    /**
+     * How many bytes of lines per second a named client may send, with bursts of up to
+     * a second's worth or one line of the maximum length, whichever is more. Zero, the
+     * default, sets no limit.
+     */
+    public double getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    public void setMaxBytesPerSecond(double maxBytesPerSecond) {
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /**
+     * What to do with the lines of a client that sends faster than it may.
+     */
+    public ChatServer.RateLimitPolicy getRateLimitPolicy() {
+        return rateLimitPolicy;
+    }
+
+    public void setRateLimitPolicy(ChatServer.RateLimitPolicy rateLimitPolicy) {
+        this.rateLimitPolicy = rateLimitPolicy;
+    }
+
+    /**
+     * The directory of the mailboxes that keep private messages for clients while they
+     * are offline, or null, the default, to keep no mailboxes.
+     */
+    public String getMailboxDirectory() {
+        return mailboxDirectory;
+    }
+
+    public void setMailboxDirectory(String mailboxDirectory) {
+        this.mailboxDirectory = mailboxDirectory;
+    }
+
+    /**
+     * The most bytes of messages a single mailbox holds.
+     */
+    public int getMailboxBytes() {
+        return mailboxBytes;
+    }
+
+    public void setMailboxBytes(int mailboxBytes) {
+        this.mailboxBytes = mailboxBytes;
+    }
+
+    /**
+     * How long the mailbox of a client that does not come back is kept, a week by
+     * default. Zero keeps it until the client is back.
+     */
+    public long getMailboxExpiryMillis() {
+        return mailboxExpiryMillis;
+    }
+
+    public void setMailboxExpiryMillis(long mailboxExpiryMillis) {
+        this.mailboxExpiryMillis = mailboxExpiryMillis;
+    }
+
+    /**
+     * The most mailboxes kept at once; names that leave while they are all taken get
+     * none.
+     */
+    public int getMaxMailboxes() {
+        return maxMailboxes;
+    }
+
+    public void setMaxMailboxes(int maxMailboxes) {
+        this.maxMailboxes = maxMailboxes;
+    }
+
+    /**
+     * How long the name and rooms of a client that lost its connection are held for it
+     * to resume its session, see {@link Frame#RESUME}. Zero, the default, lets the
+     * client leave at once, as if it had quit.
+     */
+    public long getResumeGraceMillis() {
+        return resumeGraceMillis;
+    }
+
+    public void setResumeGraceMillis(long resumeGraceMillis) {
+        this.resumeGraceMillis = resumeGraceMillis;
+    }
+
+    /**
+     * The number of latest broadcasts kept for the clients that resume their sessions,
+     * over all rooms.
+     */
+    public int getResumeBufferSize() {
+        return resumeBufferSize;
+    }
+
+    public void setResumeBufferSize(int resumeBufferSize) {
+        this.resumeBufferSize = resumeBufferSize;
+    }
+
+    /**
+     * The number of latest chat messages, over all rooms, that clients can search with
+     * "/search", see {@link SearchIndex}. Zero, the default, disables searching.
+     */
+    public int getSearchIndexSize() {
+        return searchIndexSize;
+    }
+
+    public void setSearchIndexSize(int searchIndexSize) {
+        this.searchIndexSize = searchIndexSize;
+    }
+
+    /**
+     * The number of threads that share the fan-out of broadcasts in large rooms. Zero
+     * leaves every fan-out to the thread of the sender.
+     */
+    public int getFanOutThreads() {
+        return fanOutThreads;
+    }
+
+    public void setFanOutThreads(int fanOutThreads) {
+        this.fanOutThreads = fanOutThreads;
+    }
+
+    /**
+     * The number of members from which a room's broadcasts are fanned out in parallel
+     * by the fan-out threads rather than by the thread of the sender. Zero disables
+     * parallel fan-out.
+     */
+    public int getParallelFanOutThreshold() {
+        return parallelFanOutThreshold;
+    }
+
+    public void setParallelFanOutThreshold(int parallelFanOutThreshold) {
+        this.parallelFanOutThreshold = parallelFanOutThreshold;
+    }
+
+    /**
+     * The port clients upload and download files through, see {@link FileTransfers}.
+     * Zero, the default, disables file transfers.
+     */
+    public int getFileTransferPort() {
+        return fileTransferPort;
+    }
+
+    public void setFileTransferPort(int fileTransferPort) {
+        this.fileTransferPort = fileTransferPort;
+    }
+
+    /**
+     * The largest file in bytes a client may send to another.
+     */
+    public long getMaxFileBytes() {
+        return maxFileBytes;
+    }
+
+    public void setMaxFileBytes(long maxFileBytes) {
+        this.maxFileBytes = maxFileBytes;
+    }
+
+    /**
+     * How long, in milliseconds, an upload or download may go without moving a byte
+     * before it is cancelled.
+     */
+    public long getFileTransferTimeoutMillis() {
+        return fileTransferTimeoutMillis;
+    }
+
+    public void setFileTransferTimeoutMillis(long fileTransferTimeoutMillis) {
+        this.fileTransferTimeoutMillis = fileTransferTimeoutMillis;
+    }
+
+    /**
+     * The most bytes the files on offer may take up on the server's disk together.
+     */
+    public long getMaxSpoolBytes() {
+        return maxSpoolBytes;
+    }
+
+    public void setMaxSpoolBytes(long maxSpoolBytes) {
+        this.maxSpoolBytes = maxSpoolBytes;
+    }
+}
@@ -0,0 +1,100 @@
+package basic_demo;
+
+
+/**
+ * The live metrics of a {@link ChatServer}, registered with the platform MBean server
+ * as "basic_demo:type=ChatServer,port=&lt;port&gt;" so that they can be watched with
+ * JConsole, VisualVM or any other JMX client. The same figures are shown to chat
+ * clients by the /stats command.
+ *
+ * Rates are averaged over the last ten seconds; counts and fan-out times cover the
+ * whole life of the server.
+ */
+public interface ChatServerMXBean {
+
+    /** Open client connections, named or not, including those waiting for a thread. */
+    int getActiveConnections();
+
+    /** Clients that have a screen name. */
+    int getClientCount();
+
+    /** Handler threads servicing a client, with the threads engine; 0 otherwise. */
+    int getHandlerThreadsBusy();
+
+    /** The size of the handler thread pool, with the threads engine; 0 otherwise. */
+    int getHandlerThreadPoolSize();
+
+    /** Connections accepted but waiting for a free handler thread. */
+    int getQueuedConnections();
+
+    /** Threads of the blocking engines currently writing to clients. */
+    int getWriterThreadsBusy();
+
+    double getMessagesReceivedPerSecond();
+
+    double getMessagesWrittenPerSecond();
+
+    long getMessagesReceived();
+
+    long getMessagesWritten();
+
+    long getBytesWritten();
+
+    long getOutboundQueueDepth();
+
+    long getDroppedMessages();
+
+    long getSlowConsumerDisconnects();
+
+    /** Screen names rejected because they were already in use. */
+    long getNameCollisions();
+
+    /** Connections closed because the client stopped answering pings. */
+    long getReapedConnections();
+
+    /** Connections turned away at once because of the connection limits. */
+    long getRejectedConnections();
+
+    /** Private messages sent with /msg, which bypass the rooms. */
+    long getDirectMessages();
+
+    /** Lines received over a client's rate limit, and so delayed or dropped. */
+    long getRateLimitedMessages();
+
+    /** Sessions taken over by a client that reconnected and resumed them. */
+    long getResumedSessions();
+
+    /** Chat messages added to the search index. */
+    long getIndexedMessages();
+
+    /** Chat messages left out of the search index because it could not keep up. */
+    long getSearchIndexDroppedMessages();
+
+    /** Private messages kept in mailboxes for clients that were offline. */
+    long getMailboxMessagesKept();
+
+    /** Kept messages handed over to their recipients once they were back. */
+    long getMailboxMessagesDelivered();
+
+    /** Files handed over to their recipients through the file transfer port. */
+    long getFilesTransferred();
+
+    long getFileBytesTransferred();
+
+    long getWriteCallsSaved();
+
+    double getAverageFlushDelayMicros();
+
+    /** Median time to queue a broadcast for all the local members of its room. */
+    double getFanOutMicrosP50();
+
+    double getFanOutMicrosP99();
+
+    double getFanOutMicrosMax();
+
+    int getConnectedPeers();
+
+    long getJournaledMessages();
+
+    long getJournalDroppedMessages();
+}
@@ -0,0 +1,788 @@
+package basic_demo;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+
+/**
+ * The chat protocol as seen from a single client, independently of how the client's
+ * socket is serviced. The server engines feed every line received from the client to
+ * {@link #onLine(LineDecoder.Line)}, and write out what the session queues for the client when
+ * asked to through {@link #flushLater(long)}. When that happens is up to the server's
+ * {@link FlushScheduler}: a flush is requested by the first message queued after the
+ * previous one started, and writes out everything queued by then.
+ *
+ * A session starts by sending "SUBMITNAME" and keeps treating every line it receives as
+ * a screen name proposal until a unique one is accepted, at which point the client is
+ * sent the recent messages of the lobby. From then on every line is posted to the
+ * client's current room, except for these commands:
+ *
+ *   /join <room>    joins a room, creating it if needed, and makes it the current one,
+ *                   replaying the room's recent messages
+ *   /leave [room]   leaves a room, by default the current one
+ *   /rooms          lists the rooms with their number of members and messages per second
+ *   /msg <name> <text>
+ *                   sends a private message to one client, looked up by name rather
+ *                   than broadcast, and echoes it to the sender; if the server keeps
+ *                   mailboxes, a message for a client that has left is delivered when
+ *                   it is back, see {@link Mailboxes}
+ *   /send <name> <size> <file name>
+ *                   offers a file to another client; the client is answered "UPLOAD"
+ *                   and a token to upload the file with, see {@link FileTransfers};
+ *                   the size may be tagged ":<id>" to tell the answers apart
+ *   /search <terms> shows the latest chat messages of any room that contain all the
+ *                   terms, if the server keeps a {@link SearchIndex}
+ *   /stats          shows the server's metrics, see {@link ChatServerMXBean}
+ *   /quit           ends the session
+ *
+ * A named client that has been quiet for the server's idle timeout is sent "PING",
+ * which it answers with "PONG"; any line will do to show it is alive. Before it has a
+ * name "PONG" would be a name like any other, and is refused as one. A client that
+ * stays quiet for the read timeout, named or not, is disconnected, which frees
+ * whatever the engine holds for it. The engines check for this through
+ * {@link #checkIdle(long)}.
+ *
+ * A client that loses its connection, as opposed to quitting, may be given a grace
+ * period to resume its session from a new one, see {@link Frame#RESUME}. Every
+ * session it gets a name in is given a fresh random resume token, which the client has
+ * to show to resume it, so that nobody else can take over its name by guessing. While
+ * waiting the session is parked: it holds on to the client's name but is out of its
+ * rooms, the others are not told it left, and private messages go to its mailbox if
+ * the server keeps them. The session resuming it takes over the name and rooms, and is
+ * sent what was broadcast in them since the sequence number the client gave. Only if
+ * the grace period runs out is the client taken to have left.
+ *
+ * The server may limit how many lines and bytes a named client sends per second. The
+ * lines of a client over its limit are either held back, by not reading from it until
+ * it is within the limit again, or thrown away, see {@link ChatServer.RateLimitPolicy}.
+ * Either way the client's flood never reaches the other clients.
+ *
+ * Instead of its first name a client may ask for the binary protocol, see {@link Frame}.
+ * From then on its lines arrive as frames, which the session's decoder unpacks, and
+ * the engine writes the binary form of every message queued for it.
+ *
+ * The rooms of a session are only touched by the engine thread servicing the client,
+ * and once it is parked by whoever takes it out of parking.
+ */
+abstract class ChatSession {
+
+    private final static Logger LOGGER = LogManager.getLogger(ChatSession.class);
+
+    // Hands out the shard keys, round robin so that the shards come out even.
+    private static final AtomicInteger SHARD_KEYS = new AtomicInteger();
+    private static final SecureRandom RESUME_TOKENS = new SecureRandom();
+
+    protected final ChatServer server;
+    protected final OutboundQueue outbound;
+    protected final LineDecoder decoder;
+    private final InetAddress address;
+    private final int shardKey = SHARD_KEYS.getAndIncrement();
+    private volatile boolean binary;
+    private String name;
+    private final Map<String, ChatRoom> rooms = new LinkedHashMap<String, ChatRoom>();
+    private ChatRoom currentRoom;
+    private final AtomicBoolean flushPending = new AtomicBoolean();
+    private volatile boolean flushDelayed;
+    private volatile long flushRequestedAt;
+    private volatile boolean ended;
+    private volatile boolean quitting;
+    private final AtomicBoolean parked = new AtomicBoolean();
+    private volatile String resumeToken;
+    private long lastHeard;
+    private boolean pinged;
+    // Whether the client has answered a SUBMITNAME, after which it may no longer resume.
+    private boolean answeredName;
+    private final TokenBucket messageTokens;
+    private final TokenBucket byteTokens;
+    private boolean warnedOfDrops;
+
+    /**
+     * Creates a session that is not counted against the server's connection limits.
+     */
+    protected ChatSession(ChatServer server) {
+        this(server, null);
+    }
+
+    /**
+     * Creates the session of a connection from the given address, which the server has
+     * admitted and releases again when the session ends.
+     */
+    protected ChatSession(ChatServer server, InetAddress address) {
+        this.server = server;
+        this.address = address;
+        this.outbound = server.newOutboundQueue();
+        this.decoder = server.newLineDecoder();
+        this.messageTokens = server.newMessageBucket();
+        this.byteTokens = server.newByteBucket();
+    }
+
+    /**
+     * Arranges for the messages in the outbound queue to be written to the client after
+     * the given delay, or as soon as possible for 0, without blocking the calling
+     * thread. The engine calls {@link #flushStarted()} when it gets to it.
+     */
+    abstract void flushLater(long delayNanos);
+
+    /**
+     * Waits for a result the session cannot do without, such as a screen name claimed
+     * over a cluster, and then hands it, or null if it failed, to the given callback on
+     * the engine thread servicing the client. No further lines are handled meanwhile.
+     * Blocking engines may simply wait for the result.
+     */
+    abstract <T> void await(CompletableFuture<T> future, Consumer<T> then);
+
+    /**
+     * Closes the connection from any thread. The engine notices the closed connection
+     * and ends the session as usual.
+     */
+    abstract void disconnect();
+
+    /**
+     * Queues an encoded protocol line for the client. May be called from any thread
+     * and never waits for the client. The caller keeps its own reference to the
+     * message.
+     */
+    void send(EncodedMessage message) {
+        if (outbound.offer(message)) {
+            requestFlush();
+        } else {
+            LOGGER.info((name != null ? name : "A client") + " cannot keep up and is disconnected");
+            server.slowConsumerDisconnected();
+            disconnect();
+        }
+    }
+
+    private void requestFlush() {
+        FlushScheduler flushes = server.getFlushScheduler();
+        if (flushPending.compareAndSet(false, true)) {
+            flushRequestedAt = System.nanoTime();
+            long delay = flushes.delayFor(outbound.bytes());
+            flushDelayed = delay > 0;
+            flushLater(delay);
+        } else if (flushDelayed && outbound.bytes() >= flushes.getThresholdBytes()) {
+            // Enough has piled up not to wait for the delayed flush any longer. Whichever
+            // of the two runs second finds the queue empty.
+            flushDelayed = false;
+            flushLater(0);
+        }
+    }
+
+    /**
+     * Tells the session that the engine is about to write out the outbound queue, so
+     * that the next message queued requests another flush. Returns the time the flush
+     * was requested at, or 0 if the engine flushes on its own account.
+     */
+    long flushStarted() {
+        long requestedAt = flushRequestedAt;
+        flushRequestedAt = 0;
+        flushDelayed = false;
+        flushPending.set(false);
+        return requestedAt;
+    }
+
+    /**
+     * Delivers a single protocol line to this client only.
+     */
+    void send(String line) {
+        EncodedMessage message = EncodedMessage.encode(line, server.getBufferPool());
+        send(message);
+        message.release();
+    }
+
+    /**
+     * The number of messages waiting to be written to the client.
+     */
+    int queuedMessages() {
+        return outbound.depth();
+    }
+
+    /**
+     * Whether the client speaks the binary protocol, i.e. whether messages must be
+     * written to it as frames.
+     */
+    boolean isBinary() {
+        return binary;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * A number fixed for the life of the session, which decides the shard it falls into
+     * when a large room fans out in parallel.
+     */
+    int getShardKey() {
+        return shardKey;
+    }
+
+    /**
+     * Greets a freshly connected client by asking it for a screen name.
+     */
+    void start() {
+        lastHeard = System.nanoTime();
+        send("SUBMITNAME");
+    }
+
+    /**
+     * Handles one line received from the client. Returns false when the client asked to
+     * leave, in which case the caller should close the connection.
+     */
+    boolean onLine(LineDecoder.Line line) {
+        server.messageReceived();
+        lastHeard = System.nanoTime();
+        pinged = false;
+        if (line.isTooLong()) {
+            send("MESSAGE Your line was too long and has been ignored");
+            return true;
+        }
+
+        if (binary && line.frameType() != Frame.LINE) {
+            return true;
+        }
+
+        if (name == null) {
+            if (!binary && line.startsWith(Frame.REQUEST)) {
+                // The answer is the last line the client gets before the frames start.
+                EncodedMessage accepted = EncodedMessage.lineOnly(Frame.ACCEPTED, server.getBufferPool());
+                send(accepted);
+                accepted.release();
+                binary = true;
+                decoder.switchToFrames();
+                send("SUBMITNAME");
+                return true;
+            }
+
+            // Only the answer to the first SUBMITNAME may resume a session.
+            boolean first = !answeredName;
+            answeredName = true;
+            if (line.startsWith(Frame.RESUME + " ")) {
+                if (first) {
+                    resume(line.argument());
+                } else {
+                    send("MESSAGE Names may not start with " + Frame.RESUME);
+                    send("SUBMITNAME");
+                }
+                return true;
+            }
+            String proposed = line.toString();
+            if (proposed.isEmpty()) {
+                send("SUBMITNAME");
+                return true;
+            }
+            if (proposed.equals(Frame.PONG)) {
+                send("MESSAGE " + Frame.PONG + " may not be used as a name");
+                send("SUBMITNAME");
+                return true;
+            }
+            claim(proposed);
+            return true;
+        }
+
+        if (line.length() == Frame.PONG.length() && line.startsWith(Frame.PONG)) {
+            return true;
+        }
+
+        if (messageTokens != null || byteTokens != null) {
+            return limit(line);
+        }
+        return handle(line);
+    }
+
+    /**
+     * Applies the rate limits to a line of a named client, handling it if and when it is
+     * within them.
+     */
+    private boolean limit(LineDecoder.Line line) {
+        long now = System.nanoTime();
+        if (server.getRateLimitPolicy() == ChatServer.RateLimitPolicy.DROP) {
+            if ((messageTokens != null && !messageTokens.has(1, now))
+                    || (byteTokens != null && !byteTokens.has(line.length(), now))) {
+                server.messageRateLimited();
+                if (!warnedOfDrops) {
+                    warnedOfDrops = true;
+                    send("MESSAGE You are sending too fast, some of your messages were dropped");
+                }
+                return true;
+            }
+            warnedOfDrops = false;
+        }
+
+        long wait = 0;
+        if (messageTokens != null) {
+            wait = messageTokens.take(1, now);
+        }
+        if (byteTokens != null) {
+            wait = Math.max(wait, byteTokens.take(line.length(), now));
+        }
+        if (wait == 0) {
+            return handle(line);
+        }
+        // Nothing more is read from the client meanwhile, so the line stays intact.
+        server.messageRateLimited();
+        await(CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(wait, TimeUnit.NANOSECONDS)),
+                ignored -> {
+                    if (!handle(line)) {
+                        disconnect();
+                    }
+                });
+        return true;
+    }
+
+    /**
+     * Handles a line of a named client: a command or a post to the current room.
+     */
+    private boolean handle(LineDecoder.Line line) {
+        if (line.startsWithIgnoreCase("/quit")) {
+            quitting = true;
+            return false;
+        } else if (line.isCommand("/join")) {
+            join(line.argument());
+        } else if (line.isCommand("/leave")) {
+            leave(line.argument());
+        } else if (line.isCommand("/rooms")) {
+            listRooms();
+        } else if (line.isCommand("/msg")) {
+            sendPrivately(line.argument());
+        } else if (line.isCommand("/send")) {
+            offerFile(line.argument());
+        } else if (line.isCommand("/search")) {
+            search(line.argument());
+        } else if (line.isCommand("/stats")) {
+            showStats();
+        } else if (currentRoom != null) {
+            currentRoom.post(this, line);
+            FanOutPool fanOut = server.getFanOutPool();
+            CompletableFuture<Void> backlog = fanOut == null ? null : fanOut.backlog();
+            if (backlog != null) {
+                // Nothing more is read from the client until the fan-out has caught up.
+                await(backlog, ignored -> {});
+            }
+        } else {
+            send("MESSAGE You are not in any room, /join one first");
+        }
+        return true;
+    }
+
+    private void claim(String proposed) {
+        CompletableFuture<Boolean> claim = server.claim(proposed, this);
+        if (claim.isDone()) {
+            accept(proposed, claim.join());
+        } else {
+            await(claim, claimed -> accept(proposed, Boolean.TRUE.equals(claimed)));
+        }
+    }
+
+    private void accept(String proposed, boolean claimed) {
+        if (!claimed) {
+            server.nameCollided();
+            send("SUBMITNAME");
+            return;
+        }
+        if (ended) {
+            // The client went away while the name was being claimed.
+            server.unregister(proposed, this);
+            return;
+        }
+        name = proposed;
+        LOGGER.info("A new user has joined: " + name);
+
+        // Let everyone else in the lobby know that the new person has joined. The
+        // name is acknowledged last so that a client seeing NAMEACCEPTED is
+        // already in the audience, and followed by what was said in the lobby
+        // before the client arrived.
+        EncodedMessage[] history = recentMessages(ChatRoom.LOBBY);
+        enter(ChatRoom.LOBBY).announce(name + " has joined", this);
+        send("NAMEACCEPTED " + name);
+        issueResumeToken();
+        replay(history);
+        if (server.getMailboxes() != null) {
+            server.getMailboxes().deliver(this);
+        }
+    }
+
+    /**
+     * Takes over the name and rooms of a parked session, given "<name> <token>
+     * [sequence]", and sends the client the broadcasts it missed. Without a parked
+     * session to take over the name is claimed as usual, and one whose token does not
+     * match is not taken over, which leaves the name taken.
+     */
+    private void resume(String argument) {
+        String[] words = argument.split(" ");
+        String proposed = words[0];
+        if (proposed.isEmpty()) {
+            send("SUBMITNAME");
+            return;
+        }
+        String token = words.length > 1 ? words[1] : "";
+        long lastSequence = -1;
+        if (words.length > 2) {
+            try {
+                lastSequence = Long.parseLong(words[2]);
+            } catch (NumberFormatException e) {
+                // Resumes without replaying anything.
+            }
+        }
+        ChatSession previous = server.getParkedSession(proposed);
+        if (previous == null || !previous.holdsResumeToken(token) || !previous.parked.compareAndSet(true, false)) {
+            claim(proposed);
+            return;
+        }
+        if (!server.takeOver(proposed, previous, this)) {
+            previous.leaveChat();
+            send("SUBMITNAME");
+            return;
+        }
+        name = proposed;
+        LOGGER.info(name + " has resumed the session");
+
+        // The missed messages are taken before entering the rooms again, so that
+        // nothing is seen twice.
+        List<EncodedMessage> missed = new ArrayList<EncodedMessage>();
+        boolean complete = lastSequence < 0 || server.getResumeBuffer() == null
+                || server.getResumeBuffer().since(lastSequence, previous.rooms.keySet(), missed);
+        for (String roomName : previous.rooms.keySet()) {
+            enter(roomName);
+        }
+        if (previous.currentRoom != null) {
+            currentRoom = rooms.get(previous.currentRoom.getName());
+        }
+        send("NAMEACCEPTED " + name);
+        issueResumeToken();
+        if (lastSequence < 0) {
+            send("MESSAGE The messages sent while you were away were not replayed");
+        } else if (!complete) {
+            send("MESSAGE Some of the messages sent while you were away are no longer available");
+        }
+        replay(missed.toArray(new EncodedMessage[0]));
+        if (server.getMailboxes() != null) {
+            server.getMailboxes().deliver(this);
+        }
+    }
+
+    /**
+     * Gives the client a fresh token to resume the session with, if the server lets
+     * clients resume.
+     */
+    private void issueResumeToken() {
+        if (server.getResumeGraceMillis() == 0) {
+            return;
+        }
+        byte[] random = new byte[16];
+        RESUME_TOKENS.nextBytes(random);
+        StringBuilder token = new StringBuilder();
+        for (byte b : random) {
+            token.append(String.format("%02x", b));
+        }
+        resumeToken = token.toString();
+        send(Frame.keyword(Frame.RESUMETOKEN) + " " + resumeToken);
+    }
+
+    /**
+     * Whether a client's token is the one this session was last given, compared in
+     * constant time.
+     */
+    private boolean holdsResumeToken(String token) {
+        String expected = resumeToken;
+        return expected != null && MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8),
+                token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Whether the session lost its connection and holds on to its name until it is
+     * resumed or its grace period is over.
+     */
+    boolean isParked() {
+        return parked.get();
+    }
+
+    /**
+     * The history of a room, taken before joining it so that nothing is seen twice.
+     */
+    private EncodedMessage[] recentMessages(String roomName) {
+        ChatRoom room = server.getRoom(roomName);
+        return room == null ? new EncodedMessage[0] : room.recentMessages();
+    }
+
+    private void replay(EncodedMessage[] history) {
+        for (EncodedMessage message : history) {
+            send(message);
+            message.release();
+        }
+    }
+
+    private ChatRoom enter(String roomName) {
+        ChatRoom room = server.join(roomName, this);
+        rooms.put(roomName, room);
+        currentRoom = room;
+        return room;
+    }
+
+    private void join(String roomName) {
+        if (!isValidRoomName(roomName)) {
+            send("MESSAGE Room names are 1 to 32 characters without spaces");
+            return;
+        }
+        ChatRoom room = rooms.get(roomName);
+        if (room != null) {
+            currentRoom = room;
+            send("MESSAGE Now talking in [" + roomName + "]");
+            return;
+        }
+        EncodedMessage[] history = recentMessages(roomName);
+        room = enter(roomName);
+        room.announce(name + " has joined the room", this);
+        send("MESSAGE You joined [" + roomName + "] with " + room.size() + " members");
+        replay(history);
+    }
+
+    private void leave(String roomName) {
+        ChatRoom room = roomName.isEmpty() ? currentRoom : rooms.get(roomName);
+        if (room == null) {
+            send("MESSAGE You are not in " + (roomName.isEmpty() ? "any room" : "[" + roomName + "]"));
+            return;
+        }
+        exit(room);
+        room.announce(name + " has left the room", null);
+        send("MESSAGE You left [" + room.getName() + "]");
+    }
+
+    private void exit(ChatRoom room) {
+        server.leave(room, this);
+        rooms.remove(room.getName());
+        if (currentRoom == room) {
+            // Fall back to the most recently joined of the remaining rooms.
+            currentRoom = null;
+            for (ChatRoom remaining : rooms.values()) {
+                currentRoom = remaining;
+            }
+        }
+    }
+
+    private void sendPrivately(String argument) {
+        int space = argument.indexOf(' ');
+        String text = space < 0 ? "" : argument.substring(space + 1).trim();
+        if (text.isEmpty()) {
+            send("MESSAGE Usage: /msg <name> <text>");
+            return;
+        }
+        String to = argument.substring(0, space);
+        ChatSession recipient = server.getSession(to);
+        if (recipient == null) {
+            keepPrivately(to, text);
+            return;
+        }
+        server.directMessageSent();
+        recipient.send("MESSAGE " + name + " (private): " + text);
+        if (recipient != this) {
+            send("MESSAGE To " + to + " (private): " + text);
+        }
+    }
+
+    private void keepPrivately(String to, String text) {
+        Mailboxes mailboxes = server.getMailboxes();
+        if (mailboxes == null) {
+            sendNoSuchClient(to);
+            return;
+        }
+        EncodedMessage message = EncodedMessage.encode("MESSAGE " + name + " (private): " + text, server.getBufferPool());
+        Mailboxes.Delivery delivery = mailboxes.keep(to, message, this);
+        message.release();
+        if (delivery == Mailboxes.Delivery.KEPT) {
+            server.directMessageSent();
+        } else if (delivery == Mailboxes.Delivery.FULL) {
+            send("MESSAGE The mailbox of " + to + " is full");
+        } else {
+            sendNoSuchClient(to);
+        }
+    }
+
+    private void sendNoSuchClient(String name) {
+        send("MESSAGE No one called " + name + " is connected"
+                + (server.getCluster() != null ? " to this server" : ""));
+    }
+
+    private void offerFile(String argument) {
+        FileTransfers files = server.getFileTransfers();
+        if (files == null) {
+            send("MESSAGE File transfers are not enabled on this server");
+            return;
+        }
+        String[] words = argument.split(" ", 3);
+        long size = -1;
+        // The id a client may tag its offer with, to be echoed in the answer.
+        String tag = "";
+        if (words.length == 3) {
+            int colon = words[1].indexOf(':');
+            if (colon >= 0) {
+                tag = words[1].substring(colon);
+            }
+            try {
+                size = Long.parseLong(colon < 0 ? words[1] : words[1].substring(0, colon));
+            } catch (NumberFormatException e) {
+                // Reported below.
+            }
+        }
+        String fileName = words.length == 3 ? words[2].trim() : "";
+        if (size < 0 || fileName.isEmpty()) {
+            send("MESSAGE Usage: /send <name> <size> <file name>");
+        } else if (fileName.indexOf('/') >= 0 || fileName.indexOf('\\') >= 0) {
+            send("MESSAGE File names may not contain a path");
+        } else if (size > files.getMaxFileBytes()) {
+            send("MESSAGE Files may be at most " + files.getMaxFileBytes() + " bytes");
+        } else if (server.getSession(words[0]) == null) {
+            sendNoSuchClient(words[0]);
+        } else {
+            String token = files.offer(this, words[0], fileName, size);
+            if (token != null) {
+                send("UPLOAD " + files.getPort() + " " + token + " " + size + tag + " " + fileName);
+            }
+        }
+    }
+
+    private void search(String query) {
+        SearchIndex index = server.getSearchIndex();
+        if (index == null) {
+            send("MESSAGE Searching is not enabled on this server");
+        } else if (SearchIndex.terms(query).isEmpty()) {
+            send("MESSAGE Usage: /search <terms>");
+        } else {
+            await(index.search(query), matches -> showMatches(query, matches));
+        }
+    }
+
+    private void showMatches(String query, SearchIndex.Matches matches) {
+        if (matches == null) {
+            send("MESSAGE Searching is too busy right now, try again later");
+        } else if (matches.total == 0) {
+            send("MESSAGE No messages match " + query);
+        } else {
+            send("MESSAGE " + matches.total + " messages match " + query
+                    + (matches.total > matches.latest.size() ? ", the latest " + matches.latest.size() + ":" : ":"));
+            for (String text : matches.latest) {
+                send("MESSAGE   " + text);
+            }
+        }
+    }
+
+    private void listRooms() {
+        for (ChatRoom room : server.getRooms()) {
+            send(String.format("MESSAGE [%s] %d members, %.1f msgs/s",
+                    room.getName(), room.size(), room.messagesPerSecond()));
+        }
+    }
+
+    private void showStats() {
+        String threads = server.getMode() != ChatServer.Mode.THREADS ? ""
+                : String.format(", handler threads %d/%d busy, %d connections waiting",
+                        server.getHandlerThreadsBusy(), server.getHandlerThreadPoolSize(), server.getQueuedConnections());
+        send(String.format("MESSAGE Connections: %d open, %d named, %d reaped, %d rejected%s",
+                server.getActiveConnections(), server.getClientCount(), server.getReapedConnections(),
+                server.getRejectedConnections(), threads));
+        send(String.format("MESSAGE Messages: %.1f/s in, %.1f/s out, %d bytes written, %d queued, %d direct, %d rate limited",
+                server.getMessagesReceivedPerSecond(), server.getMessagesWrittenPerSecond(),
+                server.getBytesWritten(), server.getOutboundQueueDepth(), server.getDirectMessages(),
+                server.getRateLimitedMessages()));
+        send(String.format("MESSAGE Fan-out: p50 %.1f us, p99 %.1f us, max %.1f us",
+                server.getFanOutMicrosP50(), server.getFanOutMicrosP99(), server.getFanOutMicrosMax()));
+        send(String.format("MESSAGE Slow consumers: %d messages dropped, %d disconnected; %d name collisions",
+                server.getDroppedMessages(), server.getSlowConsumerDisconnects(), server.getNameCollisions()));
+    }
+
+    private static boolean isValidRoomName(String roomName) {
+        return !roomName.isEmpty() && roomName.length() <= 32 && roomName.indexOf(' ') < 0;
+    }
+
+    /**
+     * Pings the client once it has been quiet for the idle timeout and disconnects it
+     * once it has been quiet for the read timeout. Called now and then by the engine
+     * thread servicing the client; returns false if the client was disconnected.
+     */
+    boolean checkIdle(long now) {
+        long quiet = now - lastHeard;
+        long readTimeout = server.getReadTimeoutNanos();
+        if (readTimeout > 0 && quiet >= readTimeout) {
+            LOGGER.info((name != null ? name : "A client") + " stopped answering and is disconnected");
+            server.connectionReaped();
+            disconnect();
+            return false;
+        }
+        long idleTimeout = server.getIdleTimeoutNanos();
+        // A client choosing its name would take the answer for one.
+        if (idleTimeout > 0 && quiet >= idleTimeout && !pinged && name != null) {
+            pinged = true;
+            send("PING");
+        }
+        return true;
+    }
+
+    /**
+     * Takes the client, if it ever got a name, out of its rooms. Unless it may resume
+     * the session, its name is also released and the members of each of its rooms told
+     * that it has left. Must be called exactly once when the connection goes away.
+     */
+    void end() {
+        ended = true;
+        if (address != null) {
+            server.connectionClosed(address);
+        }
+        if (name != null) {
+            for (ChatRoom room : rooms.values()) {
+                server.leave(room, this);
+            }
+            long grace = server.getResumeGraceMillis();
+            if (quitting || grace == 0) {
+                leaveChat();
+            } else {
+                park(grace);
+            }
+        }
+        outbound.clear();
+    }
+
+    /**
+     * Holds on to the client's name, quietly, until it resumes the session or the grace
+     * period is over.
+     */
+    private void park(long grace) {
+        if (server.getMailboxes() != null) {
+            server.getMailboxes().open(name);
+        }
+        parked.set(true);
+        LOGGER.info(name + " lost the connection and may resume it");
+        CompletableFuture.delayedExecutor(grace, TimeUnit.MILLISECONDS).execute(() -> {
+            if (parked.compareAndSet(true, false)) {
+                leaveChat();
+            }
+        });
+    }
+
+    /**
+     * Releases the name of a client that is out of its rooms, and tells their members
+     * that it has left.
+     */
+    private void leaveChat() {
+        server.unregister(name, this);
+        if (server.getMailboxes() != null) {
+            server.getMailboxes().open(name);
+        }
+        LOGGER.info(name + " has left the chat");
+        for (ChatRoom room : rooms.values()) {
+            room.announce(room.isLobby() ? name + " has left" : name + " has left the room", null);
+        }
+    }
+}
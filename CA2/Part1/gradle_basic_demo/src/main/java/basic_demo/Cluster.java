@@ -0,0 +1,554 @@
+package basic_demo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+
+/**
+ * Federates several chat servers, typically separate processes, into a single chat.
+ * Every node is configured with the same list of peer addresses, its own included, and
+ * opens one TCP link to each of the other nodes for the traffic it originates. It
+ * receives their traffic over the links they open in turn.
+ *
+ * Two kinds of traffic travel over the links:
+ *
+ *   Room broadcasts. A message broadcast in a room is relayed once to every peer as a
+ *   binary {@link Frame}, and each peer fans it out to its own members of the room.
+ *   Relayed messages are never relayed any further.
+ *
+ *   Screen name claims. Every name is owned by one node, chosen by hashing the name.
+ *   The owner grants the name to the first node that claims it, and keeps it reserved
+ *   until that node releases it or the link it claimed the name over goes away, which
+ *   makes names unique over the whole cluster. A claim that cannot reach the owner is
+ *   refused, and so is one whose answer cannot be sent back. Whenever a node links up
+ *   to another one, it first tells it which of the names it owns are still in use
+ *   here, so that the names survive a link that broke for a moment.
+ *
+ * Writes to a link are queued and done by the link's own thread, so relaying never
+ * blocks the thread that broadcasts. A record counts as sent once the buffer it was
+ * written to has been flushed; those still in the buffer when a link breaks count as
+ * lost. The membership of the cluster is fixed by the configuration; a node that goes
+ * away is reconnected to when it comes back.
+ *
+ * A node listens for links on the address of its own peer entry only, and every link
+ * starts with a handshake proving that the linking node knows the secret shared by
+ * the cluster: the listening node sends a random challenge, and the linking node
+ * answers with its index and the HMAC-SHA256 of the challenge and index, keyed with
+ * the secret. A link that fails the handshake is closed before anything on it is
+ * believed. The traffic itself is neither encrypted nor signed, so the peer ports
+ * still belong on a network that only the nodes can reach.
+ */
+class Cluster {
+
+    private final static Logger LOGGER = LogManager.getLogger(Cluster.class);
+
+    static final byte RELAY = 1;
+    static final byte CLAIM = 2;
+    static final byte CLAIMED = 3;
+    static final byte RELEASE = 4;
+    static final byte HELD = 5;
+
+    private static final long CLAIM_TIMEOUT_MILLIS = 5000;
+    private static final long RECONNECT_MILLIS = 500;
+    private static final int LINK_CAPACITY = 65536;
+    private static final int MAX_FRAME_LENGTH = 1 << 20;
+    private static final int CHALLENGE_LENGTH = 16;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+    private static final SecureRandom CHALLENGES = new SecureRandom();
+
+    private final ChatServer server;
+    private final int self;
+    private final InetSocketAddress[] nodes;
+    private final PeerLink[] links;
+    private final String secret;
+
+    // The names owned by this node, with the node and link they are granted to.
+    private final ConcurrentMap<String, Holder> claims = new ConcurrentHashMap<String, Holder>();
+    // The latest link from each other node; claims made over an earlier one are stale.
+    private final AtomicReferenceArray<Holder> latestLinks;
+    private final Holder local;
+    private final ConcurrentMap<Long, CompletableFuture<Boolean>> pendingClaims =
+            new ConcurrentHashMap<Long, CompletableFuture<Boolean>>();
+    private final AtomicLong claimIds = new AtomicLong();
+    private final LongAdder relayed = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder droppedRelays = new LongAdder();
+    private volatile ServerSocket listener;
+    // The links other nodes made to this one, to be closed when it stops.
+    private final Set<Socket> inbound = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates the cluster membership of a server. The nodes are "host:port" peer
+     * addresses, self is the index of the server's own address among them, and the
+     * secret is the one all the nodes share.
+     */
+    Cluster(ChatServer server, List<String> nodes, int self, String secret) {
+        if (self < 0 || self >= nodes.size()) {
+            throw new IllegalArgumentException("Node " + self + " is not one of the " + nodes.size() + " cluster nodes");
+        }
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("A cluster needs a secret shared by its nodes");
+        }
+        this.server = server;
+        this.self = self;
+        this.secret = secret;
+        this.nodes = new InetSocketAddress[nodes.size()];
+        this.links = new PeerLink[nodes.size()];
+        this.latestLinks = new AtomicReferenceArray<Holder>(nodes.size());
+        this.local = new Holder(self);
+        for (int i = 0; i < this.nodes.length; i++) {
+            this.nodes[i] = parse(nodes.get(i));
+            if (i != self) {
+                links[i] = new PeerLink(i);
+            }
+        }
+    }
+
+    private static InetSocketAddress parse(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Cluster node addresses look like host:port, not " + address);
+        }
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    /**
+     * Starts listening for the links of the other nodes and linking to them.
+     */
+    void start() throws IOException {
+        ServerSocket listener = new ServerSocket(nodes[self].getPort(), 50, nodes[self].getAddress());
+        this.listener = listener;
+        daemon(() -> {
+            try {
+                while (true) {
+                    Socket socket = listener.accept();
+                    daemon(() -> receive(socket), "Cluster Link from " + socket.getRemoteSocketAddress());
+                }
+            } catch (IOException e) {
+                if (!listener.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+        }, "Cluster Listener");
+        for (PeerLink link : links) {
+            if (link != null) {
+                link.thread = daemon(link, "Cluster Link to Node " + link.node);
+            }
+        }
+    }
+
+    /**
+     * Stops listening for the links of the other nodes, closes the ones they made and
+     * ends this node's own links to them.
+     */
+    void stop() {
+        if (listener != null) {
+            try { listener.close(); } catch (IOException e) {}
+        }
+        for (Socket socket : inbound) {
+            try { socket.close(); } catch (IOException e) {}
+        }
+        for (PeerLink link : links) {
+            if (link != null && link.thread != null) {
+                link.thread.interrupt();
+            }
+        }
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    private int owner(String name) {
+        return Math.floorMod(name.hashCode(), nodes.length);
+    }
+
+    /**
+     * Reserves a screen name over the whole cluster for this node. The result is
+     * false if the name is taken or its owner cannot be asked.
+     */
+    CompletableFuture<Boolean> claim(String name) {
+        int owner = owner(name);
+        if (owner == self) {
+            return CompletableFuture.completedFuture(claims.putIfAbsent(name, local) == null);
+        }
+        long id = claimIds.incrementAndGet();
+        CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+        pendingClaims.put(id, result);
+        result.completeOnTimeout(false, CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .whenComplete((granted, failure) -> pendingClaims.remove(id));
+        if (!links[owner].offer(out -> {
+            out.writeByte(CLAIM);
+            out.writeLong(id);
+            out.writeUTF(name);
+        })) {
+            LOGGER.info("Cannot check the name " + name + " with cluster node " + owner);
+            result.complete(false);
+        }
+        return result;
+    }
+
+    /**
+     * Gives up a screen name this node has claimed.
+     */
+    void release(String name) {
+        int owner = owner(name);
+        if (owner == self) {
+            claims.remove(name, local);
+        } else {
+            links[owner].offer(out -> {
+                out.writeByte(RELEASE);
+                out.writeUTF(name);
+            });
+        }
+    }
+
+    /**
+     * Sends a message broadcast in a room of this node to every peer, telling whether it
+     * is a chat message or a notice.
+     */
+    void relay(String room, EncodedMessage message, boolean chat) {
+        for (PeerLink link : links) {
+            if (link == null) {
+                continue;
+            }
+            message.retain();
+            boolean queued = link.offer(new Record() {
+                public void writeTo(DataOutputStream out) throws IOException {
+                    out.writeByte(RELAY);
+                    out.writeUTF(room);
+                    out.writeBoolean(chat);
+                    out.writeInt(message.length());
+                    message.writeTo(out, true);
+                }
+
+                public void done(boolean written) {
+                    message.release();
+                }
+            });
+            if (queued) {
+                relayed.increment();
+            } else {
+                droppedRelays.increment();
+            }
+        }
+    }
+
+    /**
+     * Reads the traffic of another node until its link goes away, at which point the
+     * names claimed over it are freed.
+     */
+    private void receive(Socket socket) {
+        int node = -1;
+        Holder holder = null;
+        inbound.add(socket);
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            byte[] challenge = new byte[CHALLENGE_LENGTH];
+            CHALLENGES.nextBytes(challenge);
+            socket.getOutputStream().write(challenge);
+            socket.getOutputStream().flush();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            int claimed = in.readInt();
+            if (claimed < 0 || claimed >= nodes.length || claimed == self) {
+                throw new IOException("Unknown cluster node " + claimed);
+            }
+            byte[] proof = new byte[proof(secret, challenge, claimed).length];
+            in.readFully(proof);
+            if (!MessageDigest.isEqual(proof, proof(secret, challenge, claimed))) {
+                throw new IOException("Cluster node " + claimed + " does not know the secret");
+            }
+            socket.setSoTimeout(0);
+            node = claimed;
+            holder = new Holder(node);
+            latestLinks.set(node, holder);
+            LOGGER.info("Cluster node " + node + " linked to us");
+            byte[] frame = new byte[512];
+            while (true) {
+                byte kind = in.readByte();
+                if (kind == RELAY) {
+                    String room = in.readUTF();
+                    boolean chat = in.readBoolean();
+                    int length = in.readInt();
+                    if (length < Frame.HEADER_LENGTH || length > MAX_FRAME_LENGTH) {
+                        throw new IOException("Bad relayed frame length " + length);
+                    }
+                    if (frame.length < length) {
+                        frame = new byte[Math.max(length, frame.length * 2)];
+                    }
+                    in.readFully(frame, 0, length);
+                    // Numbered afresh, so that the clients of this node see one sequence.
+                    ByteBuffer.wrap(frame).putLong(5, server.nextSequence());
+                    EncodedMessage message = EncodedMessage.copyOf(frame, length, server.getBufferPool());
+                    received.increment();
+                    server.deliver(room, message, chat);
+                    message.release();
+                } else if (kind == CLAIM) {
+                    long id = in.readLong();
+                    String name = in.readUTF();
+                    Holder claimer = holder;
+                    boolean granted = grant(name, claimer);
+                    links[node].offer(new Record() {
+                        public void writeTo(DataOutputStream out) throws IOException {
+                            out.writeByte(CLAIMED);
+                            out.writeLong(id);
+                            out.writeUTF(name);
+                            out.writeBoolean(granted);
+                        }
+
+                        public void done(boolean written) {
+                            if (granted && !written) {
+                                // The claimer will never know, and give up on the name.
+                                claims.remove(name, claimer);
+                            }
+                        }
+                    });
+                } else if (kind == CLAIMED) {
+                    long id = in.readLong();
+                    String name = in.readUTF();
+                    boolean granted = in.readBoolean();
+                    CompletableFuture<Boolean> pending = pendingClaims.remove(id);
+                    if ((pending == null || !pending.complete(granted)) && granted) {
+                        // Nobody is waiting for the name any more.
+                        release(name);
+                    }
+                } else if (kind == RELEASE) {
+                    int releaser = node;
+                    claims.computeIfPresent(in.readUTF(), (name, current) -> current.node == releaser ? null : current);
+                } else if (kind == HELD) {
+                    hold(in.readUTF(), holder);
+                } else {
+                    throw new IOException("Unknown cluster record " + kind);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.info("Lost the link from cluster node " + node + ": " + e);
+        } finally {
+            try { socket.close(); } catch (IOException e) {}
+            inbound.remove(socket);
+            if (holder != null) {
+                Holder gone = holder;
+                latestLinks.compareAndSet(gone.node, gone, null);
+                claims.values().removeIf(current -> current == gone);
+            }
+        }
+    }
+
+    /**
+     * Reserves a name owned by this node for the node claiming it over the given link,
+     * returning whether it was free. A name that node claimed over a link it has since
+     * replaced counts as free: it would have said it still held it when it linked up.
+     */
+    private boolean grant(String name, Holder claimer) {
+        return claims.compute(name, (n, current) ->
+                current == null || isStale(current) && current.node == claimer.node ? claimer : current) == claimer;
+    }
+
+    /**
+     * Moves a name a node still holds, as it says when it links up again, to its new
+     * link. Should the name have been granted to another node in the meantime, both
+     * nodes now have a session by that name; this is logged, and the name goes to
+     * whichever of them releases it last.
+     */
+    private void hold(String name, Holder holder) {
+        Holder current = claims.compute(name, (n, previous) ->
+                previous == null || previous.node == holder.node ? holder : previous);
+        if (current != holder) {
+            LOGGER.info("Cluster node " + holder.node + " still holds the name " + name
+                    + ", which has been granted to node " + current.node + " since");
+        }
+    }
+
+    private boolean isStale(Holder holder) {
+        return holder != local && holder != latestLinks.get(holder.node);
+    }
+
+    /**
+     * The number of other nodes this node currently has a link to.
+     */
+    int connectedPeers() {
+        int count = 0;
+        for (PeerLink link : links) {
+            if (link != null && link.connected) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    long relayedMessages() {
+        return relayed.sum();
+    }
+
+    long receivedMessages() {
+        return received.sum();
+    }
+
+    long droppedRelays() {
+        return droppedRelays.sum();
+    }
+
+    /**
+     * Something to write to a link. Done is called once, telling whether it was written
+     * or dropped.
+     */
+    /**
+     * What a node answers a link's challenge with to show that it knows the secret.
+     */
+    static byte[] proof(String secret, byte[] challenge, int node) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            mac.update(challenge);
+            mac.update(ByteBuffer.allocate(4).putInt(0, node));
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private interface Record {
+        void writeTo(DataOutputStream out) throws IOException;
+
+        default void done(boolean written) {
+        }
+    }
+
+    /**
+     * What the names granted to a node are held by: one link from that node, or this
+     * node itself. Holders are told apart by identity, so that a node's names on one
+     * link can be freed without touching those on the next.
+     */
+    private static final class Holder {
+        final int node;
+
+        Holder(int node) {
+            this.node = node;
+        }
+    }
+
+    /**
+     * The link to one other node. Its thread connects, reconnecting whenever the link
+     * breaks, tells the node which of its names are in use here, and then writes the
+     * queued records, flushing whenever the queue runs empty. Records offered while the
+     * link is down are refused.
+     */
+    private class PeerLink implements Runnable {
+        private final int node;
+        private final BlockingQueue<Record> records = new LinkedBlockingQueue<Record>(LINK_CAPACITY);
+        private volatile boolean connected;
+        volatile Thread thread;
+
+        PeerLink(int node) {
+            this.node = node;
+        }
+
+        boolean offer(Record record) {
+            if (connected && records.offer(record)) {
+                return true;
+            }
+            record.done(false);
+            return false;
+        }
+
+        public void run() {
+            while (true) {
+                List<Record> unflushed = new ArrayList<Record>();
+                try (Socket socket = new Socket()) {
+                    socket.connect(nodes[node]);
+                    socket.setTcpNoDelay(true);
+                    socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                    byte[] challenge = new byte[CHALLENGE_LENGTH];
+                    new DataInputStream(socket.getInputStream()).readFully(challenge);
+                    socket.setSoTimeout(0);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    out.writeInt(self);
+                    out.write(proof(secret, challenge, self));
+                    for (String name : server.getNames()) {
+                        if (owner(name) == node) {
+                            out.writeByte(HELD);
+                            out.writeUTF(name);
+                        }
+                    }
+                    out.flush();
+                    connected = true;
+                    LOGGER.info("Linked to cluster node " + node);
+                    while (true) {
+                        Record record = records.take();
+                        unflushed.add(record);
+                        record.writeTo(out);
+                        if (records.isEmpty()) {
+                            out.flush();
+                            for (Record sent : unflushed) {
+                                sent.done(true);
+                            }
+                            unflushed.clear();
+                        }
+                    }
+                } catch (IOException e) {
+                    if (connected) {
+                        LOGGER.info("Lost the link to cluster node " + node + ": " + e);
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped.
+                    disconnected(unflushed);
+                    return;
+                }
+
+                disconnected(unflushed);
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Fails the records written to a lost link but not flushed, and those still queued.
+         */
+        private void disconnected(List<Record> unflushed) {
+            connected = false;
+            for (Record lost : unflushed) {
+                lost.done(false);
+            }
+            Record record;
+            while ((record = records.poll()) != null) {
+                record.done(false);
+            }
+        }
+    }
+}
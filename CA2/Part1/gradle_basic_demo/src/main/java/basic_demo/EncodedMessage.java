@@ -0,0 +1,214 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A protocol message encoded once into a buffer that is shared by all of its
+ * recipients.
+ *
+ * A message is built as a binary {@link Frame}. Its line protocol form, UTF-8
+ * terminated by a newline, is derived from the frame the first time a line client
+ * needs it, so a message costs one encoding per protocol in use rather than one per
+ * recipient. Newlines inside the payload, which only binary clients can send, become
+ * spaces in the line form.
+ *
+ * Messages are reference counted. The creator holds the first reference, anybody who
+ * keeps the message beyond the call that handed it over takes another one with
+ * {@link #retain()}, and every holder calls {@link #release()} exactly once when done.
+ * When the last reference is released the buffers go back to their pool. The bytes of
+ * a message never change, so recipients read them through their own {@link #view}.
+ */
+final class EncodedMessage {
+
+    private static final ThreadLocal<CharsetEncoder> ENCODER = ThreadLocal.withInitial(() ->
+            StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+    private final ByteBuffer frame;
+    private final BufferPool pool;
+    private final boolean lineOnly;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private volatile ByteBuffer line;
+
+    private EncodedMessage(ByteBuffer frame, ByteBuffer line, BufferPool pool) {
+        this.frame = frame;
+        this.line = line;
+        this.pool = pool;
+        this.lineOnly = frame == null;
+    }
+
+    /**
+     * Encodes a protocol line such as "MESSAGE bob has joined". The first word is the
+     * keyword that gives the frame type, the rest is the payload.
+     */
+    static EncodedMessage encode(String line, BufferPool pool) {
+        return encode(line, 0, pool);
+    }
+
+    /**
+     * Encodes a protocol line, stamping its frame with a sequence number.
+     */
+    static EncodedMessage encode(String line, long sequence, BufferPool pool) {
+        int space = line.indexOf(' ');
+        String keyword = space < 0 ? line : line.substring(0, space);
+        String payload = space < 0 ? "" : line.substring(space + 1);
+
+        CharsetEncoder encoder = ENCODER.get();
+        ByteBuffer buffer = pool.acquire(Frame.HEADER_LENGTH + (int) (payload.length() * encoder.maxBytesPerChar()));
+        startFrame(buffer, Frame.typeOf(keyword), sequence);
+        encode(encoder, payload, buffer);
+        return new EncodedMessage(endFrame(buffer), null, pool);
+    }
+
+    /**
+     * Builds a message from a text prefix followed by a line received from a client,
+     * copying the line's bytes as they are instead of decoding and encoding them again.
+     */
+    static EncodedMessage encode(byte type, String prefix, LineDecoder.Line text, long sequence, BufferPool pool) {
+        CharsetEncoder encoder = ENCODER.get();
+        ByteBuffer buffer = pool.acquire(Frame.HEADER_LENGTH
+                + (int) (prefix.length() * encoder.maxBytesPerChar()) + text.length());
+        startFrame(buffer, type, sequence);
+        encode(encoder, prefix, buffer);
+        buffer.put(text.array(), text.offset(), text.length());
+        return new EncodedMessage(endFrame(buffer), null, pool);
+    }
+
+    /**
+     * Builds a message from a whole frame received from another node of the cluster.
+     */
+    static EncodedMessage copyOf(byte[] frame, int length, BufferPool pool) {
+        ByteBuffer buffer = pool.acquire(length);
+        buffer.put(frame, 0, length);
+        buffer.flip();
+        return new EncodedMessage(buffer, null, pool);
+    }
+
+    /**
+     * Encodes a line that is sent as a line even to binary clients. Only used while
+     * negotiating the protocol.
+     */
+    static EncodedMessage lineOnly(String line, BufferPool pool) {
+        CharsetEncoder encoder = ENCODER.get();
+        ByteBuffer buffer = pool.acquire((int) (line.length() * encoder.maxBytesPerChar()) + 1);
+        encode(encoder, line, buffer);
+        buffer.put((byte) '\n');
+        buffer.flip();
+        return new EncodedMessage(null, buffer, pool);
+    }
+
+    private static void startFrame(ByteBuffer buffer, byte type, long sequence) {
+        buffer.position(4);
+        buffer.put(type);
+        buffer.putLong(sequence);
+    }
+
+    private static ByteBuffer endFrame(ByteBuffer buffer) {
+        buffer.putInt(0, buffer.position() - 4);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void encode(CharsetEncoder encoder, String text, ByteBuffer buffer) {
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(text), buffer, true);
+        encoder.flush(buffer);
+    }
+
+    byte type() {
+        return lineOnly ? 0 : frame.get(4);
+    }
+
+    long sequence() {
+        return lineOnly ? 0 : frame.getLong(5);
+    }
+
+    /**
+     * The size of the message in bytes, as a frame. The line form differs by a few
+     * bytes at most, which is close enough for deciding when to flush.
+     */
+    int length() {
+        return lineOnly ? line.limit() : frame.limit();
+    }
+
+    /**
+     * Returns an independent read-only cursor over the message in the given protocol.
+     */
+    ByteBuffer view(boolean binary) {
+        return (binary && !lineOnly ? frame : line()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the whole message, in the given protocol, to a blocking stream.
+     */
+    void writeTo(OutputStream out, boolean binary) throws IOException {
+        ByteBuffer buffer = binary && !lineOnly ? frame : line();
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset(), buffer.limit());
+        } else {
+            Channels.newChannel(out).write(buffer.asReadOnlyBuffer());
+        }
+    }
+
+    /**
+     * The line form of the message, built from the frame on first use.
+     */
+    private ByteBuffer line() {
+        ByteBuffer result = line;
+        if (result == null) {
+            synchronized (this) {
+                result = line;
+                if (result == null) {
+                    line = result = toLine();
+                }
+            }
+        }
+        return result;
+    }
+
+    private ByteBuffer toLine() {
+        byte[] keyword = Frame.keyword(frame.get(4)).getBytes(StandardCharsets.US_ASCII);
+        int payloadLength = frame.limit() - Frame.HEADER_LENGTH;
+        ByteBuffer buffer = pool.acquire(keyword.length + 1 + payloadLength + 1);
+        buffer.put(keyword);
+        if (payloadLength > 0) {
+            buffer.put((byte) ' ');
+            for (int i = Frame.HEADER_LENGTH; i < frame.limit(); i++) {
+                byte b = frame.get(i);
+                buffer.put(b == '\n' || b == '\r' ? (byte) ' ' : b);
+            }
+        }
+        buffer.put((byte) '\n');
+        buffer.flip();
+        return buffer;
+    }
+
+    EncodedMessage retain() {
+        references.incrementAndGet();
+        return this;
+    }
+
+    void release() {
+        int left = references.decrementAndGet();
+        if (left == 0) {
+            if (frame != null) {
+                pool.release(frame);
+            }
+            if (line != null) {
+                pool.release(line);
+            }
+        } else if (left < 0) {
+            throw new IllegalStateException("Message released more often than retained");
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package basic_demo;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A few threads that share the fan-out of broadcasts in large rooms, so that queueing
+ * a message for tens of thousands of members takes a fraction of the time it would on
+ * the sender's thread alone.
+ *
+ * The members of a room are split into as many shards as there are threads, see
+ * {@link SessionRegistry#shards(int)}, and shard i of every room is always handed to
+ * thread i. A session falls into the same shard for as long as it lives and each
+ * thread runs its tasks in the order they were given, so whatever one sender
+ * broadcasts reaches every member in the order it was sent.
+ *
+ * Handing a broadcast to the threads never blocks, since the caller may be an event
+ * loop serving many other clients. Instead, once any thread has more than
+ * {@link #QUEUE_CAPACITY} broadcasts waiting, {@link #backlog()} tells the session of
+ * the sender to stop reading from its client until the threads have caught up, much
+ * like a client over its rate limit is throttled. Only the senders of chat messages
+ * are held back this way; notices and the broadcasts relayed by other nodes of a
+ * cluster are not, but their rate follows that of the senders.
+ *
+ * The threads are only started once there is a broadcast for them.
+ */
+class FanOutPool {
+
+    /** The most tasks waiting for any one thread before senders are held back. */
+    static final int QUEUE_CAPACITY = 1024;
+
+    private final ExecutorService[] threads;
+    private final AtomicInteger[] waiting;
+
+    FanOutPool(int size) {
+        threads = new ExecutorService[size];
+        waiting = new AtomicInteger[size];
+        for (int i = 0; i < size; i++) {
+            String name = "Fan-out " + i;
+            threads[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            });
+            waiting[i] = new AtomicInteger();
+        }
+    }
+
+    int size() {
+        return threads.length;
+    }
+
+    /**
+     * Runs a task on the thread of the given shard, after everything given to it before.
+     */
+    void execute(int shard, Runnable task) {
+        AtomicInteger count = waiting[shard];
+        count.incrementAndGet();
+        try {
+            threads[shard].execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    count.decrementAndGet();
+                }
+            });
+        } catch (RuntimeException e) {
+            count.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Null if the threads are keeping up, otherwise a future that completes once they
+     * have run everything given to them so far.
+     */
+    CompletableFuture<Void> backlog() {
+        for (AtomicInteger count : waiting) {
+            if (count.get() > QUEUE_CAPACITY) {
+                CompletableFuture<Void> caughtUp = new CompletableFuture<Void>();
+                AtomicInteger remaining = new AtomicInteger(threads.length);
+                for (ExecutorService thread : threads) {
+                    thread.execute(() -> {
+                        if (remaining.decrementAndGet() == 0) {
+                            caughtUp.complete(null);
+                        }
+                    });
+                }
+                return caughtUp;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits until every task given to the pool so far has run.
+     */
+    void awaitIdle() throws InterruptedException {
+        CountDownLatch idle = new CountDownLatch(threads.length);
+        for (ExecutorService thread : threads) {
+            thread.execute(idle::countDown);
+        }
+        idle.await();
+    }
+}
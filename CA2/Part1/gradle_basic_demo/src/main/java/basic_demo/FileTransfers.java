@@ -0,0 +1,434 @@
+package basic_demo;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+
+/**
+ * Moves files between chat clients over connections of their own, so that a file
+ * never travels through the chat connections, their queues or the line decoders, and
+ * a large one holds up nobody's chat.
+ *
+ * A client offers a file with "/send <name> <size> <file name>" on its chat
+ * connection and is answered "UPLOAD <port> <token> <size> <file name>". It then
+ * connects to the file transfer port, sends the line "PUT <token>" followed by the
+ * bytes of the file, and is answered "OK" once the server has them all, or "ERROR"
+ * and a reason. A client with several offers under way tags the size with an id of
+ * its own, as in "/send bob 1024:7 notes.txt", and the answer carries the same
+ * "1024:7": two offers may name the same file, and a refused one is answered with a
+ * notice instead. The server spools the file to a temporary file and only then offers
+ * it to the recipient with the chat line
+ *
+ *   FILE <port> <token> <size> <sender> <file name>
+ *
+ * The recipient fetches it by connecting to the file transfer port and sending
+ * "GET <token>", which is answered "OK" followed by the bytes of the file, or by
+ * "ERROR" and a reason. A file can be fetched once; a transfer that has not been
+ * completed after {@link #EXPIRY_MILLIS} is cancelled and its spool file deleted.
+ *
+ * The bytes are moved in chunks with {@link FileChannel#transferFrom} and
+ * {@link FileChannel#transferTo}, which lets the operating system send the spool file
+ * to the recipient's socket without copying it through the JVM. The transfers are
+ * served by a small pool of threads of their own. So that a few clients that stop
+ * sending or reading in the middle of a file cannot hold all of those threads, the
+ * sockets are switched to non-blocking mode once the request has been read, and a
+ * transfer that makes no progress for the stall timeout is cancelled. Each client may
+ * have at most {@link #MAX_TRANSFERS_PER_SENDER} files on offer, uploaded or not, at a
+ * time, which bounds the spool files it can leave on the server's disk. As many clients
+ * could still fill the disk between them, the offers also reserve their size from a
+ * budget for all the spool files, and those that do not fit are refused until enough
+ * of the files on offer have been fetched, have failed or have expired.
+ */
+class FileTransfers {
+
+    private final static Logger LOGGER = LogManager.getLogger(FileTransfers.class);
+
+    static final String PUT = "PUT";
+    static final String GET = "GET";
+    static final String OK = "OK";
+    static final String ERROR = "ERROR";
+
+    /** How long a transfer may take, from the offer until the file has been fetched. */
+    static final long EXPIRY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /** The most bytes moved by a single transferFrom or transferTo call. */
+    static final long CHUNK_BYTES = 1024 * 1024;
+
+    /** The most files a client may have on offer at a time. */
+    static final int MAX_TRANSFERS_PER_SENDER = 4;
+
+    private static final int THREADS = 8;
+    private static final int MAX_REQUEST_LENGTH = 128;
+    private static final int REQUEST_TIMEOUT_MILLIS = 10000;
+
+    private final ChatServer server;
+    private final int port;
+    private final long maxFileBytes;
+    private final long stallMillis;
+    private final long maxSpoolBytes;
+    // Bytes reserved by the files on offer, whether spooled yet or not.
+    private final AtomicLong spooled = new AtomicLong();
+    private final ConcurrentMap<String, Transfer> transfers = new ConcurrentHashMap<String, Transfer>();
+    // How many of the transfers are offered by each client.
+    private final ConcurrentMap<ChatSession, Integer> offered = new ConcurrentHashMap<ChatSession, Integer>();
+    private final SecureRandom random = new SecureRandom();
+    private volatile ServerSocketChannel listener;
+    private final ExecutorService workers = Executors.newFixedThreadPool(THREADS, r -> {
+        Thread t = new Thread(r, "File Transfer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    FileTransfers(ChatServer server, int port, long maxFileBytes, long stallMillis, long maxSpoolBytes) {
+        this.server = server;
+        this.port = port;
+        this.maxFileBytes = maxFileBytes;
+        this.stallMillis = stallMillis;
+        this.maxSpoolBytes = maxSpoolBytes;
+    }
+
+    /**
+     * Starts listening for transfer connections.
+     */
+    void start() throws IOException {
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(port));
+        this.listener = listener;
+        Thread t = new Thread(() -> {
+            try {
+                while (true) {
+                    SocketChannel channel = listener.accept();
+                    workers.execute(() -> serve(channel));
+                }
+            } catch (IOException e) {
+                if (listener.isOpen()) {
+                    e.printStackTrace();
+                }
+            }
+        }, "File Transfer Listener");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Stops accepting transfer connections and cancels the transfers under way, deleting
+     * their spool files.
+     */
+    void stop() {
+        if (listener != null) {
+            try { listener.close(); } catch (IOException e) {}
+        }
+        for (Transfer transfer : transfers.values()) {
+            cancel(transfer);
+        }
+        workers.shutdown();
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    long getMaxFileBytes() {
+        return maxFileBytes;
+    }
+
+    /**
+     * Registers a file a client is about to upload for another one, returning the token
+     * that the upload and the download must present, or null, having told the client
+     * why, if it has too many files on offer already or the spool has no room for it.
+     */
+    String offer(ChatSession sender, String recipient, String fileName, long size) {
+        if (offered.merge(sender, 1, Integer::sum) > MAX_TRANSFERS_PER_SENDER) {
+            withdrawn(sender);
+            sender.send("MESSAGE You have " + MAX_TRANSFERS_PER_SENDER + " files waiting to be fetched already");
+            return null;
+        }
+        if (spooled.addAndGet(size) > maxSpoolBytes) {
+            spooled.addAndGet(-size);
+            withdrawn(sender);
+            sender.send("MESSAGE The server has no room for " + fileName + " at the moment, try again later");
+            return null;
+        }
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder();
+        for (byte b : bytes) {
+            token.append(String.format("%02x", b));
+        }
+        Transfer transfer = new Transfer(token.toString(), sender, recipient, fileName, size);
+        transfers.put(transfer.token, transfer);
+        CompletableFuture.delayedExecutor(EXPIRY_MILLIS, TimeUnit.MILLISECONDS).execute(() -> expire(transfer));
+        return transfer.token;
+    }
+
+    /**
+     * Takes a transfer out of the map, returning false if it was gone already.
+     */
+    private boolean remove(Transfer transfer) {
+        if (!transfers.remove(transfer.token, transfer)) {
+            return false;
+        }
+        withdrawn(transfer.sender);
+        return true;
+    }
+
+    private void withdrawn(ChatSession sender) {
+        offered.computeIfPresent(sender, (s, count) -> count == 1 ? null : count - 1);
+    }
+
+    /**
+     * Deletes the spool file of a transfer and gives its bytes back to the budget; only
+     * the first call for a transfer does the latter.
+     */
+    private void discard(Transfer transfer, Path spool) {
+        delete(spool);
+        if (transfer.discarded.compareAndSet(false, true)) {
+            spooled.addAndGet(-transfer.size);
+        }
+    }
+
+    private void expire(Transfer transfer) {
+        if (cancel(transfer)) {
+            LOGGER.info("The transfer of " + transfer.fileName + " to " + transfer.recipient + " expired");
+        }
+    }
+
+    /**
+     * Takes a transfer out of the map, discarding its spool file, and cuts off its
+     * upload or download. Returns false if it was gone already.
+     */
+    private boolean cancel(Transfer transfer) {
+        boolean removed = remove(transfer);
+        // An upload under way discards the transfer itself once it finds it gone.
+        if (removed && (transfer.uploading.compareAndSet(false, true) || transfer.spool != null)) {
+            discard(transfer, transfer.spool);
+        }
+        // Also cuts off a download that is still dragging on.
+        close(transfer.channel);
+        return removed;
+    }
+
+    private void serve(SocketChannel channel) {
+        try {
+            channel.socket().setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+            String request = readRequest(channel.socket().getInputStream());
+            int space = request.indexOf(' ');
+            String verb = space < 0 ? request : request.substring(0, space);
+            Transfer transfer = space < 0 ? null : transfers.get(request.substring(space + 1));
+            if (transfer == null) {
+                reply(channel, ERROR + " No such transfer");
+            } else if (verb.equals(PUT)) {
+                upload(transfer, channel);
+            } else if (verb.equals(GET)) {
+                download(transfer, channel);
+            } else {
+                reply(channel, ERROR + " Unknown request " + verb);
+            }
+        } catch (IOException e) {
+            LOGGER.info("A file transfer failed: " + e);
+        } finally {
+            close(channel);
+        }
+    }
+
+    /**
+     * Reads the request line byte by byte, so that nothing of the file following it is
+     * consumed. The socket's timeout bounds how long a client may take to send it.
+     */
+    private static String readRequest(InputStream in) throws IOException {
+        StringBuilder request = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0 || request.length() >= MAX_REQUEST_LENGTH) {
+                throw new IOException("Bad file transfer request");
+            }
+            if (b != '\r') {
+                request.append((char) b);
+            }
+        }
+        return request.toString();
+    }
+
+    private void upload(Transfer transfer, SocketChannel channel) throws IOException {
+        if (!transfer.uploading.compareAndSet(false, true)) {
+            reply(channel, ERROR + " The file has been sent already");
+            return;
+        }
+        transfer.channel = channel;
+        Path spool = Files.createTempFile("chat-transfer-", ".part");
+        boolean offered = false;
+        try {
+            channel.configureBlocking(false);
+            try (FileChannel file = FileChannel.open(spool, StandardOpenOption.WRITE);
+                 Selector selector = Selector.open()) {
+                channel.register(selector, SelectionKey.OP_READ);
+                ByteBuffer probe = ByteBuffer.allocate(1);
+                long position = 0;
+                while (position < transfer.size) {
+                    long moved = file.transferFrom(channel, position, Math.min(CHUNK_BYTES, transfer.size - position));
+                    if (moved > 0) {
+                        position += moved;
+                        continue;
+                    }
+                    // Nothing to read yet, or the end of the stream: a read tells them apart.
+                    awaitReady(selector, "The upload of " + transfer.fileName);
+                    probe.clear();
+                    if (channel.read(probe) < 0) {
+                        throw new EOFException("The upload of " + transfer.fileName + " ended after "
+                                + position + " of " + transfer.size + " bytes");
+                    }
+                    probe.flip();
+                    position += file.write(probe, position);
+                }
+            }
+            // Closing the selector has deregistered the channel.
+            channel.configureBlocking(true);
+            transfer.spool = spool;
+            ChatSession recipient = server.getSession(transfer.recipient);
+            if (transfers.get(transfer.token) != transfer) {
+                reply(channel, ERROR + " The transfer expired");
+            } else if (recipient == null) {
+                remove(transfer);
+                reply(channel, ERROR + " " + transfer.recipient + " has left");
+            } else {
+                offered = true;
+                recipient.send("FILE " + port + " " + transfer.token + " " + transfer.size
+                        + " " + transfer.senderName + " " + transfer.fileName);
+                reply(channel, OK);
+                notifySender(transfer, transfer.fileName + " is waiting for " + transfer.recipient);
+            }
+        } finally {
+            transfer.channel = null;
+            if (!offered) {
+                // A failed upload cannot be tried again; the sender has to offer the file anew.
+                remove(transfer);
+                discard(transfer, spool);
+            }
+        }
+    }
+
+    private void download(Transfer transfer, SocketChannel channel) throws IOException {
+        // Taking the transfer out of the map makes this the only download of the file.
+        if (transfer.spool == null || !remove(transfer)) {
+            reply(channel, ERROR + " The file is not available");
+            return;
+        }
+        transfer.channel = channel;
+        try (FileChannel file = FileChannel.open(transfer.spool, StandardOpenOption.READ);
+             Selector selector = Selector.open()) {
+            reply(channel, OK);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_WRITE);
+            long position = 0;
+            while (position < transfer.size) {
+                long moved = file.transferTo(position, Math.min(CHUNK_BYTES, transfer.size - position), channel);
+                if (moved > 0) {
+                    position += moved;
+                } else if (position >= file.size()) {
+                    throw new EOFException("The spool file of " + transfer.fileName + " ends after "
+                            + position + " of " + transfer.size + " bytes");
+                } else {
+                    awaitReady(selector, "The download of " + transfer.fileName);
+                }
+            }
+            server.fileTransferred(transfer.size);
+            notifySender(transfer, transfer.recipient + " has received " + transfer.fileName);
+        } finally {
+            transfer.channel = null;
+            discard(transfer, transfer.spool);
+        }
+    }
+
+    /**
+     * Waits until a channel in non-blocking mode is ready for more, failing once it has
+     * not been for the stall timeout.
+     */
+    private void awaitReady(Selector selector, String transfer) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(stallMillis);
+        while (selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()))) == 0) {
+            if (deadline - System.nanoTime() <= 0) {
+                throw new SocketTimeoutException(transfer + " stalled for " + stallMillis + " ms");
+            }
+        }
+        selector.selectedKeys().clear();
+    }
+
+    /**
+     * Tells the sender of a file how its transfer is going, provided it is still online.
+     */
+    private void notifySender(Transfer transfer, String text) {
+        if (server.getSession(transfer.senderName) == transfer.sender) {
+            transfer.sender.send("MESSAGE " + text);
+        }
+    }
+
+    private static void reply(SocketChannel channel, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        if (channel != null) {
+            try { channel.close(); } catch (IOException e) {}
+        }
+    }
+
+    private static void delete(Path spool) {
+        if (spool != null) {
+            try {
+                Files.deleteIfExists(spool);
+            } catch (IOException e) {
+                LOGGER.info("Could not delete the spool file " + spool + ": " + e);
+            }
+        }
+    }
+
+    private static final class Transfer {
+        final String token;
+        final ChatSession sender;
+        final String senderName;
+        final String recipient;
+        final String fileName;
+        final long size;
+        final AtomicBoolean uploading = new AtomicBoolean();
+        final AtomicBoolean discarded = new AtomicBoolean();
+        volatile Path spool;
+        volatile SocketChannel channel;
+
+        Transfer(String token, ChatSession sender, String recipient, String fileName, long size) {
+            this.token = token;
+            this.sender = sender;
+            this.senderName = sender.getName();
+            this.recipient = recipient;
+            this.fileName = fileName;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package basic_demo;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Decides when the messages queued for a client are written out, and keeps count of
+ * what is written and of what writing it in batches saves.
+ *
+ * A client's queue is never flushed once per message: the first message queued after
+ * a flush requests the next one, and everything queued until that flush runs goes out
+ * with it, in as few socket writes as possible. By default the flush runs as soon as
+ * the engine gets to it, i.e. at the end of the current event-loop iteration or on the
+ * next free writer thread. A small delay can be configured to gather more messages
+ * per write, at the cost of latency; the flush is brought forward as soon as the queue
+ * holds more than a threshold of bytes.
+ */
+class FlushScheduler {
+
+    private final long delayNanos;
+    private final int thresholdBytes;
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final RateMeter messageRate = new RateMeter();
+    private final LongAdder delayedFlushes = new LongAdder();
+    private final LongAdder delayNanosTotal = new LongAdder();
+
+    FlushScheduler(long delayMicros, int thresholdBytes) {
+        this.delayNanos = TimeUnit.MICROSECONDS.toNanos(delayMicros);
+        this.thresholdBytes = thresholdBytes;
+    }
+
+    /**
+     * How long to wait before flushing a queue that holds the given number of bytes.
+     */
+    long delayFor(long pendingBytes) {
+        return pendingBytes >= thresholdBytes ? 0 : delayNanos;
+    }
+
+    int getThresholdBytes() {
+        return thresholdBytes;
+    }
+
+    /**
+     * Records a finished flush. The request time is the {@link System#nanoTime()} at
+     * which the flush was asked for, or 0 if it was not (e.g. a socket became writable
+     * again).
+     */
+    void recordFlush(long requestedAt, int messagesWritten, int writeCalls, long bytesWritten) {
+        flushes.increment();
+        if (messagesWritten > 0) {
+            messages.add(messagesWritten);
+            messageRate.mark(messagesWritten);
+        }
+        writes.add(writeCalls);
+        bytes.add(bytesWritten);
+        if (requestedAt != 0) {
+            delayedFlushes.increment();
+            delayNanosTotal.add(System.nanoTime() - requestedAt);
+        }
+    }
+
+    long getMessagesWritten() {
+        return messages.sum();
+    }
+
+    long getWriteCalls() {
+        return writes.sum();
+    }
+
+    long getBytesWritten() {
+        return bytes.sum();
+    }
+
+    /**
+     * The average number of messages written per second over the last few seconds.
+     */
+    double getMessagesWrittenPerSecond() {
+        return messageRate.perSecond();
+    }
+
+    /**
+     * The socket writes avoided so far by batching, compared to one write per message.
+     */
+    long getWriteCallsSaved() {
+        return Math.max(0, messages.sum() - writes.sum());
+    }
+
+    /**
+     * The average time, in microseconds, between a flush being requested and the
+     * queued messages being written. This is the latency batching costs.
+     */
+    double getAverageFlushDelayMicros() {
+        long count = delayedFlushes.sum();
+        return count == 0 ? 0 : delayNanosTotal.sum() / 1000.0 / count;
+    }
+}
@@ -0,0 +1,119 @@
+package basic_demo;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+
+/**
+ * The binary alternative to the line protocol. A client asks for it by answering the
+ * server's first "SUBMITNAME" with the line "PROTOCOL BINARY" instead of a name. Once
+ * the server has answered "PROTOCOLACCEPTED BINARY", still as a line, both directions
+ * carry frames instead of lines:
+ *
+ *   int32   length of the rest of the frame, big-endian
+ *   int8    type
+ *   int64   sequence number, or 0 when not applicable
+ *   bytes   UTF-8 payload, which may contain newlines
+ *
+ * The frame types mirror the keywords of the line protocol and the payload is what
+ * follows the keyword on a line, so the server can translate a message between the
+ * two protocols without decoding its text. A client sends everything it would have
+ * sent as a line, screen names included, in LINE frames.
+ *
+ * A server that lets clients resume their sessions follows every "NAMEACCEPTED" with
+ * "RESUMETOKEN <token>", a secret the client needs to prove the session is its own. A
+ * client that lost its connection may answer the first "SUBMITNAME" of a new one with
+ * "RESUME <name> <token> <sequence>", the name it had, the last token it was given and
+ * the sequence number from which it wants to be sent what it missed. If the server
+ * still holds the name for it and the token matches, the client gets its name and rooms
+ * back without the other clients being told it left and joined again, and is sent the
+ * messages of its rooms numbered after that sequence number, as far as the server
+ * still has them. Concurrent broadcasts may reach a client slightly out of the order
+ * of their numbers, so a client should not resume from the highest number it has
+ * seen but from one below anything it may have missed, and drop what it is sent twice.
+ * A client that left the sequence number out, such as one that only speaks lines and
+ * never sees the numbers, is sent none. If there is nothing to resume, the name is
+ * claimed as if it had been submitted. Answering any later "SUBMITNAME" with "RESUME"
+ * is refused, as a name like that would be.
+ *
+ * Every node of a cluster numbers the messages relayed to it by other nodes afresh,
+ * so the numbers a client sees all come from the node it is connected to.
+ *
+ * A server pings a named client that has been quiet for a while with "PING", a PING
+ * frame for a binary client, and the client answers "PONG", as a LINE frame if binary.
+ *
+ * The UPLOAD and FILE types carry the server's side of a file transfer, see
+ * {@link FileTransfers}; the files themselves travel over connections of their own.
+ */
+final class Frame {
+
+    /** The bytes preceding the payload: length, type and sequence number. */
+    static final int HEADER_LENGTH = 4 + 1 + 8;
+
+    /** The line a client sends instead of its first name to switch to frames. */
+    static final String REQUEST = "PROTOCOL BINARY";
+
+    /** The line the server answers a {@link #REQUEST} with. */
+    static final String ACCEPTED = "PROTOCOLACCEPTED BINARY";
+
+    /**
+     * The line, followed by the reason, a client is sent instead of "SUBMITNAME" when
+     * the server turns it away.
+     */
+    static final String BUSY = "BUSY";
+
+    /**
+     * The line, followed by a name, a resume token and a sequence number, a client
+     * resumes with.
+     */
+    static final String RESUME = "RESUME";
+
+    /** The line a client answers a {@link #PING} with. */
+    static final String PONG = "PONG";
+
+    static final byte LINE = 1;
+    static final byte SUBMITNAME = 2;
+    static final byte NAMEACCEPTED = 3;
+    static final byte MESSAGE = 4;
+    static final byte PING = 5;
+    static final byte UPLOAD = 6;
+    static final byte FILE = 7;
+    static final byte RESUMETOKEN = 8;
+
+    // Indexed by type; a line decoded from the text protocol has type 0.
+    private static final String[] KEYWORDS = {null, "LINE", "SUBMITNAME", "NAMEACCEPTED", "MESSAGE", "PING",
+            "UPLOAD", "FILE", "RESUMETOKEN"};
+
+    private Frame() {
+    }
+
+    /**
+     * Returns the frame type of a line protocol keyword.
+     */
+    static byte typeOf(String keyword) {
+        for (int type = 1; type < KEYWORDS.length; type++) {
+            if (KEYWORDS[type].equals(keyword)) {
+                return (byte) type;
+            }
+        }
+        throw new IllegalArgumentException("No frame type for " + keyword);
+    }
+
+    /**
+     * Returns the line protocol keyword of a frame type.
+     */
+    static String keyword(byte type) {
+        return KEYWORDS[type];
+    }
+
+    /**
+     * Writes a whole frame to a blocking stream and flushes it.
+     */
+    static void write(DataOutputStream out, byte type, long sequence, byte[] payload) throws IOException {
+        out.writeInt(1 + 8 + payload.length);
+        out.writeByte(type);
+        out.writeLong(sequence);
+        out.write(payload);
+        out.flush();
+    }
+}
@@ -0,0 +1,199 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+
+/**
+ * An append-only record of every message broadcast in the rooms of a server, kept in a
+ * directory of memory-mapped segment files of a fixed size. When a message does not fit
+ * in the current segment a new one is started, and the oldest segments beyond the
+ * retained number are deleted.
+ *
+ * Broadcasting threads only queue the already encoded message; a single writer thread
+ * copies it into the mapped segment, leaving it to the operating system to write the
+ * pages back to disk. A segment is forced to disk once it is full. Should the writer
+ * fall behind so far that its queue fills up, messages are left out of the journal
+ * rather than holding up the broadcast.
+ *
+ * Each record is laid out as
+ *
+ *   int32   length of the rest of the record; 0 marks the end of the segment
+ *   int64   time the message was broadcast, in milliseconds since the epoch
+ *   int8    length of the room name
+ *   bytes   UTF-8 room name
+ *   bytes   the message as a binary {@link Frame}
+ *
+ * and is read back by a {@link JournalReader}.
+ */
+class Journal {
+
+    private final static Logger LOGGER = LogManager.getLogger(Journal.class);
+
+    static final String SUFFIX = ".journal";
+
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final int MIN_SEGMENT_BYTES = 4096;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int retainedSegments;
+    private final BlockingQueue<Entry> pending = new ArrayBlockingQueue<Entry>(QUEUE_CAPACITY);
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    // Only touched by the writer thread once started.
+    private MappedByteBuffer segment;
+    private long segmentNumber;
+
+    /**
+     * Creates a journal in the given directory. A retained count of zero keeps every
+     * segment.
+     */
+    Journal(Path directory, int segmentBytes, int retainedSegments) {
+        this.directory = directory;
+        this.segmentBytes = Math.max(MIN_SEGMENT_BYTES, segmentBytes);
+        this.retainedSegments = retainedSegments;
+    }
+
+    /**
+     * Opens a fresh segment, following any left by earlier runs, and starts the writer.
+     */
+    void start() throws IOException {
+        Files.createDirectories(directory);
+        List<Path> segments = segments(directory);
+        segmentNumber = segments.isEmpty() ? 0 : number(segments.get(segments.size() - 1));
+        roll();
+
+        Thread t = new Thread(this::run, "Chat Journal Writer");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Queues a broadcast message to be journaled. Never blocks.
+     */
+    void append(String room, EncodedMessage message) {
+        if (!pending.offer(new Entry(System.currentTimeMillis(), room, message.retain()))) {
+            message.release();
+            dropped.increment();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            Entry entry;
+            try {
+                entry = pending.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                write(entry);
+            } catch (IOException e) {
+                LOGGER.info("Could not write to the journal: " + e);
+                dropped.increment();
+            } finally {
+                entry.message.release();
+            }
+        }
+    }
+
+    private void write(Entry entry) throws IOException {
+        byte[] room = entry.room.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 1 + room.length + entry.message.length();
+        if (4 + length > segmentBytes) {
+            dropped.increment();
+            return;
+        }
+        if (segment.remaining() < 4 + length) {
+            roll();
+        }
+
+        // The length goes in last, so that a reader never sees half a record.
+        int start = segment.position();
+        segment.position(start + 4);
+        segment.putLong(entry.time);
+        segment.put((byte) room.length);
+        segment.put(room);
+        segment.put(entry.message.view(true));
+        segment.putInt(start, length);
+        written.increment();
+    }
+
+    private void roll() throws IOException {
+        if (segment != null) {
+            segment.force();
+        }
+        segmentNumber++;
+        Path file = directory.resolve(String.format("%019d%s", segmentNumber, SUFFIX));
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+
+        if (retainedSegments > 0) {
+            List<Path> segments = segments(directory);
+            for (int i = 0; i < segments.size() - retainedSegments; i++) {
+                Files.deleteIfExists(segments.get(i));
+            }
+        }
+    }
+
+    /**
+     * The segment files of a journal directory, oldest first.
+     */
+    static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<Path>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> file.getFileName().toString().endsWith(SUFFIX)).forEach(segments::add);
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static long number(Path segment) {
+        String file = segment.getFileName().toString();
+        return Long.parseLong(file.substring(0, file.length() - SUFFIX.length()));
+    }
+
+    /**
+     * The number of messages written to the journal so far.
+     */
+    long written() {
+        return written.sum();
+    }
+
+    /**
+     * The number of messages left out of the journal so far.
+     */
+    long dropped() {
+        return dropped.sum();
+    }
+
+    private static final class Entry {
+        final long time;
+        final String room;
+        final EncodedMessage message;
+
+        Entry(long time, String room, EncodedMessage message) {
+            this.time = time;
+            this.room = room;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+
+/**
+ * Reads a {@link Journal} sequentially, from its oldest retained segment to the record
+ * being written last. Every segment is mapped read-only and its records are decoded in
+ * place, so scanning a transcript costs little more than paging the files in.
+ *
+ * The reader is a cursor: {@link #next()} moves it to the following record, whose
+ * fields the other methods then return. A reader is not thread-safe.
+ */
+class JournalReader {
+
+    private final Iterator<Path> segments;
+    private ByteBuffer segment;
+    private long time;
+    private String room;
+    private byte type;
+    private long sequence;
+    private byte[] payload = new byte[0];
+    private int payloadLength;
+
+    JournalReader(Path directory) throws IOException {
+        this.segments = Journal.segments(directory).iterator();
+    }
+
+    /**
+     * Moves to the next record, returning false when there is none.
+     */
+    boolean next() throws IOException {
+        while (segment == null || segment.remaining() < 4 || segment.getInt(segment.position()) == 0) {
+            if (!segments.hasNext()) {
+                return false;
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(segments.next().toFile(), "r")) {
+                segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            }
+        }
+
+        int length = segment.getInt();
+        int end = segment.position() + length;
+        time = segment.getLong();
+        byte[] name = new byte[segment.get() & 0xff];
+        segment.get(name);
+        room = new String(name, StandardCharsets.UTF_8);
+
+        // The frame: its own length, type, sequence number and payload.
+        segment.getInt();
+        type = segment.get();
+        sequence = segment.getLong();
+        payloadLength = end - segment.position();
+        if (payload.length < payloadLength) {
+            payload = new byte[payloadLength];
+        }
+        segment.get(payload, 0, payloadLength);
+        return true;
+    }
+
+    /**
+     * When the message was broadcast, in milliseconds since the epoch.
+     */
+    long time() {
+        return time;
+    }
+
+    String room() {
+        return room;
+    }
+
+    /**
+     * The {@link Frame} type of the message.
+     */
+    byte type() {
+        return type;
+    }
+
+    long sequence() {
+        return sequence;
+    }
+
+    /**
+     * The text of the message, i.e. what followed the keyword on the line.
+     */
+    String text() {
+        return new String(payload, 0, payloadLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The message as it was sent to line protocol clients, without its newline.
+     */
+    String line() {
+        return Frame.keyword(type) + " " + text();
+    }
+}
@@ -0,0 +1,356 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Splits the bytes received from a connection into lines, in place. Bytes are read
+ * into a window that grows on demand up to the maximum line length, and every
+ * complete line is handed out as a {@link Line} pointing into that window, so
+ * inspecting a command or forwarding a payload does not create any String.
+ *
+ * Lines end with "\n", optionally preceded by "\r", which is not part of the line.
+ * A line longer than the maximum is never buffered in full: its bytes are thrown
+ * away as they arrive and it is reported as a single line that {@link Line#isTooLong()
+ * is too long}.
+ *
+ * After {@link #switchToFrames()} the decoder reads binary {@link Frame frames}
+ * instead, and hands out each frame's payload as a line carrying the frame's type and
+ * sequence number. Since frames announce their length, finding the end of one takes
+ * constant time. Frames with a payload beyond the maximum are skipped in the same way
+ * as long lines, and a malformed frame ends the stream.
+ *
+ * Callers alternate between reading bytes and taking lines with {@link #next()} until
+ * it returns null. A decoder belongs to a single connection and is not thread-safe.
+ */
+final class LineDecoder {
+
+    /** The default maximum length of a line, in bytes. */
+    static final int DEFAULT_MAX_LINE_LENGTH = 8192;
+
+    private static final int INITIAL_CAPACITY = 512;
+
+    private final int maxLineLength;
+    private final int limit;
+    private final Line line = new Line();
+    private byte[] buffer;
+    private ByteBuffer window;
+    private int start;
+    private int end;
+    private int scanned;
+    private boolean discarding;
+    private boolean frames;
+    private long skip;
+    private boolean malformed;
+    private long oversizedLines;
+
+    LineDecoder(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+        // Room for the longest line plus its "\r\n", or for the longest frame.
+        this.limit = maxLineLength + Frame.HEADER_LENGTH;
+        this.buffer = new byte[Math.min(INITIAL_CAPACITY, limit)];
+        this.window = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Returns the next complete line already read, or null if more bytes are needed.
+     * The line is only valid until the next call to any method of the decoder.
+     */
+    Line next() {
+        return frames ? nextFrame() : nextLine();
+    }
+
+    /**
+     * Makes the decoder read frames from now on, starting with the bytes already read.
+     */
+    void switchToFrames() {
+        frames = true;
+    }
+
+    boolean isReadingFrames() {
+        return frames;
+    }
+
+    private Line nextLine() {
+        int newline = -1;
+        for (int i = scanned; i < end; i++) {
+            if (buffer[i] == '\n') {
+                newline = i;
+                break;
+            }
+        }
+
+        if (newline < 0) {
+            scanned = end;
+            if (discarding || end - start >= limit) {
+                // Either the rest of a line that is already too long, or a line that
+                // has just outgrown the window: forget it all and wait for its end.
+                discarding = true;
+                start = end = scanned = 0;
+            }
+            return null;
+        }
+
+        int lineStart = start;
+        start = scanned = newline + 1;
+        int length = newline - lineStart;
+        if (length > 0 && buffer[newline - 1] == '\r') {
+            length--;
+        }
+        if (discarding || length > maxLineLength) {
+            discarding = false;
+            oversizedLines++;
+            line.set(buffer, lineStart, 0, true, (byte) 0, 0);
+        } else {
+            line.set(buffer, lineStart, length, false, (byte) 0, 0);
+        }
+        return line;
+    }
+
+    private Line nextFrame() {
+        if (skip > 0) {
+            int dropped = (int) Math.min(skip, end - start);
+            start += dropped;
+            skip -= dropped;
+            if (skip > 0) {
+                return null;
+            }
+            oversizedLines++;
+            line.set(buffer, start, 0, true, (byte) 0, 0);
+            return line;
+        }
+
+        if (malformed || end - start < 4) {
+            return null;
+        }
+        int length = readInt(start);
+        int payloadLength = length - (Frame.HEADER_LENGTH - 4);
+        if (payloadLength < 0) {
+            malformed = true;
+            return null;
+        }
+        if (payloadLength > maxLineLength) {
+            start += 4;
+            skip = length;
+            return nextFrame();
+        }
+        if (end - start < 4 + length) {
+            return null;
+        }
+
+        int frameStart = start;
+        start = scanned = frameStart + 4 + length;
+        line.set(buffer, frameStart + Frame.HEADER_LENGTH, payloadLength, false,
+                buffer[frameStart + 4], readLong(frameStart + 5));
+        return line;
+    }
+
+    private int readInt(int at) {
+        return (buffer[at] & 0xff) << 24 | (buffer[at + 1] & 0xff) << 16
+                | (buffer[at + 2] & 0xff) << 8 | (buffer[at + 3] & 0xff);
+    }
+
+    private long readLong(int at) {
+        return (long) readInt(at) << 32 | (readInt(at + 4) & 0xffffffffL);
+    }
+
+    /**
+     * Reads whatever bytes a blocking stream has to offer. Returns the number of bytes
+     * read, or -1 at the end of the stream or after a malformed frame.
+     */
+    int readFrom(InputStream in) throws IOException {
+        if (malformed) {
+            return -1;
+        }
+        makeRoom();
+        int count = in.read(buffer, end, buffer.length - end);
+        if (count > 0) {
+            end += count;
+        }
+        return count;
+    }
+
+    /**
+     * Reads whatever bytes a channel has to offer. Returns the number of bytes read,
+     * possibly zero for a non-blocking channel, or -1 at the end of the stream or after
+     * a malformed frame.
+     */
+    int readFrom(ReadableByteChannel channel) throws IOException {
+        if (malformed) {
+            return -1;
+        }
+        makeRoom();
+        window.limit(buffer.length).position(end);
+        int count = channel.read(window);
+        if (count > 0) {
+            end += count;
+        }
+        return count;
+    }
+
+    /**
+     * Blocks until a complete line has been read from the stream and returns it, or
+     * returns null at the end of the stream.
+     */
+    Line readLine(InputStream in) throws IOException {
+        Line next;
+        while ((next = next()) == null) {
+            if (readFrom(in) < 0) {
+                return null;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * The number of lines or frames thrown away so far for being too long.
+     */
+    long oversizedLines() {
+        return oversizedLines;
+    }
+
+    private void makeRoom() {
+        if (start == end) {
+            start = end = scanned = 0;
+        }
+        if (end < buffer.length) {
+            return;
+        }
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            scanned -= start;
+            start = 0;
+        } else {
+            byte[] larger = new byte[Math.min(buffer.length * 2, limit)];
+            System.arraycopy(buffer, 0, larger, 0, end);
+            buffer = larger;
+            window = ByteBuffer.wrap(buffer);
+        }
+    }
+
+    /**
+     * A line inside the decoder's window. The same instance is reused for every line.
+     * For a frame, the line is the frame's payload.
+     */
+    static final class Line {
+        private byte[] bytes;
+        private int offset;
+        private int length;
+        private boolean tooLong;
+        private byte type;
+        private long sequence;
+
+        private void set(byte[] bytes, int offset, int length, boolean tooLong, byte type, long sequence) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+            this.tooLong = tooLong;
+            this.type = type;
+            this.sequence = sequence;
+        }
+
+        /**
+         * The type of the frame the line came in, or 0 for a plain line.
+         */
+        byte frameType() {
+            return type;
+        }
+
+        /**
+         * The sequence number of the frame the line came in, or 0.
+         */
+        long sequence() {
+            return sequence;
+        }
+
+        byte[] array() {
+            return bytes;
+        }
+
+        int offset() {
+            return offset;
+        }
+
+        int length() {
+            return length;
+        }
+
+        boolean isEmpty() {
+            return length == 0;
+        }
+
+        /**
+         * Whether the line exceeded the maximum length. Its content is not available.
+         */
+        boolean isTooLong() {
+            return tooLong;
+        }
+
+        /**
+         * Whether the line starts with the given ASCII text, matched exactly.
+         */
+        boolean startsWith(String prefix) {
+            return regionMatches(prefix, false);
+        }
+
+        /**
+         * Whether the line starts with the given ASCII text, ignoring case.
+         */
+        boolean startsWithIgnoreCase(String prefix) {
+            return regionMatches(prefix, true);
+        }
+
+        /**
+         * Whether the line is the given command, ignoring case, on its own or followed
+         * by a space and arguments.
+         */
+        boolean isCommand(String command) {
+            return startsWithIgnoreCase(command)
+                    && (length == command.length() || bytes[offset + command.length()] == ' ');
+        }
+
+        /**
+         * The text following the first space of the line, trimmed, or an empty string.
+         */
+        String argument() {
+            for (int i = 0; i < length; i++) {
+                if (bytes[offset + i] == ' ') {
+                    return substring(i + 1).trim();
+                }
+            }
+            return "";
+        }
+
+        /**
+         * Decodes the line from the given byte index on.
+         */
+        String substring(int from) {
+            return new String(bytes, offset + from, length - from, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String toString() {
+            return substring(0);
+        }
+
+        private boolean regionMatches(String prefix, boolean ignoreCase) {
+            if (prefix.length() > length) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length(); i++) {
+                char expected = prefix.charAt(i);
+                char actual = (char) (bytes[offset + i] & 0xff);
+                if (expected != actual
+                        && !(ignoreCase && Character.toLowerCase(expected) == Character.toLowerCase(actual))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package basic_demo;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Puts a chat server under load from many headless {@link ChatConnection}s. Every client
+ * registers a name of its own, optionally joins one of a number of rooms, and then sends
+ * messages at a fixed rate. Each message carries the time it was due to be sent, so the
+ * clients receiving it can record how long its delivery took; since all clients live in
+ * this process the clock is the same on both ends. Timing from the due time rather than
+ * the moment the message actually went out means that a sender held up, by the server
+ * pushing back or by the generator's own threads falling behind, shows up in the
+ * latencies instead of quietly sending fewer messages.
+ *
+ * Messages are only timed once the warm-up is over, but every delivery counts towards
+ * the throughput.
+ */
+class LoadGenerator {
+
+    // Marks the messages sent by a load generator, followed by the sending time.
+    private static final String MARK = "lt ";
+
+    private final String host;
+    private final int port;
+    private final int clients;
+    private final double rate;
+    private final int rooms;
+    private final int messageBytes;
+    private final boolean binary;
+
+    private final List<ChatConnection> connections = new ArrayList<ChatConnection>();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private volatile boolean timing;
+
+    /**
+     * @param clients       number of connections to open
+     * @param rate          messages each client sends per second
+     * @param rooms         rooms the clients are spread over, or 1 to stay in the lobby
+     * @param messageBytes  length the messages are padded to
+     * @param binary        whether the clients use the binary protocol
+     */
+    LoadGenerator(String host, int port, int clients, double rate, int rooms, int messageBytes, boolean binary) {
+        this.host = host;
+        this.port = port;
+        this.clients = clients;
+        this.rate = rate;
+        this.rooms = rooms;
+        this.messageBytes = messageBytes;
+        this.binary = binary;
+    }
+
+    /**
+     * Connects the clients and waits until all of them have a name and are in their room.
+     */
+    void connect() throws Exception {
+        String run = Integer.toHexString(new Random().nextInt(0x10000));
+        CountDownLatch ready = new CountDownLatch(clients);
+        for (int i = 0; i < clients; i++) {
+            Client client = new Client("load" + run + "-" + i, i % rooms, ready);
+            ChatConnection connection = new ChatConnection(host, port, binary, client);
+            client.connection = connection;
+            connection.connect();
+            connections.add(connection);
+
+            Thread t = new Thread(null, connection, "Load client " + i, 256 * 1024);
+            t.setDaemon(true);
+            t.start();
+        }
+        if (!ready.await(30 + clients / 100, TimeUnit.SECONDS)) {
+            throw new IllegalStateException(ready.getCount() + " clients did not get ready in time");
+        }
+    }
+
+    /**
+     * Sends messages from every client for the given time, printing progress every second
+     * and a summary at the end.
+     */
+    void run(int warmupSeconds, int seconds, PrintStream report) throws InterruptedException {
+        ScheduledExecutorService senders = new ScheduledThreadPoolExecutor(Runtime.getRuntime().availableProcessors());
+        // At least a nanosecond, however high the rate asked for.
+        long period = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+        String padding = padding();
+        long start = System.nanoTime();
+        for (ChatConnection connection : connections) {
+            // Spread the clients over the period rather than sending in bursts.
+            long delay = ThreadLocalRandom.current().nextLong(period);
+            senders.scheduleAtFixedRate(new Sender(connection, start + delay, period, padding),
+                    delay, period, TimeUnit.NANOSECONDS);
+        }
+
+        long lastSent = 0;
+        long lastDelivered = 0;
+        long timedFrom = 0;
+        timing = warmupSeconds == 0;
+        for (int second = 1; second <= warmupSeconds + seconds; second++) {
+            Thread.sleep(1000);
+            if (second == warmupSeconds) {
+                timing = true;
+                timedFrom = delivered.sum();
+            }
+            long nowSent = sent.sum();
+            long nowDelivered = delivered.sum();
+            report.printf("%4d s  sent %8d/s  delivered %9d/s%s%n", second, nowSent - lastSent,
+                    nowDelivered - lastDelivered, second <= warmupSeconds ? "  (warm-up)" : "");
+            lastSent = nowSent;
+            lastDelivered = nowDelivered;
+        }
+        senders.shutdownNow();
+        senders.awaitTermination(5, TimeUnit.SECONDS);
+        timing = false;
+
+        report.printf("%d clients, %d rooms, %d messages sent, %d delivered%n", clients, rooms, sent.sum(), delivered.sum());
+        report.printf("Throughput: %.0f messages/s delivered%n", (delivered.sum() - timedFrom) / (double) seconds);
+        report.printf("Latency: p50 %d us, p90 %d us, p99 %d us, p99.9 %d us, max %d us (%d samples)%n",
+                latencies.percentile(0.5), latencies.percentile(0.9), latencies.percentile(0.99),
+                latencies.percentile(0.999), latencies.max(), latencies.count());
+    }
+
+    void close() {
+        for (ChatConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+    LatencyHistogram latencies() {
+        return latencies;
+    }
+
+    long sent() {
+        return sent.sum();
+    }
+
+    long delivered() {
+        return delivered.sum();
+    }
+
+    private String padding() {
+        StringBuilder padding = new StringBuilder(" ");
+        int length = MARK.length() + 20;
+        while (length + padding.length() < messageBytes) {
+            padding.append('x');
+        }
+        return padding.toString();
+    }
+
+    private void deliver(String text) {
+        int mark = text.indexOf(": " + MARK);
+        if (mark < 0) {
+            return;
+        }
+        int from = mark + 2 + MARK.length();
+        int to = text.indexOf(' ', from);
+        long sentAt;
+        try {
+            sentAt = Long.parseLong(to < 0 ? text.substring(from) : text.substring(from, to));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        delivered.increment();
+        if (timing) {
+            latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentAt));
+        }
+    }
+
+    /**
+     * Sends the messages of one client. A fixed-rate task never overlaps itself, and
+     * runs that are late run back to back to catch up, each stamped with the time it
+     * was due rather than the time it got to run.
+     */
+    private class Sender implements Runnable {
+        private final ChatConnection connection;
+        private final long period;
+        private final String padding;
+        private long due;
+
+        Sender(ChatConnection connection, long first, long period, String padding) {
+            this.connection = connection;
+            this.due = first;
+            this.period = period;
+            this.padding = padding;
+        }
+
+        public void run() {
+            long sendAt = due;
+            due += period;
+            connection.send(MARK + sendAt + padding);
+            sent.increment();
+        }
+    }
+
+    private class Client implements ChatConnection.Listener {
+        private final String name;
+        private final int room;
+        private final CountDownLatch ready;
+        private ChatConnection connection;
+        private int attempts;
+
+        Client(String name, int room, CountDownLatch ready) {
+            this.name = name;
+            this.room = room;
+            this.ready = ready;
+        }
+
+        public String nameRequested() {
+            return attempts++ == 0 ? name : name + "-" + attempts;
+        }
+
+        public void nameAccepted(String name) {
+            if (rooms > 1) {
+                connection.send("/join load-" + room);
+            } else {
+                ready.countDown();
+            }
+        }
+
+        public void messageReceived(String text) {
+            if (rooms > 1 && text.startsWith("You joined [load-")) {
+                ready.countDown();
+            } else {
+                deliver(text);
+            }
+        }
+    }
+}
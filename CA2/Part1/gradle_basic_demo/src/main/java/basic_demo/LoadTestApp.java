@@ -0,0 +1,72 @@
+package basic_demo;
+
+
+/**
+ * A simple app that puts a running chat server under load and reports the throughput and
+ * the end-to-end latency of the messages it delivers.
+ *
+ * Besides the server IP and port, the following options are understood:
+ *
+ *   --clients=N     connections to open (default: 100)
+ *   --rate=R        messages each client sends per second (default: 1)
+ *   --duration=S    seconds to measure for (default: 30)
+ *   --warmup=S      seconds to send for before measuring (default: 5)
+ *   --rooms=N       rooms to spread the clients over, 1 for the lobby (default: 1)
+ *   --size=N        length of the messages in characters (default: 64)
+ *   --binary        use the binary protocol
+ */
+public class LoadTestApp {
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 2) {
+            System.err.println("Pass the server IP and Port as command line arguments,"
+                    + " optionally followed by --clients=N, --rate=R, --duration=S, --warmup=S,"
+                    + " --rooms=N, --size=N and --binary");
+            return;
+        }
+
+        int serverPort = Integer.parseInt(args[1]);
+        int clients = 100;
+        double rate = 1;
+        int duration = 30;
+        int warmup = 5;
+        int rooms = 1;
+        int size = 64;
+        boolean binary = false;
+        for (int i = 2; i < args.length; i++) {
+            String option = args[i];
+            if (option.startsWith("--clients=")) {
+                clients = Integer.parseInt(value(option));
+            } else if (option.startsWith("--rate=")) {
+                rate = Double.parseDouble(value(option));
+            } else if (option.startsWith("--duration=")) {
+                duration = Integer.parseInt(value(option));
+            } else if (option.startsWith("--warmup=")) {
+                warmup = Integer.parseInt(value(option));
+            } else if (option.startsWith("--rooms=")) {
+                rooms = Integer.parseInt(value(option));
+            } else if (option.startsWith("--size=")) {
+                size = Integer.parseInt(value(option));
+            } else if (option.equals("--binary")) {
+                binary = true;
+            } else {
+                System.err.println("Unknown option: " + option);
+                return;
+            }
+        }
+
+        LoadGenerator generator = new LoadGenerator(args[0], serverPort, clients, rate, rooms, size, binary);
+        try {
+            generator.connect();
+            System.out.println(clients + " clients connected, sending " + rate + " messages/s each...");
+            generator.run(warmup, duration, System.out);
+        } finally {
+            generator.close();
+        }
+    }
+
+    private static String value(String option) {
+        return option.substring(option.indexOf('=') + 1);
+    }
+}
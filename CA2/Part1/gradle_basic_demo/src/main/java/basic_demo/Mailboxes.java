@@ -0,0 +1,434 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+
+/**
+ * Keeps the private messages sent to clients while they are offline, and hands them
+ * over when they are back. A client gets a mailbox when it leaves, i.e. only names
+ * that have been in use can receive mail, and the mailbox goes away once its messages
+ * have been delivered, or once the client has stayed away for longer than the expiry
+ * time. There are at most a fixed number of mailboxes; names that leave while all of
+ * them are taken get none.
+ *
+ * Every mailbox is a memory-mapped file in the mailbox directory, created with the
+ * first message. Screen names can be longer than a file name may be, so the file is
+ * named after the SHA-256 hash of the screen name and holds the name itself. A mailbox
+ * holds at most a fixed number of bytes of messages; a message that does not fit is
+ * refused and its sender told so. The file is laid out as
+ *
+ *   int32   number of bytes of messages
+ *   int32   number of bytes of the screen name
+ *   bytes   the screen name, UTF-8 encoded
+ *   bytes   the messages, one after the other, as binary {@link Frame}s
+ *
+ * The mailboxes left by an earlier run are picked up again when the server starts,
+ * their clients counted as having left when their files were last written.
+ *
+ * Senders only reserve room in the mailbox and queue the message; a single thread
+ * copies it into the mapped file, and tells the sender should that fail after all. The
+ * same thread drops the expired mailboxes, lets go of the mappings of those that have
+ * not been written to for a minute, so that only the busy ones take address space,
+ * and does the delivery when the client is back. Since the mailbox is only taken away
+ * on that thread, the messages queued before the client came back are always in it by
+ * then, and delivered in order with the rest.
+ *
+ * The delivery is done in batches of half an outbound queue, each waiting until the
+ * client has taken the previous one, so that a full mailbox neither overflows the
+ * client's queue nor competes with the live broadcasts.
+ */
+class Mailboxes {
+
+    private final static Logger LOGGER = LogManager.getLogger(Mailboxes.class);
+
+    static final String SUFFIX = ".mailbox";
+
+    /** What became of a message for a client that is not connected. */
+    enum Delivery {
+        /** Kept in the client's mailbox. */
+        KEPT,
+        /** Refused because the client's mailbox is full. */
+        FULL,
+        /** Refused because nobody of that name has been connected. */
+        NO_MAILBOX
+    }
+
+    private static final int HEADER_BYTES = 8;
+    private static final long BATCH_PAUSE_MILLIS = 20;
+    private static final long IDLE_MILLIS = 60000;
+
+    private final ChatServer server;
+    private final Path directory;
+    private final int capacityBytes;
+    private final int batchSize;
+    private final long expiryMillis;
+    private final int maxMailboxes;
+    private final ConcurrentMap<String, Mailbox> mailboxes = new ConcurrentHashMap<String, Mailbox>();
+    private final LongAdder kept = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Mailbox Writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Creates the mailboxes of a server in the given directory, each holding up to the
+     * given number of bytes, to be delivered in batches that suit the given capacity of
+     * the clients' outbound queues. A mailbox is dropped once its client has been away
+     * for the given time, unless that is zero, and there are never more than the given
+     * number of them.
+     */
+    Mailboxes(ChatServer server, Path directory, int capacityBytes, int outboundQueueCapacity,
+            long expiryMillis, int maxMailboxes) {
+        this.server = server;
+        this.directory = directory;
+        this.capacityBytes = capacityBytes;
+        this.batchSize = Math.max(1, outboundQueueCapacity / 2);
+        this.expiryMillis = expiryMillis;
+        this.maxMailboxes = maxMailboxes;
+    }
+
+    /**
+     * Picks up the mailboxes left by earlier runs, and starts dropping the expired ones.
+     */
+    void start() throws IOException {
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<Path>();
+        try (Stream<Path> listing = Files.list(directory)) {
+            listing.filter(file -> file.getFileName().toString().endsWith(SUFFIX)).forEach(files::add);
+        }
+        for (Path file : files) {
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r")) {
+                int used = raf.readInt();
+                int nameLength = raf.readInt();
+                if (nameLength < 0 || HEADER_BYTES + nameLength > raf.length()) {
+                    throw new IOException("bad name length " + nameLength);
+                }
+                byte[] name = new byte[nameLength];
+                raf.readFully(name);
+                mailboxes.put(new String(name, StandardCharsets.UTF_8),
+                        new Mailbox(file, used, Files.getLastModifiedTime(file).toMillis()));
+            } catch (IOException | RuntimeException e) {
+                LOGGER.info("Skipped the unreadable mailbox " + file + ": " + e);
+            }
+        }
+        if (!files.isEmpty()) {
+            LOGGER.info("Found " + files.size() + " mailboxes in " + directory);
+        }
+        long sweepMillis = expiryMillis == 0 ? IDLE_MILLIS : Math.max(10, Math.min(IDLE_MILLIS, expiryMillis / 2));
+        writer.scheduleWithFixedDelay(this::sweep, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gives a client that has just left a mailbox, unless it still has one or all the
+     * mailboxes are taken.
+     */
+    void open(String name) {
+        if (mailboxes.size() >= maxMailboxes && !mailboxes.containsKey(name)) {
+            return;
+        }
+        mailboxes.putIfAbsent(name, new Mailbox(directory.resolve(hash(name) + SUFFIX), 0, System.currentTimeMillis()));
+    }
+
+    /**
+     * Keeps a message for a client that is not connected. Never blocks; the caller
+     * keeps its own reference to the message. The sender, if any, is told the message
+     * is kept before the writer can get to it, so that should it turn out not to fit
+     * after all, the sender hears of that last.
+     */
+    Delivery keep(String name, EncodedMessage message, ChatSession sender) {
+        Mailbox mailbox = mailboxes.get(name);
+        if (mailbox == null) {
+            return Delivery.NO_MAILBOX;
+        }
+        if (!mailbox.reserve(message.length(), capacityBytes)) {
+            return Delivery.FULL;
+        }
+        if (sender != null) {
+            sender.send("MESSAGE " + name + " is away, your message will be delivered when they are back");
+        }
+        message.retain();
+        writer.execute(() -> {
+            boolean written = false;
+            try {
+                written = write(name, mailbox, message);
+            } catch (IOException e) {
+                LOGGER.info("Could not keep a message for " + name + ": " + e);
+            } finally {
+                if (!written) {
+                    mailbox.reserved.addAndGet(-message.length());
+                    if (sender != null) {
+                        sender.send("MESSAGE Your message to " + name + " could not be kept");
+                    }
+                }
+                message.release();
+            }
+        });
+        return Delivery.KEPT;
+    }
+
+    /**
+     * Delivers the mail of a client whose name has just been accepted, if it has any.
+     * The mailbox is taken away on the writer thread, once the messages queued for it
+     * before are in, so that they are all counted and delivered in order.
+     */
+    void deliver(ChatSession session) {
+        writer.execute(() -> {
+            if (server.getSession(session.getName()) != session) {
+                // Gone again; the mail waits for the next time.
+                return;
+            }
+            Mailbox mailbox = mailboxes.remove(session.getName());
+            if (mailbox == null) {
+                return;
+            }
+            List<EncodedMessage> messages;
+            try {
+                messages = empty(session.getName(), mailbox);
+            } catch (IOException e) {
+                LOGGER.info("Could not read the mailbox of " + session.getName() + ": " + e);
+                return;
+            }
+            if (!messages.isEmpty()) {
+                session.send("MESSAGE You have " + messages.size() + " messages from while you were away");
+                deliver(session, messages, 0);
+            }
+        });
+    }
+
+    /**
+     * Runs a task on the writer thread, after everything queued for it before.
+     */
+    void execute(Runnable task) {
+        writer.execute(task);
+    }
+
+    /**
+     * Copies a message into a mailbox, or hands it over should the client be back,
+     * and tells whether either worked.
+     */
+    private boolean write(String name, Mailbox mailbox, EncodedMessage message) throws IOException {
+        Mailbox current = mailboxes.get(name);
+        if (current != mailbox) {
+            // The client came back and has been handed its mail, and may have left
+            // again since; or the mailbox expired.
+            ChatSession session = server.getSession(name);
+            if (session != null) {
+                session.send(message);
+                delivered.increment();
+                return true;
+            }
+            if (current == null) {
+                return false;
+            }
+            mailbox = current;
+        }
+        MappedByteBuffer buffer = map(name, mailbox);
+        int used = buffer.getInt(0);
+        int length = message.length();
+        if (mailbox.start + used + length > buffer.capacity()) {
+            return false;
+        }
+        // The count goes in last, so that a crash never leaves half a message behind.
+        buffer.position(mailbox.start + used);
+        buffer.put(message.view(true));
+        buffer.putInt(0, used + length);
+        mailbox.lastWritten = System.currentTimeMillis();
+        kept.increment();
+        return true;
+    }
+
+    private MappedByteBuffer map(String name, Mailbox mailbox) throws IOException {
+        if (mailbox.buffer == null) {
+            try (RandomAccessFile raf = new RandomAccessFile(mailbox.file.toFile(), "rw")) {
+                boolean created = raf.length() == 0;
+                if (created) {
+                    byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+                    raf.writeInt(0);
+                    raf.writeInt(encoded.length);
+                    raf.write(encoded);
+                }
+                raf.seek(4);
+                mailbox.start = HEADER_BYTES + raf.readInt();
+                long size = Math.max(raf.length(), mailbox.start + capacityBytes);
+                mailbox.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+        return mailbox.buffer;
+    }
+
+    /**
+     * Drops the mailboxes whose clients have been away for longer than the expiry
+     * time, and lets go of the mappings that have not been written to for a while.
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Mailbox> entry : mailboxes.entrySet()) {
+            Mailbox mailbox = entry.getValue();
+            try {
+                if (expiryMillis > 0 && now - mailbox.leftAt > expiryMillis
+                        && mailboxes.remove(entry.getKey(), mailbox)) {
+                    mailbox.buffer = null;
+                    Files.deleteIfExists(mailbox.file);
+                    expired.increment();
+                } else if (mailbox.buffer != null && now - mailbox.lastWritten > IDLE_MILLIS) {
+                    // The mapping goes once the buffer is collected.
+                    mailbox.buffer.force();
+                    mailbox.buffer = null;
+                }
+            } catch (IOException e) {
+                LOGGER.info("Could not drop the mailbox of " + entry.getKey() + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Reads all the messages out of a mailbox and deletes its file.
+     */
+    private List<EncodedMessage> empty(String name, Mailbox mailbox) throws IOException {
+        List<EncodedMessage> messages = new ArrayList<EncodedMessage>();
+        if (mailbox.buffer == null && !Files.exists(mailbox.file)) {
+            return messages;
+        }
+        MappedByteBuffer buffer = map(name, mailbox);
+        int end = mailbox.start + Math.min(buffer.getInt(0), buffer.capacity() - mailbox.start);
+        byte[] frame = new byte[512];
+        int position = mailbox.start;
+        while (position + Frame.HEADER_LENGTH <= end) {
+            int length = 4 + buffer.getInt(position);
+            if (length < Frame.HEADER_LENGTH || position + length > end) {
+                break;
+            }
+            if (frame.length < length) {
+                frame = new byte[Math.max(length, frame.length * 2)];
+            }
+            buffer.position(position);
+            buffer.get(frame, 0, length);
+            messages.add(EncodedMessage.copyOf(frame, length, server.getBufferPool()));
+            position += length;
+        }
+        mailbox.buffer = null;
+        Files.deleteIfExists(mailbox.file);
+        return messages;
+    }
+
+    /**
+     * Hands a client the next batch of its mail, once it has taken the previous one.
+     */
+    private void deliver(ChatSession session, List<EncodedMessage> messages, int from) {
+        if (server.getSession(session.getName()) != session) {
+            // Gone again; what is left is lost with the session's queue anyway.
+            for (int i = from; i < messages.size(); i++) {
+                messages.get(i).release();
+            }
+            return;
+        }
+        int next = from;
+        if (session.queuedMessages() < batchSize) {
+            for (; next < messages.size() && next < from + batchSize; next++) {
+                session.send(messages.get(next));
+                messages.get(next).release();
+                delivered.increment();
+            }
+        }
+        if (next < messages.size()) {
+            int resume = next;
+            writer.schedule(() -> deliver(session, messages, resume), BATCH_PAUSE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static String hash(String name) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(name.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * The number of messages kept in mailboxes so far.
+     */
+    long kept() {
+        return kept.sum();
+    }
+
+    /**
+     * The number of kept messages delivered so far.
+     */
+    long delivered() {
+        return delivered.sum();
+    }
+
+    /**
+     * The number of mailboxes dropped so far because their clients stayed away too long.
+     */
+    long expired() {
+        return expired.sum();
+    }
+
+    /**
+     * The number of mailboxes there are.
+     */
+    int size() {
+        return mailboxes.size();
+    }
+
+    private static final class Mailbox {
+        final Path file;
+        // When the client left.
+        final long leftAt;
+        // The bytes taken by the messages kept or on their way, checked by the senders.
+        final AtomicInteger reserved;
+        // Only touched by the writer thread.
+        MappedByteBuffer buffer;
+        int start;
+        long lastWritten;
+
+        Mailbox(Path file, int reserved, long leftAt) {
+            this.file = file;
+            this.leftAt = leftAt;
+            this.reserved = new AtomicInteger(reserved);
+        }
+
+        boolean reserve(int bytes, int capacity) {
+            int current;
+            do {
+                current = reserved.get();
+                if (current + bytes > capacity) {
+                    return false;
+                }
+            } while (!reserved.compareAndSet(current, current + bytes));
+            return true;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package basic_demo;
+
+
+/**
+ * The most recent messages of a room, kept so that newcomers can catch up. The history
+ * is a ring of a fixed number of slots allocated up front; each slot holds a reference
+ * to an already encoded message, so recording a message costs no copy and replaying it
+ * hands out the very bytes that were broadcast. Since a message is at most a line plus
+ * a short prefix, the memory a history can hold on to is bounded by its capacity times
+ * the maximum line length, however busy the room.
+ */
+class MessageHistory {
+
+    private static final EncodedMessage[] NONE = new EncodedMessage[0];
+
+    private final EncodedMessage[] ring;
+    private int next;
+    private int count;
+
+    MessageHistory(int capacity) {
+        this.ring = new EncodedMessage[Math.max(0, capacity)];
+    }
+
+    /**
+     * Records a message, retaining it, and lets go of the oldest one if the ring is full.
+     */
+    void add(EncodedMessage message) {
+        if (ring.length == 0) {
+            return;
+        }
+        EncodedMessage oldest;
+        synchronized (this) {
+            oldest = ring[next];
+            ring[next] = message.retain();
+            next = (next + 1) % ring.length;
+            count = Math.min(count + 1, ring.length);
+        }
+        if (oldest != null) {
+            oldest.release();
+        }
+    }
+
+    /**
+     * Returns the recorded messages, oldest first. Every message returned has been
+     * retained for the caller, who must release it.
+     */
+    synchronized EncodedMessage[] snapshot() {
+        if (count == 0) {
+            return NONE;
+        }
+        EncodedMessage[] messages = new EncodedMessage[count];
+        int first = (next - count + ring.length) % ring.length;
+        for (int i = 0; i < count; i++) {
+            messages[i] = ring[(first + i) % ring.length].retain();
+        }
+        return messages;
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Releases every recorded message. Used when the room goes away.
+     */
+    synchronized void clear() {
+        for (int i = 0; i < ring.length; i++) {
+            if (ring[i] != null) {
+                ring[i].release();
+                ring[i] = null;
+            }
+        }
+        next = count = 0;
+    }
+}
@@ -0,0 +1,520 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+
+/**
+ * A non-blocking engine for the chat server. The thread running the engine accepts
+ * connections and deals them out in turn to a fixed number of event loops. Each event
+ * loop multiplexes its share of the clients over its own Selector, so an idle client
+ * costs a couple of small buffers instead of a parked thread.
+ *
+ * The chat protocol itself is the one implemented by {@link ChatSession}, so clients
+ * cannot tell which engine is serving them.
+ *
+ * Closing the engine closes the listening socket, which ends the accept loop, and has
+ * every event loop close its connections and its selector.
+ */
+class NioEngine implements Runnable {
+
+    private final static Logger LOGGER = LogManager.getLogger(NioEngine.class);
+
+    private final ChatServer server;
+    private final int serverPort;
+    private final int backlog;
+    private final EventLoop[] loops;
+    private volatile ServerSocketChannel listener;
+    private volatile boolean closed;
+
+    NioEngine(ChatServer server, int serverPort, int eventLoops, int backlog) {
+        this.server = server;
+        this.serverPort = serverPort;
+        this.backlog = backlog;
+        this.loops = new EventLoop[Math.max(1, eventLoops)];
+    }
+
+    public void run() {
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            this.listener = listener;
+            listener.bind(new InetSocketAddress(serverPort), backlog);
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop();
+                Thread t = new Thread(loops[i], "Chat Server Event Loop " + i);
+                t.setDaemon(true);
+                t.start();
+            }
+            server.listening(((InetSocketAddress) listener.getLocalAddress()).getPort());
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel;
+                InetAddress address;
+                try {
+                    channel = listener.accept();
+                } catch (IOException e) {
+                    if (closed) {
+                        return;
+                    }
+                    ChatServer.acceptFailed(e);
+                    continue;
+                }
+                try {
+                    address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+                } catch (IOException e) {
+                    // Reset before we got to look at it.
+                    try { channel.close(); } catch (IOException ignored) {}
+                    continue;
+                }
+                String refusal = server.admit(address);
+                if (refusal != null) {
+                    // Still in blocking mode, and the few bytes fit the empty socket buffer.
+                    try {
+                        channel.write(ByteBuffer.wrap(ChatServer.busyLine(refusal)));
+                    } catch (IOException e) {
+                        // Gone already.
+                    }
+                    try { channel.close(); } catch (IOException e) {}
+                    continue;
+                }
+                loops[next].register(channel, address);
+                next = (next + 1) % loops.length;
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                e.printStackTrace();
+                server.listening().completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting clients and closes all the connections. The event loops finish
+     * once they have closed theirs.
+     */
+    void close() {
+        closed = true;
+        if (listener != null) {
+            try { listener.close(); } catch (IOException e) {}
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.execute(loop::close);
+            }
+        }
+    }
+
+    /**
+     * A selector thread. Work for the loop submitted from other threads is queued and
+     * the selector woken up, so that all the channel and key manipulation happens on
+     * the loop's own thread. Delayed work waits in a timer queue that bounds how long
+     * the loop may sleep in the selector. A recurring timer checks the loop's clients
+     * for silence.
+     */
+    private class EventLoop implements Runnable {
+        // The most messages handed to a single gathering write.
+        private static final int MAX_BATCH = 64;
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>(
+                Comparator.comparingLong((Timer timer) -> timer.deadline));
+        // Scratch space for the connection being flushed; only used on the loop thread.
+        private final EncodedMessage[] batch = new EncodedMessage[MAX_BATCH];
+        private final ByteBuffer[] views = new ByteBuffer[MAX_BATCH];
+        private volatile Thread thread;
+        // Only touched by the loop thread.
+        private boolean closed;
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(SocketChannel channel, InetAddress address) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    Connection connection = new Connection(this, channel, key, address);
+                    key.attach(connection);
+                    connection.start();
+                } catch (IOException e) {
+                    LOGGER.info("Could not register a new client: " + e);
+                    try { channel.close(); } catch (IOException ignored) {}
+                    server.connectionClosed(address);
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Runs a task on the loop once the given delay has passed.
+         */
+        void schedule(Runnable task, long delayNanos) {
+            Timer timer = new Timer(System.nanoTime() + delayNanos, task);
+            if (Thread.currentThread() == thread) {
+                // Straight into the queue, or a timer scheduled by a timer would wait
+                // for the selector to be woken up by something else.
+                timers.add(timer);
+            } else {
+                execute(() -> timers.add(timer));
+            }
+        }
+
+        /**
+         * How long the selector may block before the next timer is due: 0 for ever,
+         * or -1 not at all.
+         */
+        private long selectTimeout() {
+            Timer next = timers.peek();
+            if (next == null) {
+                return 0;
+            }
+            long remaining = next.deadline - System.nanoTime();
+            return remaining <= 0 ? -1 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining + 999_999));
+        }
+
+        /**
+         * Pings or disconnects the clients that have gone quiet, then schedules the next
+         * check.
+         */
+        private void checkIdle(long periodNanos) {
+            long now = System.nanoTime();
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid() && key.attachment() instanceof Connection) {
+                    Connection connection = (Connection) key.attachment();
+                    connection.guard(() -> connection.checkIdle(now)).run();
+                }
+            }
+            schedule(() -> checkIdle(periodNanos), periodNanos);
+        }
+
+        private void close() {
+            closed = true;
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).abort();
+                }
+            }
+        }
+
+        private void runDueTimers() {
+            long now = System.nanoTime();
+            while (!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+                runSafely(timers.poll().task);
+            }
+        }
+
+        /**
+         * Runs a task or timer, logging rather than propagating whatever it throws. Work
+         * on behalf of a connection is wrapped by {@link Connection#guard}, which closes
+         * just that connection should it fail.
+         */
+        private void runSafely(Runnable task) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                LOGGER.info("Event loop task failed: " + e);
+            }
+        }
+
+        public void run() {
+            thread = Thread.currentThread();
+            long check = TimeUnit.MILLISECONDS.toNanos(server.getHeartbeatCheckMillis());
+            if (check > 0) {
+                schedule(() -> checkIdle(check), check);
+            }
+            while (!closed) {
+                try {
+                    long timeout = selectTimeout();
+                    if (timeout < 0) {
+                        selector.selectNow();
+                    } else {
+                        selector.select(timeout);
+                    }
+                } catch (IOException e) {
+                    LOGGER.info("Event loop selector failed: " + e);
+                    return;
+                }
+
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (!key.isValid()) {
+                            connection.close();
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (Exception e) {
+                        // A bug serving one client must not strand all the others.
+                        LOGGER.info("Closing a client after an unexpected failure: " + e);
+                        connection.abort();
+                    }
+                }
+
+                // Also picks up the work queued by this very loop while handling keys.
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    runSafely(task);
+                }
+                runDueTimers();
+            }
+            try { selector.close(); } catch (IOException e) {}
+        }
+    }
+
+    private static final class Timer {
+        final long deadline;
+        final Runnable task;
+
+        Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+
+    /**
+     * A client connection owned by an event loop. Messages sent to the client from any
+     * thread are queued and written by the owning loop, which only asks the selector
+     * for write readiness while the socket cannot take everything at once. Queued
+     * messages are shared with the other recipients; the connection only keeps its
+     * own cursor into the message it is currently writing. A flush hands as many
+     * queued messages as it can to one gathering write.
+     *
+     * While the session awaits a result, the connection stops reading and leaves the
+     * lines it has already received in the decoder until the result is in.
+     *
+     * A connection that is being closed may still be sent messages by other threads
+     * for a moment; those are released by the flush they schedule.
+     */
+    private class Connection extends ChatSession {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private EncodedMessage current;
+        private ByteBuffer head;
+        private volatile boolean closed;
+        private boolean paused;
+        private boolean writeInterest;
+
+        Connection(EventLoop loop, SocketChannel channel, SelectionKey key, InetAddress address) {
+            super(NioEngine.this.server, address);
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+        }
+
+        @Override
+        void flushLater(long delayNanos) {
+            if (delayNanos > 0) {
+                loop.schedule(guard(this::flush), delayNanos);
+            } else {
+                loop.execute(guard(this::flush));
+            }
+        }
+
+        /**
+         * Wraps work for this connection so that, should it fail, only this connection
+         * is closed and the loop carries on with the others.
+         */
+        Runnable guard(Runnable task) {
+            return () -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    LOGGER.info("Closing a client after an unexpected failure: " + e);
+                    abort();
+                }
+            };
+        }
+
+        @Override
+        <T> void await(CompletableFuture<T> future, Consumer<T> then) {
+            paused = true;
+            updateInterest();
+            future.whenComplete((result, failure) -> loop.execute(guard(() -> {
+                paused = false;
+                then.accept(failure == null ? result : null);
+                if (!closed) {
+                    updateInterest();
+                    handleLines();
+                }
+            })));
+        }
+
+        private void updateInterest() {
+            if (key.isValid()) {
+                key.interestOps((paused ? 0 : SelectionKey.OP_READ) | (writeInterest ? SelectionKey.OP_WRITE : 0));
+            }
+        }
+
+        @Override
+        void disconnect() {
+            loop.execute(this::abort);
+        }
+
+        void read() {
+            if (paused) {
+                return;
+            }
+            int count;
+            try {
+                count = decoder.readFrom(channel);
+            } catch (IOException e) {
+                count = -1;
+            }
+            if (count < 0) {
+                close();
+                return;
+            }
+            handleLines();
+        }
+
+        private void handleLines() {
+            LineDecoder.Line line;
+            while (!paused && (line = decoder.next()) != null) {
+                if (!onLine(line)) {
+                    close();
+                    return;
+                }
+            }
+        }
+
+        void flush() {
+            long requestedAt = flushStarted();
+            if (closed) {
+                discardOutbound();
+                return;
+            }
+            EncodedMessage[] batch = loop.batch;
+            ByteBuffer[] views = loop.views;
+            int messages = 0;
+            int writes = 0;
+            long bytes = 0;
+            int count = 0;
+            try {
+                while (true) {
+                    // The batch starts with the rest of a message a previous write
+                    // could not finish, and owns the references to its messages.
+                    count = 0;
+                    if (current != null) {
+                        batch[0] = current;
+                        views[0] = head;
+                        count = 1;
+                        current = null;
+                        head = null;
+                    }
+                    EncodedMessage next;
+                    while (count < batch.length && (next = outbound.poll()) != null) {
+                        batch[count] = next;
+                        views[count] = next.view(isBinary());
+                        count++;
+                    }
+                    if (count == 0) {
+                        writeInterest = false;
+                        updateInterest();
+                        return;
+                    }
+
+                    bytes += channel.write(views, 0, count);
+                    writes++;
+                    int done = 0;
+                    while (done < count && !views[done].hasRemaining()) {
+                        batch[done].release();
+                        batch[done] = null;
+                        done++;
+                    }
+                    messages += done;
+                    if (done < count) {
+                        current = batch[done];
+                        head = views[done];
+                        batch[done] = null;
+                        // Messages behind the unfinished one have not been touched yet.
+                        for (int i = count - 1; i > done; i--) {
+                            outbound.unpoll(batch[i]);
+                            batch[i] = null;
+                        }
+                        writeInterest = true;
+                        updateInterest();
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                for (int i = 0; i < count; i++) {
+                    if (batch[i] != null) {
+                        batch[i].release();
+                    }
+                }
+                close();
+            } finally {
+                Arrays.fill(batch, null);
+                Arrays.fill(views, null);
+                server.getFlushScheduler().recordFlush(requestedAt, messages, writes, bytes);
+            }
+        }
+
+        private void discardOutbound() {
+            if (current != null) {
+                current.release();
+                current = null;
+                head = null;
+            }
+            outbound.clear();
+        }
+
+        /**
+         * Closes the connection after a failure, which may have left it in any state.
+         */
+        void abort() {
+            try {
+                close();
+            } catch (Exception e) {
+                LOGGER.info("Could not close a client cleanly: " + e);
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            try { channel.close(); } catch (IOException e) {}
+            discardOutbound();
+            end();
+        }
+    }
+}
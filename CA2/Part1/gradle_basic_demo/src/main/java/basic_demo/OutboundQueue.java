@@ -0,0 +1,141 @@
+package basic_demo;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * The bounded queue of messages waiting to be written to one client. Any thread may
+ * offer messages, while a single writer at a time polls them. A message that has been
+ * polled belongs to the writer, so the policy applied when the queue is full only ever
+ * affects messages the client has not started receiving.
+ *
+ * What happens to a client whose queue is full is decided by its
+ * {@link ChatServer.SlowConsumerPolicy}.
+ */
+class OutboundQueue {
+
+    private final int capacity;
+    private final ChatServer.SlowConsumerPolicy policy;
+    private final BufferPool pool;
+    private final LongAdder droppedTotal;
+    private final Deque<EncodedMessage> messages = new ArrayDeque<EncodedMessage>();
+    private long dropped;
+    private int maxDepth;
+    private long bytes;
+
+    /**
+     * Creates a queue holding up to capacity messages. Messages dropped by the policy
+     * are also added to the given server-wide counter.
+     */
+    OutboundQueue(int capacity, ChatServer.SlowConsumerPolicy policy, BufferPool pool, LongAdder droppedTotal) {
+        this.capacity = Math.max(2, capacity);
+        this.policy = policy;
+        this.pool = pool;
+        this.droppedTotal = droppedTotal;
+    }
+
+    /**
+     * Queues a message, retaining it. Returns false, without queueing anything, when
+     * the queue is full and the policy says the client has to be disconnected.
+     */
+    synchronized boolean offer(EncodedMessage message) {
+        if (messages.size() >= capacity) {
+            switch (policy) {
+                case DISCONNECT:
+                    return false;
+                case DROP_OLDEST:
+                    drop(1);
+                    break;
+                case CONFLATE:
+                    // Replace the whole backlog by a note, so the client resumes with
+                    // current traffic and knows it has missed something.
+                    int skipped = messages.size();
+                    drop(skipped);
+                    EncodedMessage note = EncodedMessage.encode("MESSAGE (" + skipped + " messages skipped)", pool);
+                    messages.add(note);
+                    bytes += note.length();
+                    break;
+            }
+        }
+        messages.add(message.retain());
+        bytes += message.length();
+        maxDepth = Math.max(maxDepth, messages.size());
+        return true;
+    }
+
+    private void drop(int count) {
+        for (int i = 0; i < count; i++) {
+            EncodedMessage message = messages.poll();
+            bytes -= message.length();
+            message.release();
+        }
+        dropped += count;
+        droppedTotal.add(count);
+    }
+
+    /**
+     * Takes the oldest message, or returns null if there is none. The caller becomes
+     * responsible for releasing it.
+     */
+    synchronized EncodedMessage poll() {
+        EncodedMessage message = messages.poll();
+        if (message != null) {
+            bytes -= message.length();
+        }
+        return message;
+    }
+
+    /**
+     * Puts back a message the writer polled but could not start writing, ahead of
+     * everything else. The queue takes back responsibility for releasing it.
+     */
+    synchronized void unpoll(EncodedMessage message) {
+        messages.addFirst(message);
+        bytes += message.length();
+    }
+
+    synchronized boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    /**
+     * Releases every queued message. Used when the client goes away.
+     */
+    synchronized void clear() {
+        EncodedMessage message;
+        while ((message = messages.poll()) != null) {
+            message.release();
+        }
+        bytes = 0;
+    }
+
+    /**
+     * The number of messages currently waiting.
+     */
+    synchronized int depth() {
+        return messages.size();
+    }
+
+    /**
+     * The size, in bytes, of the messages currently waiting.
+     */
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * The largest number of messages that have been waiting at once.
+     */
+    synchronized int maxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * The number of messages the policy has thrown away so far.
+     */
+    synchronized long dropped() {
+        return dropped;
+    }
+}
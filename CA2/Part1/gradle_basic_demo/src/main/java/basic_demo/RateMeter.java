@@ -0,0 +1,69 @@
+package basic_demo;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Counts events and reports their average rate over the last few whole seconds. The
+ * counts live in a small ring of one-second slots that are recycled lazily, so marking
+ * an event is a couple of atomic operations and no background thread is needed.
+ *
+ * A slot being recycled by one thread may lose an event marked at the same instant by
+ * another; that is an acceptable error for a statistic.
+ */
+class RateMeter {
+
+    private static final int SLOTS = 11;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray slotSeconds = new AtomicLongArray(SLOTS);
+    private final LongAdder total = new LongAdder();
+
+    void mark() {
+        mark(1);
+    }
+
+    void mark(long events) {
+        long second = currentSecond();
+        int slot = slot(second);
+        long stamped = slotSeconds.get(slot);
+        if (stamped != second && slotSeconds.compareAndSet(slot, stamped, second)) {
+            counts.set(slot, 0);
+        }
+        counts.addAndGet(slot, events);
+        total.add(events);
+    }
+
+    /**
+     * The average number of events per second over the last complete seconds, leaving
+     * out the second in progress.
+     */
+    double perSecond() {
+        long second = currentSecond();
+        long events = 0;
+        for (int ago = 1; ago < SLOTS; ago++) {
+            int slot = slot(second - ago);
+            if (slotSeconds.get(slot) == second - ago) {
+                events += counts.get(slot);
+            }
+        }
+        return events / (double) (SLOTS - 1);
+    }
+
+    /**
+     * The number of events marked since the meter was created.
+     */
+    long total() {
+        return total.sum();
+    }
+
+    private static int slot(long second) {
+        return (int) Math.floorMod(second, (long) SLOTS);
+    }
+
+    private static long currentSecond() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+    }
+}
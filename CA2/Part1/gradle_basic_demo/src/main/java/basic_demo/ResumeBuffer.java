@@ -0,0 +1,75 @@
+package basic_demo;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * The latest messages broadcast in any room of the server, kept so that a client that
+ * lost its connection can resume its session and be sent just what it missed, see
+ * {@link Frame#RESUME}. Like a {@link MessageHistory} it is a ring of a fixed number of
+ * slots, each holding a reference to an already encoded message, so the memory it can
+ * hold on to is bounded however busy the server.
+ *
+ * The messages relayed by other nodes of a cluster are kept too, since every node
+ * numbers them afresh as they arrive.
+ */
+class ResumeBuffer {
+
+    private final EncodedMessage[] ring;
+    private final String[] rooms;
+    private int next;
+    private int count;
+    // The highest sequence number pushed out of the ring so far.
+    private long evicted;
+
+    ResumeBuffer(int capacity) {
+        this.ring = new EncodedMessage[Math.max(1, capacity)];
+        this.rooms = new String[ring.length];
+    }
+
+    /**
+     * Records a message broadcast in a room, retaining it, and lets go of the oldest
+     * one if the ring is full.
+     */
+    void add(String room, EncodedMessage message) {
+        EncodedMessage oldest;
+        synchronized (this) {
+            oldest = ring[next];
+            if (oldest != null) {
+                evicted = Math.max(evicted, oldest.sequence());
+            }
+            ring[next] = message.retain();
+            rooms[next] = room;
+            next = (next + 1) % ring.length;
+            count = Math.min(count + 1, ring.length);
+        }
+        if (oldest != null) {
+            oldest.release();
+        }
+    }
+
+    /**
+     * Adds the messages of the given rooms numbered after the given sequence number to
+     * the list, in the order of their numbers and each retained for the caller. Returns
+     * false if some of them have already been pushed out of the ring.
+     */
+    boolean since(long sequence, Collection<String> roomNames, List<EncodedMessage> messages) {
+        int from = messages.size();
+        boolean complete;
+        synchronized (this) {
+            int first = (next - count + ring.length) % ring.length;
+            for (int i = 0; i < count; i++) {
+                int slot = (first + i) % ring.length;
+                if (ring[slot].sequence() > sequence && roomNames.contains(rooms[slot])) {
+                    messages.add(ring[slot].retain());
+                }
+            }
+            complete = evicted <= sequence;
+        }
+        // Concurrent broadcasts may be recorded slightly out of order.
+        messages.subList(from, messages.size()).sort(Comparator.comparingLong(EncodedMessage::sequence));
+        return complete;
+    }
+}
@@ -0,0 +1,312 @@
+package basic_demo;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * A full-text index of the latest chat messages of all rooms, searched with "/search".
+ * A message is split into terms, runs of letters and digits in lower case, and every
+ * term maps to the list of the messages that contain it. A search finds the messages
+ * containing all of its terms by intersecting their lists.
+ *
+ * The index holds a fixed number of messages. The messages are numbered in the order
+ * they are indexed and kept in a ring, and once it is full indexing a message evicts
+ * the oldest one, from the ring and from the lists of its terms. Since the numbers only
+ * grow, every list is in ascending order and an evicted message is always at its head,
+ * so a list is kept as the gaps between its numbers, each a variable-length integer of
+ * one or two bytes for all but the rarest terms. Terms whose list runs empty are
+ * dropped, so the memory of the index is bounded by its capacity times the length of a
+ * line, however long the server runs.
+ *
+ * Broadcasting threads only queue the already encoded message; a single thread decodes
+ * and indexes it, and also runs the searches, so the index itself needs no locking.
+ * Should the indexer fall behind so far that its queue fills up, messages are left out
+ * of the index rather than holding up the broadcast.
+ */
+class SearchIndex {
+
+    /** The most matches a search returns. */
+    static final int MAX_RESULTS = 10;
+
+    private static final int QUEUE_CAPACITY = 16384;
+    private static final int MAX_TERM_LENGTH = 32;
+
+    private final String[] texts;
+    private final Map<String, Postings> terms = new HashMap<String, Postings>();
+    private long nextNumber;
+    private final LongAdder indexed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final ThreadPoolExecutor indexer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), r -> {
+                Thread t = new Thread(r, "Search Indexer");
+                t.setDaemon(true);
+                return t;
+            });
+
+    /**
+     * Creates an index of the given number of latest messages.
+     */
+    SearchIndex(int capacity) {
+        this.texts = new String[Math.max(1, capacity)];
+    }
+
+    /**
+     * Queues a chat message to be indexed. Never blocks.
+     */
+    void add(EncodedMessage message) {
+        message.retain();
+        try {
+            indexer.execute(() -> {
+                try {
+                    index(payload(message));
+                } finally {
+                    message.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            message.release();
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Finds the latest messages containing all the terms of a query, once the messages
+     * queued so far have been indexed. Completes with null if the indexer is too busy
+     * to take the search.
+     */
+    CompletableFuture<Matches> search(String query) {
+        try {
+            return CompletableFuture.supplyAsync(() -> find(query), indexer);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * The number of messages indexed so far.
+     */
+    long indexed() {
+        return indexed.sum();
+    }
+
+    /**
+     * The number of messages left out of the index so far because it could not keep up.
+     */
+    long dropped() {
+        return dropped.sum();
+    }
+
+    private static String payload(EncodedMessage message) {
+        ByteBuffer frame = message.view(true);
+        byte[] payload = new byte[frame.remaining() - Frame.HEADER_LENGTH];
+        frame.position(frame.position() + Frame.HEADER_LENGTH);
+        frame.get(payload);
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    private void index(String text) {
+        long number = nextNumber++;
+        int slot = (int) (number % texts.length);
+        if (texts[slot] != null) {
+            evict(number - texts.length, texts[slot]);
+        }
+        texts[slot] = text;
+        for (String term : terms(text)) {
+            Postings postings = terms.get(term);
+            if (postings == null) {
+                postings = new Postings();
+                terms.put(term, postings);
+            }
+            postings.add(number);
+        }
+        indexed.increment();
+    }
+
+    private void evict(long number, String text) {
+        for (String term : terms(text)) {
+            Postings postings = terms.get(term);
+            if (postings != null && postings.first() == number) {
+                postings.removeFirst();
+                if (postings.isEmpty()) {
+                    terms.remove(term);
+                }
+            }
+        }
+    }
+
+    private Matches find(String query) {
+        Set<String> queried = terms(query);
+        long[] found = null;
+        for (String term : queried) {
+            Postings postings = terms.get(term);
+            if (postings == null) {
+                return new Matches(0, Collections.<String>emptyList());
+            }
+            found = found == null ? postings.toArray() : intersect(found, postings.toArray());
+        }
+        if (found == null) {
+            return new Matches(0, Collections.<String>emptyList());
+        }
+        List<String> latest = new ArrayList<String>();
+        for (int i = Math.max(0, found.length - MAX_RESULTS); i < found.length; i++) {
+            latest.add(texts[(int) (found[i] % texts.length)]);
+        }
+        return new Matches(found.length, latest);
+    }
+
+    private static long[] intersect(long[] a, long[] b) {
+        long[] both = new long[Math.min(a.length, b.length)];
+        int count = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                both[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        long[] result = new long[count];
+        System.arraycopy(both, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * The distinct terms of a text, in the order they first appear.
+     */
+    static Set<String> terms(String text) {
+        Set<String> terms = new LinkedHashSet<String>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inTerm = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inTerm && start < 0) {
+                start = i;
+            } else if (!inTerm && start >= 0) {
+                terms.add(text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase());
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * The outcome of a search: how many messages matched, and the latest of them, oldest
+     * first.
+     */
+    static final class Matches {
+        final int total;
+        final List<String> latest;
+
+        Matches(int total, List<String> latest) {
+            this.total = total;
+            this.latest = latest;
+        }
+    }
+
+    /**
+     * The ascending numbers of the messages containing a term: the first one, and the
+     * gaps to each following one as variable-length integers, seven bits to a byte.
+     */
+    static final class Postings {
+        private byte[] gaps = new byte[4];
+        private int start;
+        private int end;
+        private int count;
+        private long first;
+        private long last;
+
+        void add(long number) {
+            if (count++ == 0) {
+                first = last = number;
+                return;
+            }
+            long gap = number - last;
+            last = number;
+            if (end + 10 > gaps.length) {
+                compact(Math.max(gaps.length * 2, end - start + 10));
+            }
+            while (gap >= 0x80) {
+                gaps[end++] = (byte) (gap | 0x80);
+                gap >>>= 7;
+            }
+            gaps[end++] = (byte) gap;
+        }
+
+        long first() {
+            return first;
+        }
+
+        boolean isEmpty() {
+            return count == 0;
+        }
+
+        void removeFirst() {
+            if (--count == 0) {
+                start = end = 0;
+                return;
+            }
+            long gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = gaps[start++];
+                gap |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            first += gap;
+            if (start > gaps.length / 2) {
+                compact(gaps.length);
+            }
+        }
+
+        long[] toArray() {
+            long[] numbers = new long[count];
+            if (count == 0) {
+                return numbers;
+            }
+            long number = first;
+            numbers[0] = number;
+            int position = start;
+            for (int i = 1; i < count; i++) {
+                long gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = gaps[position++];
+                    gap |= (long) (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                number += gap;
+                numbers[i] = number;
+            }
+            return numbers;
+        }
+
+        /**
+         * Moves the gaps to the start of an array of the given size.
+         */
+        private void compact(int size) {
+            byte[] moved = size == gaps.length ? gaps : new byte[size];
+            System.arraycopy(gaps, start, moved, 0, end - start);
+            end -= start;
+            start = 0;
+            gaps = moved;
+        }
+    }
+}
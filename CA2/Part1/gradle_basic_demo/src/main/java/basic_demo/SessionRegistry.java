@@ -0,0 +1,139 @@
+package basic_demo;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * The named clients of one chat server, indexed by screen name. Claiming and releasing
+ * a name never takes a lock, and a name maps to exactly one session at a time.
+ *
+ * Broadcasts iterate over an array snapshot of the sessions. The snapshot is rebuilt
+ * lazily, by the first broadcast after the membership has changed, so a burst of
+ * joins or leaves costs one rebuild rather than one per change. The same goes for the
+ * split of the snapshot into shards for a parallel fan-out, see {@link FanOutPool}.
+ */
+class SessionRegistry {
+
+    private static final ChatSession[] NONE = new ChatSession[0];
+
+    private final ConcurrentMap<String, ChatSession> sessions = new ConcurrentHashMap<String, ChatSession>();
+    private final AtomicLong version = new AtomicLong();
+    private volatile Snapshot snapshot = new Snapshot(0, NONE);
+
+    /**
+     * Claims a screen name for a session, returning false if it is already in use.
+     */
+    boolean register(String name, ChatSession session) {
+        if (sessions.putIfAbsent(name, session) != null) {
+            return false;
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Releases a screen name, provided it is still held by the given session, and
+     * returns whether it was.
+     */
+    boolean unregister(String name, ChatSession session) {
+        if (sessions.remove(name, session)) {
+            version.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Hands a screen name from one session to another, provided it is still held by the
+     * former, and returns whether it was.
+     */
+    boolean replace(String name, ChatSession previous, ChatSession session) {
+        if (sessions.replace(name, previous, session)) {
+            version.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    ChatSession get(String name) {
+        return sessions.get(name);
+    }
+
+    int size() {
+        return sessions.size();
+    }
+
+    Collection<ChatSession> sessions() {
+        return sessions.values();
+    }
+
+    Collection<String> names() {
+        return sessions.keySet();
+    }
+
+    /**
+     * Returns the registered sessions as of some moment during the call. The array is
+     * shared and must not be modified.
+     */
+    ChatSession[] snapshot() {
+        return current().sessions;
+    }
+
+    /**
+     * Returns the registered sessions as of some moment during the call, split into the
+     * given number of shards. A session always falls into the same shard, whatever else
+     * is registered, and the arrays are shared and must not be modified.
+     */
+    ChatSession[][] shards(int count) {
+        Snapshot current = current();
+        ChatSession[][] shards = current.shards;
+        if (shards == null || shards.length != count) {
+            shards = split(current.sessions, count);
+            current.shards = shards;
+        }
+        return shards;
+    }
+
+    private Snapshot current() {
+        Snapshot current = snapshot;
+        long latest = version.get();
+        if (current.version != latest) {
+            // Reading the version before the map guarantees the array reflects at least
+            // that version; a concurrent change just causes another rebuild later.
+            current = new Snapshot(latest, sessions.values().toArray(NONE));
+            snapshot = current;
+        }
+        return current;
+    }
+
+    private static ChatSession[][] split(ChatSession[] sessions, int count) {
+        int[] sizes = new int[count];
+        for (ChatSession session : sessions) {
+            sizes[Math.floorMod(session.getShardKey(), count)]++;
+        }
+        ChatSession[][] shards = new ChatSession[count][];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new ChatSession[sizes[i]];
+            sizes[i] = 0;
+        }
+        for (ChatSession session : sessions) {
+            int shard = Math.floorMod(session.getShardKey(), count);
+            shards[shard][sizes[shard]++] = session;
+        }
+        return shards;
+    }
+
+    private static final class Snapshot {
+        final long version;
+        final ChatSession[] sessions;
+        volatile ChatSession[][] shards;
+
+        Snapshot(long version, ChatSession[] sessions) {
+            this.version = version;
+            this.sessions = sessions;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package basic_demo;
+
+
+/**
+ * A token bucket: tokens flow in at a fixed rate up to the bucket's capacity, and
+ * whatever is rationed takes tokens out. The bucket is refilled lazily from the time
+ * of each use, so it needs no timer and costs a little arithmetic per use.
+ *
+ * A bucket belongs to one session and is only used by the thread servicing it.
+ */
+class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long updatedAt;
+
+    /**
+     * Creates a full bucket.
+     */
+    TokenBucket(double tokensPerSecond, double capacity) {
+        this.tokensPerNano = tokensPerSecond / 1e9;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.updatedAt = System.nanoTime();
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(capacity, tokens + (now - updatedAt) * tokensPerNano);
+        updatedAt = now;
+    }
+
+    /**
+     * Whether the bucket holds at least the given number of tokens.
+     */
+    boolean has(double amount, long now) {
+        refill(now);
+        return tokens >= amount;
+    }
+
+    /**
+     * Takes the given number of tokens, running into debt if there are not enough, and
+     * returns how many nanoseconds it will take for the debt to be paid off: 0 if there
+     * were enough.
+     */
+    long take(double amount, long now) {
+        refill(now);
+        tokens -= amount;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+    }
+}
@@ -0,0 +1,741 @@
+package basic_demo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.BindException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class ChatServerTest {
+
+    // The servers started by the running test.
+    private static final List<ChatServer> started = new CopyOnWriteArrayList<ChatServer>();
+
+    @After public void stopServers() {
+        stopStartedServers();
+    }
+
+    @Test public void testThreadsEngineBroadcasts() throws Exception {
+        checkBroadcast(ChatServer.Mode.THREADS);
+    }
+
+    @Test public void testNioEngineBroadcasts() throws Exception {
+        checkBroadcast(ChatServer.Mode.NIO);
+    }
+
+    @Test public void testVirtualEngineBroadcasts() throws Exception {
+        assumeTrue("virtual threads need Java 21 or newer", hasVirtualThreads());
+        checkBroadcast(ChatServer.Mode.VIRTUAL);
+    }
+
+    @Test public void testThreadsEngineBatchesDelayedFlushes() throws Exception {
+        checkDelayedFlushes(ChatServer.Mode.THREADS);
+    }
+
+    @Test public void testNioEngineBatchesDelayedFlushes() throws Exception {
+        checkDelayedFlushes(ChatServer.Mode.NIO);
+    }
+
+    @Test public void testVirtualEngineBatchesDelayedFlushes() throws Exception {
+        assumeTrue("virtual threads need Java 21 or newer", hasVirtualThreads());
+        checkDelayedFlushes(ChatServer.Mode.VIRTUAL);
+    }
+
+    private static boolean hasVirtualThreads() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    @Test public void testServersInOneJvmHaveSeparateNames() throws Exception {
+        int first = startServer(new ChatServerConfig());
+        int second = startServer(new ChatServerConfig());
+
+        try (TestClient a = new TestClient(first); TestClient b = new TestClient(second)) {
+            assertEquals("NAMEACCEPTED carol", a.join("carol"));
+            assertEquals("NAMEACCEPTED carol", b.join("carol"));
+        }
+    }
+
+    @Test public void testRoomsAreSeparateBroadcastDomains() throws Exception {
+        int port = startServer(new ChatServerConfig());
+
+        try (TestClient alice = new TestClient(port); TestClient bob = new TestClient(port)) {
+            alice.join("alice");
+            bob.join("bob");
+            alice.expect("MESSAGE bob has joined");
+
+            alice.send("/join devops");
+            alice.expect("MESSAGE You joined [devops] with 1 members");
+            alice.send("only for devops");
+            alice.expect("MESSAGE [devops] alice: only for devops");
+
+            bob.send("in the lobby");
+            bob.expect("MESSAGE bob: in the lobby");
+            alice.expect("MESSAGE bob: in the lobby");
+
+            bob.send("/join devops");
+            bob.expect("MESSAGE You joined [devops] with 2 members");
+            alice.expect("MESSAGE [devops] bob has joined the room");
+        }
+    }
+
+    @Test public void testMetricsAreShownAndPublished() throws Exception {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setMode(ChatServer.Mode.NIO);
+        int port = startServer(config);
+
+        try (TestClient alice = new TestClient(port); TestClient bob = new TestClient(port)) {
+            alice.join("alice");
+            bob.expect("SUBMITNAME");
+            bob.send("alice");
+            bob.expect("SUBMITNAME");
+            bob.send("bob");
+            bob.expect("NAMEACCEPTED bob");
+            alice.expect("MESSAGE bob has joined");
+            bob.send("hello");
+            alice.expect("MESSAGE bob: hello");
+
+            alice.send("/stats");
+            assertEquals("MESSAGE Connections: 2 open, 2 named, 0 reaped, 0 rejected", alice.readLine());
+            assertTrue(alice.readLine().startsWith("MESSAGE Messages: "));
+            assertTrue(alice.readLine().startsWith("MESSAGE Fan-out: p50 "));
+            assertEquals("MESSAGE Slow consumers: 0 messages dropped, 0 disconnected; 1 name collisions",
+                    alice.readLine());
+
+            MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("basic_demo:type=ChatServer,port=" + port);
+            assertEquals(2, mbeans.getAttribute(name, "ClientCount"));
+            assertEquals(1L, mbeans.getAttribute(name, "NameCollisions"));
+            assertTrue((Long) mbeans.getAttribute(name, "BytesWritten") > 0);
+            assertTrue((Long) mbeans.getAttribute(name, "MessagesReceived") >= 4);
+        }
+    }
+
+    @Test public void testThreadsEngineLetsGoWhenClosed() throws Exception {
+        checkClose(ChatServer.Mode.THREADS);
+    }
+
+    @Test public void testNioEngineLetsGoWhenClosed() throws Exception {
+        checkClose(ChatServer.Mode.NIO);
+    }
+
+    private void checkClose(ChatServer.Mode mode) throws Exception {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setMode(mode);
+        ChatServer server = new ChatServer(0, config);
+        int port = start(server);
+        assertEquals(port, server.getPort());
+        ObjectName name = new ObjectName("basic_demo:type=ChatServer,port=" + port);
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+
+        try (TestClient alice = new TestClient(port); TestClient silent = new TestClient(port)) {
+            alice.join("alice");
+            silent.expect("SUBMITNAME");
+            server.close();
+            assertNull(alice.readLine());
+            assertNull(silent.readLine());
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        // The port is free again once the accept loop has let go of it.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            try {
+                new ServerSocket(port).close();
+                break;
+            } catch (BindException e) {
+                assertTrue("port freed in time", System.currentTimeMillis() < deadline);
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    @Test public void testThreadsEngineReapsSilentClients() throws Exception {
+        checkReaping(ChatServer.Mode.THREADS);
+    }
+
+    @Test public void testNioEngineReapsSilentClients() throws Exception {
+        checkReaping(ChatServer.Mode.NIO);
+    }
+
+    private void checkReaping(ChatServer.Mode mode) throws Exception {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setMode(mode);
+        config.setThreadPoolSize(1);
+        config.setMaxConnections(2);
+        config.setIdleTimeoutMillis(200);
+        config.setReadTimeoutMillis(600);
+        ChatServer server = new ChatServer(0, config);
+        int port = start(server);
+
+        // The silent client holds the only handler thread of the threads engine until
+        // it is reaped, so alice can only be served afterwards. It is not pinged, as it
+        // would take the answer for its name.
+        try (TestClient silent = new TestClient(port)) {
+            silent.expect("SUBMITNAME");
+            assertNull(silent.readLine());
+        }
+        try (TestClient alice = new TestClient(port)) {
+            alice.expect("SUBMITNAME");
+            alice.send("PONG");
+            alice.expect("MESSAGE PONG may not be used as a name");
+            assertEquals("NAMEACCEPTED alice", alice.join("alice"));
+            alice.expect("PING");
+            alice.send("PONG");
+            alice.send("/stats");
+            String stats = alice.readLine();
+            assertTrue(stats, stats.contains(", 1 named, 1 reaped"));
+        }
+        assertEquals(1, server.getReapedConnections());
+    }
+
+    @Test public void testThreadsEngineTurnsAwayClientsBeyondItsThreads() throws Exception {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setThreadPoolSize(2);
+        ChatServer server = new ChatServer(0, config);
+        int port = start(server);
+
+        try (TestClient alice = new TestClient(port); TestClient bob = new TestClient(port)) {
+            alice.join("alice");
+            bob.join("bob");
+            CountDownLatch release = new CountDownLatch(1);
+            try (TestClient carol = new TestClient(port)) {
+                carol.expect("BUSY Too many connections, try again later");
+                assertNull(carol.readLine());
+            }
+
+            bob.send("/quit");
+            alice.expect("MESSAGE bob has joined");
+            alice.expect("MESSAGE bob has left");
+            assertEquals("NAMEACCEPTED carol", joinWhenAdmitted(port, "carol"));
+        }
+        assertTrue(server.getRejectedConnections() >= 1);
+    }
+
+    @Test public void testNioEngineLimitsConnectionsPerAddress() throws Exception {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setMode(ChatServer.Mode.NIO);
+        config.setMaxConnectionsPerAddress(1);
+        int port = startServer(config);
+
+        try (TestClient alice = new TestClient(port)) {
+            alice.join("alice");
+            try (TestClient again = new TestClient(port)) {
+                again.expect("BUSY Too many connections from your address");
+                assertNull(again.readLine());
+            }
+            alice.send("/quit");
+            assertNull(alice.readLine());
+        }
+        assertEquals("NAMEACCEPTED bob", joinWhenAdmitted(port, "bob"));
+    }
+
+    /**
+     * Connects until the server has let go of an earlier connection and admits this
+     * one, then registers the name.
+     */
+    private static String joinWhenAdmitted(int port, String name) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try (TestClient client = new TestClient(port)) {
+                String greeting = client.readLine();
+                if (greeting.equals("SUBMITNAME")) {
+                    client.send(name);
+                    return client.readLine();
+                }
+                assertTrue(greeting, greeting.startsWith("BUSY ") && attempt < 50);
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    @Test public void testLargeRoomsFanOutInParallelInOrder() throws Exception {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setMode(ChatServer.Mode.NIO);
+        config.setFanOutThreads(3);
+        config.setParallelFanOutThreshold(4);
+        ChatServer server = new ChatServer(0, config);
+        int port = start(server);
+
+        List<TestClient> clients = new ArrayList<TestClient>();
+        try {
+            for (int i = 0; i < 6; i++) {
+                TestClient client = new TestClient(port);
+                client.join("user" + i);
+                clients.add(client);
+            }
+            TestClient alice = clients.get(0);
+            TestClient bob = clients.get(1);
+            for (int i = 0; i < 5; i++) {
+                while (!clients.get(i).readLine().equals("MESSAGE user5 has joined")) {
+                }
+            }
+
+            for (int i = 0; i < 100; i++) {
+                alice.send("a" + i);
+                bob.send("b" + i);
+            }
+            // Both senders' messages reach everybody, each sender's in the order sent.
+            for (TestClient client : clients) {
+                int fromAlice = 0;
+                int fromBob = 0;
+                while (fromAlice < 100 || fromBob < 100) {
+                    String line = client.readLine();
+                    if (line.startsWith("MESSAGE user0: ")) {
+                        assertEquals("MESSAGE user0: a" + fromAlice++, line);
+                    } else {
+                        assertEquals("MESSAGE user1: b" + fromBob++, line);
+                    }
+                }
+            }
+            assertTrue(server.getFanOutMicrosMax() > 0);
+        } finally {
+            for (TestClient client : clients) {
+                client.close();
+            }
+        }
+    }
+
+    @Test public void testRoomsShrinkingBelowTheFanOutThresholdKeepTheOrder() throws Exception {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setMode(ChatServer.Mode.NIO);
+        config.setFanOutThreads(2);
+        config.setParallelFanOutThreshold(3);
+        ChatServer server = new ChatServer(0, config);
+        int port = start(server);
+
+        try (TestClient alice = new TestClient(port);
+             TestClient bob = new TestClient(port)) {
+            alice.join("alice");
+            bob.join("bob");
+            CountDownLatch release = new CountDownLatch(1);
+            try (TestClient carol = new TestClient(port)) {
+                carol.join("carol");
+                alice.expect("MESSAGE bob has joined");
+                alice.expect("MESSAGE carol has joined");
+                bob.expect("MESSAGE carol has joined");
+
+                // The fan-out threads are held up while the room is large...
+                for (int i = 0; i < config.getFanOutThreads(); i++) {
+                    server.getFanOutPool().execute(i, () -> {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    });
+                }
+                alice.send("first");
+            }
+
+            // ...and when it has shrunk below the threshold.
+            while (server.getSession("carol") != null) {
+                Thread.sleep(10);
+            }
+            alice.send("second");
+            Thread.sleep(100);
+            release.countDown();
+
+            List<String> received = new ArrayList<String>();
+            while (received.size() < 3) {
+                received.add(bob.readLine());
+            }
+            assertTrue(received.toString(), received.indexOf("MESSAGE alice: first") < received.indexOf("MESSAGE alice: second"));
+            assertTrue(received.toString(), received.contains("MESSAGE carol has left"));
+        }
+    }
+
+    @Test public void testFullFanOutQueuesHoldBackOnlyTheSender() throws Exception {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setMode(ChatServer.Mode.NIO);
+        config.setEventLoops(1);
+        config.setFanOutThreads(1);
+        config.setParallelFanOutThreshold(2);
+        config.setOutboundQueueCapacity(4 * FanOutPool.QUEUE_CAPACITY);
+        ChatServer server = new ChatServer(0, config);
+        int port = start(server);
+
+        try (TestClient alice = new TestClient(port);
+             TestClient bob = new TestClient(port)) {
+            alice.join("alice");
+            bob.join("bob");
+            alice.expect("MESSAGE bob has joined");
+            CountDownLatch release = new CountDownLatch(1);
+            server.getFanOutPool().execute(0, () -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            int sent = FanOutPool.QUEUE_CAPACITY + 10;
+            for (int i = 0; i < sent; i++) {
+                alice.send("line " + i);
+            }
+            while (server.getFanOutPool().backlog() == null) {
+                Thread.sleep(10);
+            }
+
+            // Alice is held back, but the event loop she shares with bob is not.
+            bob.send("/rooms");
+            assertTrue(bob.readLine().startsWith("MESSAGE [lobby] 2 members"));
+            assertTrue(server.getRoom(ChatRoom.LOBBY).messageCount() < sent);
+
+            release.countDown();
+            for (int i = 0; i < sent; i++) {
+                bob.expect("MESSAGE alice: line " + i);
+            }
+        }
+    }
+
+    @Test public void testPrivateMessagesOnlyReachTheirRecipient() throws Exception {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setMode(ChatServer.Mode.NIO);
+        ChatServer server = new ChatServer(0, config);
+        int port = start(server);
+
+        try (TestClient alice = new TestClient(port);
+             TestClient bob = new TestClient(port);
+             TestClient carol = new TestClient(port)) {
+            alice.join("alice");
+            bob.join("bob");
+            carol.join("carol");
+            alice.expect("MESSAGE bob has joined");
+            alice.expect("MESSAGE carol has joined");
+            bob.expect("MESSAGE carol has joined");
+
+            alice.send("/msg bob meet me at noon");
+            bob.expect("MESSAGE alice (private): meet me at noon");
+            alice.expect("MESSAGE To bob (private): meet me at noon");
+
+            alice.send("/msg dave are you there?");
+            alice.expect("MESSAGE No one called dave is connected");
+            alice.send("/msg bob");
+            alice.expect("MESSAGE Usage: /msg <name> <text>");
+
+            // Carol's next line is the public one: she never saw the private message.
+            alice.send("hello all");
+            carol.expect("MESSAGE alice: hello all");
+        }
+        assertEquals(1, server.getDirectMessages());
+    }
+
+    @Test public void testThreadsEngineThrottlesFloods() throws Exception {
+        checkThrottling(ChatServer.Mode.THREADS);
+    }
+
+    @Test public void testNioEngineThrottlesFloods() throws Exception {
+        checkThrottling(ChatServer.Mode.NIO);
+    }
+
+    private void checkThrottling(ChatServer.Mode mode) throws Exception {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setMode(mode);
+        config.setMaxMessagesPerSecond(50);
+        ChatServer server = new ChatServer(0, config);
+        int port = start(server);
+
+        try (TestClient alice = new TestClient(port); TestClient bob = new TestClient(port)) {
+            alice.join("alice");
+            bob.join("bob");
+            alice.expect("MESSAGE bob has joined");
+
+            // A burst of a second's worth goes straight through, the rest at 50 a second.
+            long started = System.nanoTime();
+            for (int i = 0; i < 75; i++) {
+                bob.send("flood " + i);
+            }
+            for (int i = 0; i < 75; i++) {
+                alice.expect("MESSAGE bob: flood " + i);
+            }
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            assertTrue("throttled for " + elapsed + " ms", elapsed >= 400);
+            assertTrue(server.getRateLimitedMessages() > 0);
+        }
+    }
+
+    @Test public void testExcessLinesCanBeDropped() throws Exception {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setMaxMessagesPerSecond(5);
+        config.setRateLimitPolicy(ChatServer.RateLimitPolicy.DROP);
+        ChatServer server = new ChatServer(0, config);
+        int port = start(server);
+
+        try (TestClient alice = new TestClient(port)) {
+            alice.join("alice");
+            for (int i = 0; i < 20; i++) {
+                alice.send("flood " + i);
+            }
+            for (int i = 0; i < 5; i++) {
+                alice.expect("MESSAGE alice: flood " + i);
+            }
+            alice.expect("MESSAGE You are sending too fast, some of your messages were dropped");
+            // Commands count against the limit too, so wait for it to pass.
+            Thread.sleep(1100);
+            alice.send("/stats");
+            String line;
+            while (!(line = alice.readLine()).startsWith("MESSAGE Connections:")) {
+                assertTrue(line, line.startsWith("MESSAGE alice: flood "));
+            }
+        }
+        assertTrue(server.getRateLimitedMessages() >= 10);
+    }
+
+    @Test public void testLateJoinersSeeRecentMessages() throws Exception {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setHistorySize(2);
+        int port = startServer(config);
+
+        try (TestClient alice = new TestClient(port); TestClient bob = new TestClient(port)) {
+            alice.join("alice");
+            for (String text : new String[] {"one", "two", "three"}) {
+                alice.send(text);
+                alice.expect("MESSAGE alice: " + text);
+            }
+
+            assertEquals("NAMEACCEPTED bob", bob.join("bob"));
+            bob.expect("MESSAGE alice: two");
+            bob.expect("MESSAGE alice: three");
+            alice.expect("MESSAGE bob has joined");
+
+            alice.send("/join devops");
+            alice.expect("MESSAGE You joined [devops] with 1 members");
+            alice.send("devops only");
+            alice.expect("MESSAGE [devops] alice: devops only");
+            bob.send("/join devops");
+            bob.expect("MESSAGE You joined [devops] with 2 members");
+            bob.expect("MESSAGE [devops] alice: devops only");
+        }
+    }
+
+    @Test public void testBroadcastsAreJournaled() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        ChatServerConfig config = new ChatServerConfig();
+        config.setJournalDirectory(directory.toString());
+        ChatServer server = new ChatServer(0, config);
+        int port = start(server);
+
+        try (TestClient alice = new TestClient(port)) {
+            alice.join("alice");
+            alice.send("for the record");
+            alice.expect("MESSAGE alice: for the record");
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getJournaledMessages() < 2) {
+            assertTrue("journal written in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        JournalReader reader = new JournalReader(directory);
+        assertTrue(reader.next());
+        assertEquals("MESSAGE alice has joined", reader.line());
+        assertTrue(reader.next());
+        assertEquals("lobby", reader.room());
+        assertEquals("alice: for the record", reader.text());
+    }
+
+    @Test public void testTextAndBinaryClientsShareARoom() throws Exception {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setMode(ChatServer.Mode.NIO);
+        int port = startServer(config);
+
+        try (TestClient alice = new TestClient(port); TestClient bob = new TestClient(port)) {
+            alice.join("alice");
+
+            bob.expect("SUBMITNAME");
+            bob.send(Frame.REQUEST);
+            bob.expect(Frame.ACCEPTED);
+            DataInputStream in = new DataInputStream(bob.socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(bob.socket.getOutputStream());
+            assertEquals("", readFrame(in, Frame.SUBMITNAME));
+            Frame.write(out, Frame.LINE, 1, "bob".getBytes(StandardCharsets.UTF_8));
+            assertEquals("bob", readFrame(in, Frame.NAMEACCEPTED));
+            alice.expect("MESSAGE bob has joined");
+
+            Frame.write(out, Frame.LINE, 2, "two\nlines".getBytes(StandardCharsets.UTF_8));
+            assertEquals("MESSAGE bob: two lines", alice.readLine());
+            assertEquals("bob: two\nlines", readFrame(in, Frame.MESSAGE));
+        }
+    }
+
+    /**
+     * Reads a frame, checks its type and returns its payload.
+     */
+    private static String readFrame(DataInputStream in, byte type) throws IOException {
+        int length = in.readInt();
+        assertEquals(type, in.readByte());
+        long sequence = in.readLong();
+        if (type == Frame.MESSAGE) {
+            assertTrue("broadcast messages are numbered", sequence > 0);
+        }
+        byte[] payload = new byte[length - 9];
+        in.readFully(payload);
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    private void checkBroadcast(ChatServer.Mode mode) throws Exception {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setMode(mode);
+        config.setEventLoops(2);
+        int port = startServer(config);
+
+        try (TestClient alice = new TestClient(port); TestClient bob = new TestClient(port)) {
+            assertEquals("NAMEACCEPTED alice", alice.join("alice"));
+
+            bob.expect("SUBMITNAME");
+            bob.send("alice");
+            bob.expect("SUBMITNAME");
+            bob.send("bob");
+            bob.expect("NAMEACCEPTED bob");
+            alice.expect("MESSAGE bob has joined");
+
+            bob.send("hello there");
+            assertEquals("MESSAGE bob: hello there", alice.readLine());
+            assertEquals("MESSAGE bob: hello there", bob.readLine());
+
+            bob.send("/quit");
+            alice.expect("MESSAGE bob has left");
+        }
+    }
+
+    private void checkDelayedFlushes(ChatServer.Mode mode) throws Exception {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setMode(mode);
+        config.setFlushDelayMicros(20000);
+        ChatServer server = new ChatServer(0, config);
+        int port = start(server);
+
+        try (TestClient alice = new TestClient(port); TestClient bob = new TestClient(port)) {
+            alice.join("alice");
+            bob.join("bob");
+            alice.expect("MESSAGE bob has joined");
+
+            for (int i = 0; i < 20; i++) {
+                bob.send("message " + i);
+            }
+            for (int i = 0; i < 20; i++) {
+                alice.expect("MESSAGE bob: message " + i);
+            }
+            // The flush is accounted for just after its write, which alice may beat.
+            long deadline = System.currentTimeMillis() + 1000;
+            while (server.getWriteCallsSaved() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue("messages queued within the delay share writes", server.getWriteCallsSaved() > 0);
+            assertTrue(server.getAverageFlushDelayMicros() > 0);
+        }
+    }
+
+    /**
+     * Starts a server with the given configuration on a free port and returns the port.
+     */
+    static int startServer(ChatServerConfig config) throws Exception {
+        return start(new ChatServer(0, config));
+    }
+
+    /**
+     * Starts a server, waits for it to listen and returns its port. The server is
+     * stopped by {@link #stopStartedServers()} after the test.
+     */
+    static int start(ChatServer server) throws Exception {
+        started.add(server);
+        Thread t = new Thread(server, "Test Chat Server");
+        t.setDaemon(true);
+        t.start();
+        return server.listening().get(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the servers the test started.
+     */
+    static void stopStartedServers() {
+        for (ChatServer server : started) {
+            server.close();
+        }
+        started.clear();
+    }
+
+    /**
+     * A port nothing listens on right now, for the ports a server has to be told in
+     * advance, such as those of the other nodes of a cluster. Something else may take
+     * it before the server does, so chat servers are started on port 0 instead.
+     */
+    static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    /**
+     * A minimal line-oriented client speaking the raw chat protocol.
+     */
+    static class TestClient implements AutoCloseable {
+        final Socket socket;
+        private final InputStream in;
+        private final PrintWriter out;
+
+        TestClient(int port) throws Exception {
+            socket = new Socket("localhost", port);
+            socket.setSoTimeout(5000);
+            in = socket.getInputStream();
+            out = new PrintWriter(socket.getOutputStream(), true);
+        }
+
+        String join(String name) throws IOException {
+            expect("SUBMITNAME");
+            send(name);
+            return readLine();
+        }
+
+        void send(String line) {
+            out.println(line);
+        }
+
+        /**
+         * Reads a line a byte at a time, so that nothing beyond it is consumed.
+         */
+        String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    return null;
+                }
+                line.write(b);
+            }
+            return new String(line.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        void expect(String line) throws IOException {
+            assertEquals(line, readLine());
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package basic_demo;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import basic_demo.ChatServerTest.TestClient;
+import basic_demo.FileTransfersTest.Recorder;
+
+public class ClusterTest {
+
+    private static final String SECRET = "test secret";
+
+    @After public void stopServers() {
+        ChatServerTest.stopStartedServers();
+    }
+
+    @Test public void testNamesAreUniqueAcrossNodes() throws Exception {
+        List<Node> nodes = startCluster(ChatServer.Mode.THREADS, ChatServer.Mode.NIO, ChatServer.Mode.THREADS);
+
+        try (TestClient alice = new TestClient(nodes.get(0).port);
+             TestClient bob = new TestClient(nodes.get(1).port);
+             TestClient carol = new TestClient(nodes.get(2).port)) {
+            assertEquals("NAMEACCEPTED alice", alice.join("alice"));
+
+            bob.expect("SUBMITNAME");
+            bob.send("alice");
+            bob.expect("SUBMITNAME");
+            bob.send("bob");
+            bob.expect("NAMEACCEPTED bob");
+            alice.expect("MESSAGE bob has joined");
+
+            carol.expect("SUBMITNAME");
+            carol.send("bob");
+            carol.expect("SUBMITNAME");
+            carol.send("carol");
+            carol.expect("NAMEACCEPTED carol");
+            alice.expect("MESSAGE carol has joined");
+            awaitLine(bob, "MESSAGE carol has joined");
+
+            alice.send("/quit");
+            awaitLine(bob, "MESSAGE alice has left");
+
+            // The release travels to the name's owner asynchronously.
+            String answer;
+            int attempts = 0;
+            try (TestClient another = new TestClient(nodes.get(1).port)) {
+                another.expect("SUBMITNAME");
+                do {
+                    another.send("alice");
+                    answer = another.readLine();
+                    attempts++;
+                } while (answer.equals("SUBMITNAME") && attempts < 50);
+                assertEquals("NAMEACCEPTED alice", answer);
+            }
+        }
+    }
+
+    @Test public void testRoomsSpanNodes() throws Exception {
+        List<Node> nodes = startCluster(ChatServer.Mode.NIO, ChatServer.Mode.THREADS);
+
+        try (TestClient alice = new TestClient(nodes.get(0).port);
+             TestClient bob = new TestClient(nodes.get(1).port)) {
+            join(alice, "alice");
+            join(bob, "bob");
+            alice.expect("MESSAGE bob has joined");
+
+            alice.send("/join devops");
+            alice.expect("MESSAGE You joined [devops] with 1 members");
+            bob.send("/join devops");
+            awaitLine(bob, "MESSAGE You joined [devops] with 1 members");
+            alice.expect("MESSAGE [devops] bob has joined the room");
+
+            alice.send("across the cluster");
+            alice.expect("MESSAGE [devops] alice: across the cluster");
+            awaitLine(bob, "MESSAGE [devops] alice: across the cluster");
+        }
+    }
+
+    @Test public void testRelayedMessagesAreReplayedToResumingClients() throws Exception {
+        List<Node> nodes = startCluster(10000, ChatServer.Mode.NIO, ChatServer.Mode.NIO);
+
+        try (TestClient alice = new TestClient(nodes.get(0).port)) {
+            join(alice, "alice");
+            assertTrue(alice.readLine().startsWith("RESUMETOKEN "));
+            Recorder bob = new Recorder("bob");
+            ChatConnection connection = bob.connect(nodes.get(1).port, true);
+            connection.setReconnectAttempts(3);
+            try {
+                awaitLine(alice, "MESSAGE bob has joined");
+                alice.send("before");
+                bob.await("alice: before");
+
+                nodes.get(1).server.getSession("bob").disconnect();
+                while (nodes.get(1).server.getParkedSession("bob") == null) {
+                    Thread.sleep(10);
+                }
+                alice.send("missed");
+                bob.await("bob has joined");
+                bob.await("alice: missed");
+                alice.send("after");
+                bob.await("alice: after");
+            } finally {
+                connection.close();
+            }
+        }
+    }
+
+    @Test public void testCrossNodeDeliveryLatency() throws Exception {
+        List<Node> nodes = startCluster(ChatServer.Mode.NIO, ChatServer.Mode.NIO);
+
+        try (TestClient alice = new TestClient(nodes.get(0).port);
+             TestClient bob = new TestClient(nodes.get(1).port)) {
+            join(alice, "alice");
+            join(bob, "bob");
+            alice.expect("MESSAGE bob has joined");
+
+            alice.send("warming up");
+            alice.expect("MESSAGE alice: warming up");
+            awaitLine(bob, "MESSAGE alice: warming up");
+
+            int warmup = 200;
+            int samples = 1000;
+            long[] latencies = new long[samples];
+            for (int i = 0; i < warmup + samples; i++) {
+                long sent = System.nanoTime();
+                alice.send("ping " + i);
+                bob.expect("MESSAGE alice: ping " + i);
+                if (i >= warmup) {
+                    latencies[i - warmup] = System.nanoTime() - sent;
+                }
+                alice.expect("MESSAGE alice: ping " + i);
+            }
+
+            Arrays.sort(latencies);
+            long median = latencies[samples / 2];
+            assertTrue("median cross-node latency below 50 ms", median < 50_000_000L);
+            assertTrue(nodes.get(0).server.getConnectedPeers() == 1);
+        }
+    }
+
+    @Test public void testClaimsWhoseAnswerCannotBeSentAreUndone() throws Exception {
+        // Node 1 is played by the test, which never listens for the link to it.
+        List<String> peers = Arrays.asList("localhost:" + ChatServerTest.freePort(),
+                "localhost:" + ChatServerTest.freePort());
+        Cluster cluster = startOwner(peers);
+        String name = nameOwnedByNode0("lost");
+        String witness = nameOwnedByNode0("witness");
+
+        try (Socket link = linkAsNode1(peers.get(0))) {
+            DataOutputStream out = new DataOutputStream(link.getOutputStream());
+            out.writeByte(Cluster.CLAIM);
+            out.writeLong(1);
+            out.writeUTF(name);
+            out.writeByte(Cluster.HELD);
+            out.writeUTF(witness);
+            out.flush();
+
+            // Records are handled in order, so once the witness is held the claim has
+            // been answered, or rather could not be.
+            awaitHeld(cluster, witness);
+            assertTrue("the name was not kept for a node that never heard it got it", cluster.claim(name).get());
+        }
+    }
+
+    @Test public void testLinksThatDoNotKnowTheSecretAreRefused() throws Exception {
+        List<String> peers = Arrays.asList("localhost:" + ChatServerTest.freePort(),
+                "localhost:" + ChatServerTest.freePort());
+        Cluster cluster = startOwner(peers);
+        String name = nameOwnedByNode0("mallory");
+
+        try (Socket socket = linkAsNode1(peers.get(0), "wrong secret")) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeByte(Cluster.HELD);
+            out.writeUTF(name);
+            out.flush();
+            assertEquals("link closed", -1, socket.getInputStream().read());
+        }
+        assertTrue("the name was never held", cluster.claim(name).get());
+    }
+
+    @Test public void testNamesSurviveTheLinkTheyWereClaimedOverBeingReplaced() throws Exception {
+        List<String> peers = Arrays.asList("localhost:" + ChatServerTest.freePort(),
+                "localhost:" + ChatServerTest.freePort());
+        try (ServerSocket node1 = new ServerSocket(Integer.parseInt(peers.get(1).split(":")[1]))) {
+            Cluster cluster = startOwner(peers);
+            String name = nameOwnedByNode0("kept");
+            try (Socket fromOwner = node1.accept()) {
+                byte[] challenge = new byte[16];
+                fromOwner.getOutputStream().write(challenge);
+                DataInputStream answers = new DataInputStream(fromOwner.getInputStream());
+                assertEquals(0, answers.readInt());
+                byte[] proof = new byte[32];
+                answers.readFully(proof);
+                assertArrayEquals(Cluster.proof(SECRET, challenge, 0), proof);
+
+                Socket first = linkAsNode1(peers.get(0));
+                DataOutputStream out = new DataOutputStream(first.getOutputStream());
+                out.writeByte(Cluster.CLAIM);
+                out.writeLong(1);
+                out.writeUTF(name);
+                out.flush();
+                assertEquals(Cluster.CLAIMED, answers.readByte());
+                assertEquals(1, answers.readLong());
+                assertEquals(name, answers.readUTF());
+                assertTrue(answers.readBoolean());
+
+                // Node 1 links up again, saying it still holds the name, before the
+                // owner notices that the first link is gone.
+                String witness = nameOwnedByNode0("witness");
+                try (Socket second = linkAsNode1(peers.get(0))) {
+                    out = new DataOutputStream(second.getOutputStream());
+                    out.writeByte(Cluster.HELD);
+                    out.writeUTF(name);
+                    out.writeByte(Cluster.HELD);
+                    out.writeUTF(witness);
+                    out.flush();
+                    awaitHeld(cluster, witness);
+                    first.close();
+                    Thread.sleep(200);
+                    assertFalse("the name is still held over the second link", cluster.claim(name).get());
+                }
+
+                long deadline = System.currentTimeMillis() + 5000;
+                while (!cluster.claim(name).get()) {
+                    assertTrue("the name was freed with the second link", System.currentTimeMillis() < deadline);
+                    Thread.sleep(10);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts node 0 of a cluster whose other nodes are played by the test.
+     */
+    private static Cluster startOwner(List<String> peers) throws Exception {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setClusterNodes(peers);
+        config.setClusterNode(0);
+        config.setClusterSecret(SECRET);
+        ChatServer server = new ChatServer(0, config);
+        ChatServerTest.start(server);
+        return server.getCluster();
+    }
+
+    /**
+     * Opens a link to a cluster node the way node 1 would, once the node listens.
+     */
+    private static Socket linkAsNode1(String address) throws Exception {
+        return linkAsNode1(address, SECRET);
+    }
+
+    /**
+     * Opens a link the way node 1 would, proving it knows the given secret.
+     */
+    private static Socket linkAsNode1(String address, String secret) throws Exception {
+        int port = Integer.parseInt(address.split(":")[1]);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            try {
+                Socket socket = new Socket("localhost", port);
+                byte[] challenge = new byte[16];
+                new DataInputStream(socket.getInputStream()).readFully(challenge);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                out.writeInt(1);
+                out.write(Cluster.proof(secret, challenge, 1));
+                out.flush();
+                return socket;
+            } catch (IOException e) {
+                assertTrue("cluster node listening in time", System.currentTimeMillis() < deadline);
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    /**
+     * Waits until a name owned by the node is held by another one.
+     */
+    private static void awaitHeld(Cluster cluster, String name) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cluster.claim(name).get()) {
+            cluster.release(name);
+            assertTrue(name + " held in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static String nameOwnedByNode0(String prefix) {
+        for (int i = 0; ; i++) {
+            if (Math.floorMod((prefix + i).hashCode(), 2) == 0) {
+                return prefix + i;
+            }
+        }
+    }
+
+    /**
+     * Registers a name, skipping notices relayed from other nodes in the meantime.
+     */
+    private static void join(TestClient client, String name) throws Exception {
+        client.expect("SUBMITNAME");
+        client.send(name);
+        awaitLine(client, "NAMEACCEPTED " + name);
+    }
+
+    /**
+     * Reads lines until the expected one. Notices relayed from another node may arrive
+     * after a client has been accepted on its own node, so they are skipped.
+     */
+    private static void awaitLine(TestClient client, String expected) throws Exception {
+        String line;
+        while (!expected.equals(line = client.readLine())) {
+            assertNotNull("expected " + expected, line);
+            assertTrue("expected " + expected + " got " + line, line.startsWith("MESSAGE "));
+        }
+    }
+
+    private static class Node {
+        final int port;
+        final ChatServer server;
+
+        Node(int port, ChatServer server) {
+            this.port = port;
+            this.server = server;
+        }
+    }
+
+    /**
+     * Starts a node per engine on localhost and waits for all of them to link up.
+     */
+    private static List<Node> startCluster(ChatServer.Mode... modes) throws Exception {
+        return startCluster(0, modes);
+    }
+
+    /**
+     * Starts a node per engine that holds the names of lost clients for them to resume
+     * for the given time.
+     */
+    private static List<Node> startCluster(long resumeGraceMillis, ChatServer.Mode... modes) throws Exception {
+        List<String> peers = new ArrayList<String>();
+        for (int i = 0; i < modes.length; i++) {
+            peers.add("localhost:" + ChatServerTest.freePort());
+        }
+
+        List<Node> nodes = new ArrayList<Node>();
+        for (int i = 0; i < modes.length; i++) {
+            ChatServerConfig config = new ChatServerConfig();
+            config.setMode(modes[i]);
+            config.setEventLoops(2);
+            config.setClusterNodes(peers);
+            config.setClusterNode(i);
+            config.setClusterSecret(SECRET);
+            config.setResumeGraceMillis(resumeGraceMillis);
+            ChatServer server = new ChatServer(0, config);
+            int port = ChatServerTest.start(server);
+            nodes.add(new Node(port, server));
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        for (Node node : nodes) {
+            while (node.server.getConnectedPeers() < modes.length - 1) {
+                assertTrue("cluster linked up in time", System.currentTimeMillis() < deadline);
+                Thread.sleep(20);
+            }
+        }
+        return nodes;
+    }
+}
@@ -0,0 +1,311 @@
+package basic_demo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import basic_demo.ChatServerTest.TestClient;
+
+public class FileTransfersTest {
+
+    @After public void stopServers() {
+        ChatServerTest.stopStartedServers();
+    }
+
+    @Test public void testFilesAreSpooledAndHandedOver() throws Exception {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setMode(ChatServer.Mode.NIO);
+        config.setFileTransferPort(ChatServerTest.freePort());
+        ChatServer server = new ChatServer(0, config);
+        int port = ChatServerTest.start(server);
+
+        // Several chunks, sent by a binary client to a text one.
+        byte[] content = new byte[(int) (3.5 * FileTransfers.CHUNK_BYTES)];
+        new Random(42).nextBytes(content);
+        Path file = Files.createTempFile("chat-test-", ".bin");
+        Path received = Files.createTempFile("chat-test-", ".received");
+        Files.write(file, content);
+
+        Recorder alice = new Recorder("alice");
+        Recorder bob = new Recorder("bob");
+        ChatConnection aliceConnection = alice.connect(port, true);
+        ChatConnection bobConnection = bob.connect(port, false);
+        try {
+            alice.await("bob has joined");
+
+            aliceConnection.sendFile("bob", file);
+            ChatConnection.FileOffer offer = bob.offers.poll(10, TimeUnit.SECONDS);
+            assertNotNull(offer);
+            assertEquals("alice", offer.getFrom());
+            assertEquals(file.getFileName().toString(), offer.getFileName());
+            assertEquals(content.length, offer.getSize());
+            assertEquals(file.getFileName() + " ok", alice.finished.poll(10, TimeUnit.SECONDS));
+            alice.await(file.getFileName() + " is waiting for bob");
+
+            // Chatting goes on while the file is fetched.
+            bobConnection.receiveFile(offer, received);
+            aliceConnection.send("still here");
+            bob.await("alice: still here");
+            assertEquals(file.getFileName() + " ok", bob.finished.poll(10, TimeUnit.SECONDS));
+            alice.await("bob has received " + file.getFileName());
+
+            assertTrue(Arrays.equals(content, Files.readAllBytes(received)));
+            assertEquals(content.length, bob.lastProgress);
+            assertEquals(1, server.getFilesTransferred());
+            assertEquals(content.length, server.getFileBytesTransferred());
+
+            // A file can only be fetched once.
+            bobConnection.receiveFile(offer, received);
+            assertEquals(file.getFileName() + " No such transfer", bob.finished.poll(10, TimeUnit.SECONDS));
+        } finally {
+            aliceConnection.close();
+            bobConnection.close();
+            Files.delete(file);
+            Files.delete(received);
+        }
+    }
+
+    @Test public void testOffersAreChecked() throws Exception {
+        try (TestClient alice = new TestClient(ChatServerTest.startServer(new ChatServerConfig()))) {
+            alice.join("alice");
+            alice.send("/send alice 10 notes.txt");
+            alice.expect("MESSAGE File transfers are not enabled on this server");
+        }
+
+        ChatServerConfig config = new ChatServerConfig();
+        config.setFileTransferPort(ChatServerTest.freePort());
+        config.setMaxFileBytes(1000);
+        try (TestClient alice = new TestClient(ChatServerTest.startServer(config))) {
+            alice.join("alice");
+            alice.send("/send alice 5000 big.bin");
+            alice.expect("MESSAGE Files may be at most 1000 bytes");
+            alice.send("/send dave 10 notes.txt");
+            alice.expect("MESSAGE No one called dave is connected");
+            alice.send("/send alice 10 ../notes.txt");
+            alice.expect("MESSAGE File names may not contain a path");
+            alice.send("/send alice ten notes.txt");
+            alice.expect("MESSAGE Usage: /send <name> <size> <file name>");
+            alice.send("/send alice 10 my notes.txt");
+            String upload = alice.readLine();
+            assertTrue(upload, upload.startsWith("UPLOAD " + config.getFileTransferPort() + " "));
+            assertTrue(upload, upload.endsWith(" 10 my notes.txt"));
+        }
+
+        // Only the tokens handed out by the server are accepted.
+        try (Socket socket = new Socket("localhost", config.getFileTransferPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write("GET 0123456789abcdef\n".getBytes(StandardCharsets.UTF_8));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            assertEquals("ERROR No such transfer", in.readLine());
+        }
+    }
+
+    @Test public void testStalledUploadsAndTooManyOffersAreCut() throws Exception {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setFileTransferPort(ChatServerTest.freePort());
+        config.setFileTransferTimeoutMillis(500);
+        try (TestClient alice = new TestClient(ChatServerTest.startServer(config))) {
+            alice.join("alice");
+            String[] tokens = new String[FileTransfers.MAX_TRANSFERS_PER_SENDER];
+            for (int i = 0; i < tokens.length; i++) {
+                alice.send("/send alice 100 notes" + i + ".txt");
+                tokens[i] = alice.readLine().split(" ")[2];
+            }
+            alice.send("/send alice 100 more.txt");
+            alice.expect("MESSAGE You have " + FileTransfers.MAX_TRANSFERS_PER_SENDER + " files waiting to be fetched already");
+
+            // An upload that stops halfway is cut off, and makes room for another offer.
+            try (Socket socket = new Socket("localhost", config.getFileTransferPort())) {
+                OutputStream out = socket.getOutputStream();
+                out.write(("PUT " + tokens[0] + "\n").getBytes(StandardCharsets.UTF_8));
+                out.write(new byte[40]);
+                out.flush();
+                long started = System.nanoTime();
+                assertEquals(-1, socket.getInputStream().read());
+                assertTrue(System.nanoTime() - started > 400000000L);
+            }
+            alice.send("/send alice 100 more.txt");
+            assertTrue(alice.readLine().startsWith("UPLOAD "));
+        }
+    }
+
+    @Test public void testOffersOfFilesWithTheSameNameUploadTheirOwnFiles() throws Exception {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setFileTransferPort(ChatServerTest.freePort());
+        int port = ChatServerTest.startServer(config);
+
+        Path first = Files.createTempDirectory("chat-test-");
+        Path second = Files.createTempDirectory("chat-test-");
+        Files.write(first.resolve("notes.txt"), "first".getBytes(StandardCharsets.UTF_8));
+        Files.write(second.resolve("notes.txt"), "second, longer".getBytes(StandardCharsets.UTF_8));
+        Path received = Files.createTempFile("chat-test-", ".received");
+
+        Recorder alice = new Recorder("alice");
+        Recorder bob = new Recorder("bob");
+        ChatConnection aliceConnection = alice.connect(port, false);
+        ChatConnection bobConnection = bob.connect(port, false);
+        try {
+            alice.await("bob has joined");
+            aliceConnection.sendFile("bob", first.resolve("notes.txt"));
+            aliceConnection.sendFile("bob", second.resolve("notes.txt"));
+
+            Set<String> contents = new HashSet<String>();
+            for (int i = 0; i < 2; i++) {
+                ChatConnection.FileOffer offer = bob.offers.poll(10, TimeUnit.SECONDS);
+                assertNotNull(offer);
+                bobConnection.receiveFile(offer, received);
+                assertEquals("notes.txt ok", bob.finished.poll(10, TimeUnit.SECONDS));
+                String content = new String(Files.readAllBytes(received), StandardCharsets.UTF_8);
+                assertEquals(content.length(), offer.getSize());
+                contents.add(content);
+            }
+            assertEquals(new HashSet<String>(Arrays.asList("first", "second, longer")), contents);
+        } finally {
+            aliceConnection.close();
+            bobConnection.close();
+            Files.delete(first.resolve("notes.txt"));
+            Files.delete(second.resolve("notes.txt"));
+            Files.delete(first);
+            Files.delete(second);
+            Files.delete(received);
+        }
+    }
+
+    @Test public void testMalformedTransferLinesAreSkipped() throws Exception {
+        try (ServerSocket listener = new ServerSocket(0)) {
+            Recorder carol = new Recorder("carol");
+            Thread server = new Thread(() -> {
+                try (Socket socket = listener.accept()) {
+                    PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    out.println("SUBMITNAME");
+                    out.println("NAMEACCEPTED " + in.readLine());
+                    out.println("UPLOAD");
+                    out.println("UPLOAD 1234 token");
+                    out.println("UPLOAD port token 10:1 notes.txt");
+                    out.println("FILE 1234 token");
+                    out.println("FILE 1234 token ten alice notes.txt");
+                    out.println("MESSAGE still here");
+                    in.readLine();
+                } catch (IOException e) {
+                    // The test fails waiting for the message.
+                }
+            }, "Test Server");
+            server.setDaemon(true);
+            server.start();
+
+            ChatConnection connection = carol.connect(listener.getLocalPort(), false);
+            try {
+                carol.await("still here");
+                assertTrue(carol.offers.isEmpty());
+            } finally {
+                connection.close();
+            }
+        }
+    }
+
+    @Test public void testOffersBeyondTheSpoolBudgetAreRefused() throws Exception {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setFileTransferPort(ChatServerTest.freePort());
+        config.setFileTransferTimeoutMillis(500);
+        config.setMaxSpoolBytes(250);
+        int port = ChatServerTest.startServer(config);
+        try (TestClient alice = new TestClient(port); TestClient bob = new TestClient(port)) {
+            alice.join("alice");
+            bob.join("bob");
+            alice.expect("MESSAGE bob has joined");
+            alice.send("/send alice 100 notes.txt");
+            String token = alice.readLine().split(" ")[2];
+            bob.send("/send alice 100 notes.txt");
+            assertTrue(bob.readLine().startsWith("UPLOAD "));
+            // Other clients' offers count against the budget as well.
+            alice.send("/send alice 100 more.txt");
+            alice.expect("MESSAGE The server has no room for more.txt at the moment, try again later");
+
+            // A failed upload gives its room back.
+            try (Socket socket = new Socket("localhost", config.getFileTransferPort())) {
+                OutputStream out = socket.getOutputStream();
+                out.write(("PUT " + token + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                assertEquals(-1, socket.getInputStream().read());
+            }
+            alice.send("/send alice 100 more.txt");
+            assertTrue(alice.readLine().startsWith("UPLOAD "));
+        }
+    }
+
+    /**
+     * A headless client that records what happens to it.
+     */
+    static class Recorder implements ChatConnection.Listener {
+        final String name;
+        final BlockingQueue<String> messages = new LinkedBlockingQueue<String>();
+        final BlockingQueue<ChatConnection.FileOffer> offers = new LinkedBlockingQueue<ChatConnection.FileOffer>();
+        final BlockingQueue<String> finished = new LinkedBlockingQueue<String>();
+        volatile long lastProgress;
+
+        Recorder(String name) {
+            this.name = name;
+        }
+
+        ChatConnection connect(int port, boolean binary) throws IOException, InterruptedException {
+            ChatConnection connection = new ChatConnection("localhost", port, binary, this);
+            connection.connect();
+            Thread t = new Thread(connection, "Test Client " + name);
+            t.setDaemon(true);
+            t.start();
+            await(name + " has joined");
+            return connection;
+        }
+
+        void await(String text) throws InterruptedException {
+            String message;
+            while (!text.equals(message = messages.poll(10, TimeUnit.SECONDS))) {
+                assertNotNull("waiting for " + text, message);
+            }
+        }
+
+        public String nameRequested() {
+            return name;
+        }
+
+        public void nameAccepted(String name) {
+            messages.add(name + " has joined");
+        }
+
+        public void messageReceived(String text) {
+            messages.add(text);
+        }
+
+        public void fileOffered(ChatConnection.FileOffer offer) {
+            offers.add(offer);
+        }
+
+        public void transferProgress(String fileName, long done, long size) {
+            lastProgress = done;
+        }
+
+        public void transferFinished(String fileName, IOException failure) {
+            finished.add(fileName + " " + (failure == null ? "ok" : failure.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package basic_demo;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class JournalTest {
+
+    private final BufferPool pool = new BufferPool(false, 0);
+
+    @Test public void testReadsBackEverythingAcrossSegments() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        Journal journal = new Journal(directory, 4096, 0);
+        journal.start();
+        append(journal, 500);
+
+        assertTrue("several segments", Journal.segments(directory).size() > 5);
+        JournalReader reader = new JournalReader(directory);
+        for (int i = 0; i < 500; i++) {
+            assertTrue(reader.next());
+            assertEquals(i % 2 == 0 ? "lobby" : "devops", reader.room());
+            assertEquals(Frame.MESSAGE, reader.type());
+            assertEquals(i + 1, reader.sequence());
+            assertEquals("MESSAGE bob: message " + i, reader.line());
+        }
+        assertFalse(reader.next());
+    }
+
+    @Test public void testDeletesSegmentsBeyondRetention() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        Journal journal = new Journal(directory, 4096, 2);
+        journal.start();
+        append(journal, 500);
+
+        assertEquals(2, Journal.segments(directory).size());
+        JournalReader reader = new JournalReader(directory);
+        String last = null;
+        int count = 0;
+        while (reader.next()) {
+            last = reader.text();
+            count++;
+        }
+        assertTrue(count > 0 && count < 500);
+        assertEquals("bob: message 499", last);
+    }
+
+    @Test public void testContinuesAfterEarlierSegments() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        Journal first = new Journal(directory, 4096, 0);
+        first.start();
+        append(first, 10);
+        Journal second = new Journal(directory, 4096, 0);
+        second.start();
+        append(second, 10);
+
+        JournalReader reader = new JournalReader(directory);
+        int count = 0;
+        while (reader.next()) {
+            count++;
+        }
+        assertEquals(20, count);
+    }
+
+    /**
+     * Journals broadcast-like messages and waits for the writer to catch up.
+     */
+    private void append(Journal journal, int count) throws Exception {
+        long before = journal.written();
+        for (int i = 0; i < count; i++) {
+            EncodedMessage message = EncodedMessage.encode("MESSAGE bob: message " + i, i + 1, pool);
+            journal.append(i % 2 == 0 ? "lobby" : "devops", message);
+            message.release();
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (journal.written() < before + count) {
+            assertTrue("journal written in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package basic_demo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @After public void stopServers() {
+        ChatServerTest.stopStartedServers();
+    }
+
+    @Test public void testBucketsCoverEveryValue() {
+        for (long value : new long[] {0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456789L, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucket(value);
+            assertTrue(LatencyHistogram.lowest(bucket) <= value);
+            assertTrue(value - LatencyHistogram.lowest(bucket) <= value / 16);
+            if (value < Long.MAX_VALUE) {
+                assertTrue(LatencyHistogram.bucket(value + 1) >= bucket);
+            }
+        }
+    }
+
+    @Test public void testPercentilesAreWithinTheBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int micros = 1; micros <= 10000; micros++) {
+            histogram.record(micros);
+        }
+
+        assertEquals(10000, histogram.count());
+        assertEquals(10000, histogram.max());
+        assertEquals(5000, histogram.percentile(0.5), 5000 / 16.0);
+        assertEquals(9900, histogram.percentile(0.99), 9900 / 16.0);
+        assertEquals(10000, histogram.percentile(1.0), 10000 / 16.0);
+        assertEquals(0, new LatencyHistogram().percentile(0.99));
+    }
+
+    @Test public void testLoadGeneratorTimesDeliveries() throws Exception {
+        int port = ChatServerTest.startServer(new ChatServerConfig());
+        LoadGenerator generator = new LoadGenerator("localhost", port, 10, 20, 2, 100, false);
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        try {
+            generator.connect();
+            generator.run(0, 1, new PrintStream(report, true));
+        } finally {
+            generator.close();
+        }
+
+        // Each message goes to the five members of its room.
+        assertTrue(generator.sent() > 0);
+        assertTrue(generator.delivered() >= generator.sent());
+        assertTrue(generator.latencies().count() > 0);
+        assertTrue(report.toString().contains("Latency: p50"));
+    }
+
+    @Test public void testLoadGeneratorTimesFromWhenMessagesWereDue() throws Exception {
+        int port = ChatServerTest.startServer(new ChatServerConfig());
+        // Far more messages than one sender can send, more than one a nanosecond even.
+        LoadGenerator generator = new LoadGenerator("localhost", port, 1, 1e10, 1, 64, false);
+        try {
+            generator.connect();
+            generator.run(0, 1, new PrintStream(new ByteArrayOutputStream(), true));
+        } finally {
+            generator.close();
+        }
+
+        // The sender falls further and further behind, and the latencies say so.
+        assertTrue(generator.sent() > 0);
+        assertTrue(generator.latencies().max() > 100000);
+    }
+}
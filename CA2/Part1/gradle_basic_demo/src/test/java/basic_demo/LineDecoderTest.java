@@ -0,0 +1,66 @@
+package basic_demo;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LineDecoderTest {
+
+    @Test public void testSplitsLinesAndStripsCarriageReturns() throws IOException {
+        LineDecoder decoder = new LineDecoder(64);
+        InputStream in = stream("SUBMITNAME\r\nhello world\n\nlast");
+
+        assertEquals("SUBMITNAME", decoder.readLine(in).toString());
+        assertEquals("hello world", decoder.readLine(in).toString());
+        assertTrue(decoder.readLine(in).isEmpty());
+        assertNull("an unterminated line is not a line", decoder.readLine(in));
+    }
+
+    @Test public void testRecognizesCommandsWithoutDecoding() throws IOException {
+        LineDecoder decoder = new LineDecoder(64);
+        LineDecoder.Line line = decoder.readLine(stream("/JOIN  devops \n"));
+
+        assertTrue(line.isCommand("/join"));
+        assertFalse(line.isCommand("/jo"));
+        assertEquals("devops", line.argument());
+    }
+
+    @Test public void testSkipsLinesLongerThanTheMaximum() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            text.append('x');
+        }
+        LineDecoder decoder = new LineDecoder(1000);
+        InputStream in = stream("short\n" + text + "\nafter\n");
+
+        assertEquals("short", decoder.readLine(in).toString());
+        assertTrue(decoder.readLine(in).isTooLong());
+        assertEquals("after", decoder.readLine(in).toString());
+        assertEquals(1, decoder.oversizedLines());
+    }
+
+    @Test public void testLinesSpanningManyReads() throws IOException {
+        LineDecoder decoder = new LineDecoder(LineDecoder.DEFAULT_MAX_LINE_LENGTH);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        // A stream that hands out a single byte at a time.
+        InputStream in = new ByteArrayInputStream((text + "\n").getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+
+        assertEquals(text.toString(), decoder.readLine(in).toString());
+    }
+
+    private static InputStream stream(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
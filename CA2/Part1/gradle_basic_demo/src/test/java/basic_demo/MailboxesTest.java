@@ -0,0 +1,190 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import basic_demo.ChatServerTest.TestClient;
+
+public class MailboxesTest {
+
+    @After public void stopServers() {
+        ChatServerTest.stopStartedServers();
+    }
+
+    @Test public void testKeepsPrivateMessagesUntilTheRecipientIsBack() throws Exception {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setMode(ChatServer.Mode.NIO);
+        config.setMailboxDirectory(Files.createTempDirectory("mailboxes").toString());
+        config.setMailboxBytes(400);
+        ChatServer server = new ChatServer(0, config);
+        int port = ChatServerTest.start(server);
+
+        try (TestClient bob = new TestClient(port)) {
+            bob.join("bob");
+        }
+        while (server.getSession("bob") != null) {
+            Thread.sleep(10);
+        }
+
+        int kept = 0;
+        try (TestClient alice = new TestClient(port)) {
+            alice.join("alice");
+            alice.send("/msg carol hello");
+            alice.expect("MESSAGE No one called carol is connected");
+            while (true) {
+                alice.send("/msg bob message " + kept);
+                String reply = alice.readLine();
+                if (reply.equals("MESSAGE The mailbox of bob is full")) {
+                    break;
+                }
+                assertEquals("MESSAGE bob is away, your message will be delivered when they are back", reply);
+                kept++;
+            }
+        }
+        assertTrue("several messages fit", kept > 3);
+
+        try (TestClient bob = new TestClient(port)) {
+            bob.join("bob");
+            await(bob, "MESSAGE You have " + kept + " messages from while you were away");
+            for (int i = 0; i < kept; i++) {
+                bob.expect("MESSAGE alice (private): message " + i);
+            }
+        }
+        assertEquals(kept, server.getMailboxMessagesKept());
+        assertEquals(kept, server.getMailboxMessagesDelivered());
+    }
+
+    @Test public void testMailQueuedBeforeTheRecipientIsBackIsDeliveredInOrder() throws Exception {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setMode(ChatServer.Mode.NIO);
+        config.setMailboxDirectory(Files.createTempDirectory("mailboxes").toString());
+        ChatServer server = new ChatServer(0, config);
+        int port = ChatServerTest.start(server);
+
+        try (TestClient bob = new TestClient(port)) {
+            bob.join("bob");
+        }
+        while (server.getSession("bob") != null) {
+            Thread.sleep(10);
+        }
+
+        // Holds up the writer until bob is back.
+        CountDownLatch writing = new CountDownLatch(1);
+        server.getMailboxes().execute(() -> {
+            try {
+                writing.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        try (TestClient alice = new TestClient(port); TestClient bob = new TestClient(port)) {
+            alice.join("alice");
+            for (int i = 0; i < 5; i++) {
+                alice.send("/msg bob message " + i);
+                alice.expect("MESSAGE bob is away, your message will be delivered when they are back");
+            }
+            assertEquals("NAMEACCEPTED bob", bob.join("bob"));
+            writing.countDown();
+            await(bob, "MESSAGE You have 5 messages from while you were away");
+            for (int i = 0; i < 5; i++) {
+                bob.expect("MESSAGE alice (private): message " + i);
+            }
+        }
+    }
+
+    @Test public void testPicksUpMailboxesOfEarlierRuns() throws Exception {
+        Path directory = Files.createTempDirectory("mailboxes");
+        ChatServer server = new ChatServer(0, new ChatServerConfig());
+        // Far too long to make a file name of as it is.
+        String bob = String.join("", Collections.nCopies(100, "bob"));
+        Mailboxes first = new Mailboxes(server, directory, 400, 16, 0, 100);
+        first.start();
+        first.open(bob);
+        EncodedMessage message = EncodedMessage.encode("MESSAGE alice (private): hi", server.getBufferPool());
+        assertEquals(Mailboxes.Delivery.KEPT, first.keep(bob, message, null));
+        assertEquals(Mailboxes.Delivery.NO_MAILBOX, first.keep("carol", message, null));
+        while (first.kept() == 0) {
+            Thread.sleep(10);
+        }
+
+        Mailboxes second = new Mailboxes(server, directory, 2 * message.length(), 16, 0, 100);
+        second.start();
+        assertEquals(Mailboxes.Delivery.KEPT, second.keep(bob, message, null));
+        assertEquals(Mailboxes.Delivery.FULL, second.keep(bob, message, null));
+        message.release();
+    }
+
+    @Test public void testMailboxesExpireAndAreCapped() throws Exception {
+        Path directory = Files.createTempDirectory("mailboxes");
+        ChatServer server = new ChatServer(0, new ChatServerConfig());
+        Mailboxes mailboxes = new Mailboxes(server, directory, 400, 16, 200, 2);
+        mailboxes.start();
+        mailboxes.open("bob");
+        mailboxes.open("carol");
+        mailboxes.open("dave");
+        assertEquals(2, mailboxes.size());
+        EncodedMessage message = EncodedMessage.encode("MESSAGE alice (private): hi", server.getBufferPool());
+        assertEquals(Mailboxes.Delivery.KEPT, mailboxes.keep("bob", message, null));
+        assertEquals(Mailboxes.Delivery.NO_MAILBOX, mailboxes.keep("dave", message, null));
+        message.release();
+        while (mailboxes.kept() == 0) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, files(directory));
+
+        while (mailboxes.expired() < 2) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, mailboxes.size());
+        assertEquals(0, files(directory));
+        mailboxes.open("dave");
+        assertEquals(1, mailboxes.size());
+    }
+
+    @Test public void testSendersAreToldOfMessagesThatCouldNotBeKept() throws Exception {
+        Path directory = Files.createTempDirectory("mailboxes");
+        ChatServerConfig config = new ChatServerConfig();
+        config.setMode(ChatServer.Mode.NIO);
+        config.setMailboxDirectory(directory.toString());
+        ChatServer server = new ChatServer(0, config);
+        int port = ChatServerTest.start(server);
+
+        try (TestClient bob = new TestClient(port)) {
+            bob.join("bob");
+        }
+        while (server.getSession("bob") != null) {
+            Thread.sleep(10);
+        }
+        // Nowhere left to write bob's mailbox to.
+        Files.delete(directory);
+
+        try (TestClient alice = new TestClient(port)) {
+            alice.join("alice");
+            alice.send("/msg bob hello");
+            alice.expect("MESSAGE bob is away, your message will be delivered when they are back");
+            alice.expect("MESSAGE Your message to bob could not be kept");
+        }
+        assertEquals(0, server.getMailboxMessagesKept());
+    }
+
+    private static long files(Path directory) throws IOException {
+        try (Stream<Path> listing = Files.list(directory)) {
+            return listing.count();
+        }
+    }
+
+    private static void await(TestClient client, String line) throws IOException {
+        String received;
+        while (!line.equals(received = client.readLine())) {
+            assertNotNull("waiting for " + line, received);
+        }
+    }
+}
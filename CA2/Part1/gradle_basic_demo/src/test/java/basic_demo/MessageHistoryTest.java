@@ -0,0 +1,70 @@
+package basic_demo;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MessageHistoryTest {
+
+    private final BufferPool pool = new BufferPool(false, 0);
+
+    @Test public void testKeepsTheLatestMessagesInOrder() {
+        MessageHistory history = new MessageHistory(3);
+        for (String line : new String[] {"MESSAGE a", "MESSAGE b", "MESSAGE c", "MESSAGE d", "MESSAGE e"}) {
+            EncodedMessage message = EncodedMessage.encode(line, pool);
+            history.add(message);
+            message.release();
+        }
+
+        EncodedMessage[] recent = history.snapshot();
+        assertEquals(3, recent.length);
+        assertEquals("MESSAGE c", text(recent[0]));
+        assertEquals("MESSAGE d", text(recent[1]));
+        assertEquals("MESSAGE e", text(recent[2]));
+        for (EncodedMessage message : recent) {
+            message.release();
+        }
+    }
+
+    @Test public void testReleasesEvictedAndClearedMessages() {
+        MessageHistory history = new MessageHistory(1);
+        EncodedMessage first = EncodedMessage.encode("MESSAGE a", pool);
+        EncodedMessage second = EncodedMessage.encode("MESSAGE b", pool);
+        history.add(first);
+        history.add(second);
+        first.release();
+        second.release();
+
+        // The history let go of the first message and still holds the second.
+        assertThrows(first);
+        assertEquals(1, history.size());
+        history.clear();
+        assertThrows(second);
+        assertEquals(0, history.snapshot().length);
+    }
+
+    @Test public void testZeroCapacityKeepsNothing() {
+        MessageHistory history = new MessageHistory(0);
+        EncodedMessage message = EncodedMessage.encode("MESSAGE a", pool);
+        history.add(message);
+        message.release();
+        assertEquals(0, history.snapshot().length);
+    }
+
+    private static void assertThrows(EncodedMessage released) {
+        try {
+            released.release();
+            fail("message should have been released already");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    private static String text(EncodedMessage message) {
+        ByteBuffer bytes = message.view(false);
+        byte[] line = new byte[bytes.remaining() - 1];
+        bytes.get(line);
+        return new String(line, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,55 @@
+package basic_demo;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class OutboundQueueTest {
+
+    private final BufferPool pool = new BufferPool(false, 0);
+    private final LongAdder dropped = new LongAdder();
+
+    @Test public void testDropOldestKeepsNewest() {
+        OutboundQueue queue = new OutboundQueue(2, ChatServer.SlowConsumerPolicy.DROP_OLDEST, pool, dropped);
+        for (String line : new String[] {"MESSAGE a", "MESSAGE b", "MESSAGE c"}) {
+            assertTrue(queue.offer(message(line)));
+        }
+        assertEquals("MESSAGE b", text(queue.poll()));
+        assertEquals("MESSAGE c", text(queue.poll()));
+        assertEquals(1, queue.dropped());
+        assertEquals(1, dropped.sum());
+    }
+
+    @Test public void testConflateReplacesBacklog() {
+        OutboundQueue queue = new OutboundQueue(3, ChatServer.SlowConsumerPolicy.CONFLATE, pool, dropped);
+        for (String line : new String[] {"MESSAGE a", "MESSAGE b", "MESSAGE c", "MESSAGE d"}) {
+            assertTrue(queue.offer(message(line)));
+        }
+        assertEquals("MESSAGE (3 messages skipped)", text(queue.poll()));
+        assertEquals("MESSAGE d", text(queue.poll()));
+        assertNull(queue.poll());
+        assertEquals(3, queue.maxDepth());
+    }
+
+    @Test public void testDisconnectRefusesWhenFull() {
+        OutboundQueue queue = new OutboundQueue(2, ChatServer.SlowConsumerPolicy.DISCONNECT, pool, dropped);
+        assertTrue(queue.offer(message("MESSAGE a")));
+        assertTrue(queue.offer(message("MESSAGE b")));
+        assertFalse(queue.offer(message("MESSAGE c")));
+        assertEquals(2, queue.depth());
+    }
+
+    private EncodedMessage message(String line) {
+        return EncodedMessage.encode(line, pool);
+    }
+
+    private static String text(EncodedMessage message) {
+        ByteBuffer line = message.view(false);
+        byte[] bytes = new byte[line.remaining() - 1];
+        line.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
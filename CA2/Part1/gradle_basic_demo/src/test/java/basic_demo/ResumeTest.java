@@ -0,0 +1,173 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import basic_demo.ChatServerTest.TestClient;
+import basic_demo.FileTransfersTest.Recorder;
+
+public class ResumeTest {
+
+    private final BufferPool pool = new BufferPool(false, 0);
+
+    @After public void stopServers() {
+        ChatServerTest.stopStartedServers();
+    }
+
+    @Test public void testLostConnectionsResumeWithWhatTheyMissed() throws Exception {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setMode(ChatServer.Mode.NIO);
+        config.setResumeGraceMillis(10000);
+        ChatServer server = new ChatServer(0, config);
+        int port = ChatServerTest.start(server);
+
+        try (TestClient alice = new TestClient(port)) {
+            alice.join("alice");
+            Recorder bob = new Recorder("bob");
+            ChatConnection connection = bob.connect(port, true);
+            connection.setReconnectAttempts(3);
+            try {
+                await(alice, "MESSAGE bob has joined");
+                alice.send("before");
+                alice.expect("MESSAGE alice: before");
+                bob.await("alice: before");
+
+                // Cut off by the server; the client reconnects after a second.
+                server.getSession("bob").disconnect();
+                while (server.getParkedSession("bob") == null) {
+                    Thread.sleep(10);
+                }
+                alice.send("missed 1");
+                alice.send("missed 2");
+                bob.await("bob has joined");
+                bob.await("alice: missed 1");
+                bob.await("alice: missed 2");
+
+                // Nobody was told that bob left and joined again.
+                alice.send("after");
+                alice.expect("MESSAGE alice: missed 1");
+                alice.expect("MESSAGE alice: missed 2");
+                alice.expect("MESSAGE alice: after");
+                bob.await("alice: after");
+                assertEquals(1, server.getResumedSessions());
+            } finally {
+                connection.close();
+            }
+        }
+    }
+
+    @Test public void testNamesAreHeldForTheGracePeriodOnly() throws Exception {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setResumeGraceMillis(1000);
+        int port = ChatServerTest.startServer(config);
+
+        try (TestClient alice = new TestClient(port)) {
+            alice.join("alice");
+            token(alice);
+            alice.send("/join devops");
+            alice.expect("MESSAGE You joined [devops] with 1 members");
+            String token;
+            try (TestClient bob = new TestClient(port)) {
+                bob.join("bob");
+                token = token(bob);
+                bob.send("/join devops");
+                await(alice, "MESSAGE [devops] bob has joined the room");
+            }
+
+            // Nobody else may take the name meanwhile, not even with RESUME and the
+            // wrong token or no name.
+            String wrongToken = token.replace(token.charAt(0), token.charAt(0) == 'a' ? 'b' : 'a');
+            for (String attempt : new String[] {"bob", "RESUME bob " + wrongToken, "RESUME bob", "RESUME "}) {
+                try (TestClient bob = new TestClient(port)) {
+                    bob.expect("SUBMITNAME");
+                    bob.send(attempt);
+                    bob.expect("SUBMITNAME");
+                    // Only the answer to the first SUBMITNAME may resume, even with
+                    // the right token.
+                    bob.send("RESUME bob " + token);
+                    bob.expect("MESSAGE Names may not start with RESUME");
+                    bob.expect("SUBMITNAME");
+                }
+            }
+
+            // A client that does not know the sequence number gets its name and rooms
+            // back without any replay.
+            try (TestClient bob = new TestClient(port)) {
+                bob.expect("SUBMITNAME");
+                bob.send("RESUME bob " + token);
+                bob.expect("NAMEACCEPTED bob");
+                assertFalse("a fresh token", token.equals(token(bob)));
+                bob.expect("MESSAGE The messages sent while you were away were not replayed");
+                bob.send("back");
+                alice.expect("MESSAGE [devops] bob: back");
+            }
+
+            // Once the grace period is over the client has left after all.
+            long lost = System.nanoTime();
+            alice.expect("MESSAGE bob has left");
+            alice.expect("MESSAGE [devops] bob has left the room");
+            assertTrue(System.nanoTime() - lost > 500000000L);
+            try (TestClient bob = new TestClient(port)) {
+                bob.expect("SUBMITNAME");
+                bob.send("RESUME bob stale 0");
+                bob.expect("NAMEACCEPTED bob");
+                await(alice, "MESSAGE bob has joined");
+            }
+        }
+    }
+
+    @Test public void testBufferReplaysTheMissedMessagesOfTheRooms() {
+        ResumeBuffer buffer = new ResumeBuffer(4);
+        for (int sequence = 1; sequence <= 6; sequence++) {
+            EncodedMessage message = EncodedMessage.encode("MESSAGE " + sequence, sequence, pool);
+            buffer.add(sequence % 2 == 0 ? "lobby" : "devops", message);
+            message.release();
+        }
+
+        List<EncodedMessage> missed = new ArrayList<EncodedMessage>();
+        assertTrue(buffer.since(3, Arrays.asList("lobby"), missed));
+        assertEquals(2, missed.size());
+        assertEquals(4, missed.get(0).sequence());
+        assertEquals(6, missed.get(1).sequence());
+
+        missed.clear();
+        assertFalse("messages 1 and 2 are gone", buffer.since(1, Arrays.asList("lobby", "devops"), missed));
+        assertEquals(4, missed.size());
+        for (EncodedMessage message : missed) {
+            message.release();
+        }
+    }
+
+    @Test public void testClientsResumeBelowMessagesThatArrivedEarly() {
+        ChatConnection.RecentSequences received = new ChatConnection.RecentSequences(4);
+        assertEquals(0, received.resumeFrom());
+        // 11 arrives before 10, as concurrent broadcasts may.
+        assertTrue(received.add(9));
+        assertTrue(received.add(11));
+        assertTrue(received.add(10));
+        assertEquals(9, received.resumeFrom());
+        assertFalse("replayed again", received.add(11));
+        assertTrue(received.add(12));
+        assertTrue(received.add(13));
+        assertEquals("9 has been pushed out", 10, received.resumeFrom());
+    }
+
+    private static String token(TestClient client) throws IOException {
+        String line = client.readLine();
+        assertTrue(line, line.startsWith("RESUMETOKEN "));
+        return line.substring("RESUMETOKEN ".length());
+    }
+
+    private static void await(TestClient client, String line) throws IOException {
+        String received;
+        while (!line.equals(received = client.readLine())) {
+            assertNotNull("waiting for " + line, received);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package basic_demo;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import basic_demo.ChatServerTest.TestClient;
+
+public class SearchIndexTest {
+
+    private final BufferPool pool = new BufferPool(false, 0);
+
+    @After public void stopServers() {
+        ChatServerTest.stopStartedServers();
+    }
+
+    @Test public void testFindsTheLatestMessagesWithAllTerms() throws Exception {
+        SearchIndex index = new SearchIndex(100);
+        for (int i = 0; i < 30; i++) {
+            add(index, "bob: deploy " + i + (i % 2 == 0 ? " failed" : " worked"));
+        }
+
+        SearchIndex.Matches matches = index.search("Deploy FAILED").get();
+        assertEquals(15, matches.total);
+        assertEquals(SearchIndex.MAX_RESULTS, matches.latest.size());
+        assertEquals("bob: deploy 10 failed", matches.latest.get(0));
+        assertEquals("bob: deploy 28 failed", matches.latest.get(SearchIndex.MAX_RESULTS - 1));
+
+        assertEquals(Arrays.asList("bob: deploy 7 worked"), index.search("worked, 7!").get().latest);
+        assertEquals(0, index.search("deploy nothing").get().total);
+        assertEquals(30, index.indexed());
+    }
+
+    @Test public void testEvictsTheOldestMessages() throws Exception {
+        SearchIndex index = new SearchIndex(10);
+        for (int i = 0; i < 25; i++) {
+            add(index, "alice: message " + i + " about topic" + (i % 3));
+        }
+
+        assertEquals(10, index.search("message").get().total);
+        assertEquals(0, index.search("14").get().total);
+        assertEquals(1, index.search("15").get().total);
+        SearchIndex.Matches topic = index.search("topic0").get();
+        assertEquals(Arrays.asList("alice: message 15 about topic0", "alice: message 18 about topic0",
+                "alice: message 21 about topic0", "alice: message 24 about topic0"), topic.latest);
+    }
+
+    @Test public void testPostingsKeepTheGapsBetweenNumbers() {
+        SearchIndex.Postings postings = new SearchIndex.Postings();
+        long[] numbers = {3, 4, 200, 201, 70000, 70001, 5000000000L};
+        for (long number : numbers) {
+            postings.add(number);
+        }
+        assertTrue(Arrays.equals(numbers, postings.toArray()));
+
+        postings.removeFirst();
+        postings.removeFirst();
+        postings.removeFirst();
+        assertEquals(201, postings.first());
+        assertTrue(Arrays.equals(new long[] {201, 70000, 70001, 5000000000L}, postings.toArray()));
+        for (int i = 0; i < 4; i++) {
+            postings.removeFirst();
+        }
+        assertTrue(postings.isEmpty());
+        postings.add(7);
+        assertTrue(Arrays.equals(new long[] {7}, postings.toArray()));
+    }
+
+    @Test public void testSearchCommand() throws Exception {
+        try (TestClient alice = new TestClient(ChatServerTest.startServer(new ChatServerConfig()))) {
+            alice.join("alice");
+            alice.send("/search deploy");
+            alice.expect("MESSAGE Searching is not enabled on this server");
+        }
+
+        ChatServerConfig config = new ChatServerConfig();
+        config.setSearchIndexSize(100);
+        try (TestClient alice = new TestClient(ChatServerTest.startServer(config))) {
+            alice.join("alice");
+            alice.send("/join devops");
+            alice.expect("MESSAGE You joined [devops] with 1 members");
+            alice.send("the deploy failed on node 3");
+            alice.expect("MESSAGE [devops] alice: the deploy failed on node 3");
+            alice.send("/search");
+            alice.expect("MESSAGE Usage: /search <terms>");
+            alice.send("/search failed deploy");
+            alice.expect("MESSAGE 1 messages match failed deploy:");
+            alice.expect("MESSAGE   [devops] alice: the deploy failed on node 3");
+            alice.send("/search rollback");
+            alice.expect("MESSAGE No messages match rollback");
+        }
+    }
+
+    private void add(SearchIndex index, String text) {
+        EncodedMessage message = EncodedMessage.encode("MESSAGE " + text, 1, pool);
+        index.add(message);
+        message.release();
+    }
+}